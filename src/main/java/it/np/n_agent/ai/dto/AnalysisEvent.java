@@ -0,0 +1,21 @@
+package it.np.n_agent.ai.dto;
+
+/**
+ * Event emitted while a streamed AI analysis is being generated.
+ */
+public sealed interface AnalysisEvent {
+
+    /**
+     * An issue whose JSON object has been fully generated, emitted before the analysis completes.
+     *
+     * @param issue parsed issue
+     */
+    record IssueFound(CodeIssue issue) implements AnalysisEvent {}
+
+    /**
+     * The complete analysis, parsed from the whole completion. Always the last event.
+     *
+     * @param result analysis result
+     */
+    record Completed(CodeAnalysisResult result) implements AnalysisEvent {}
+}
@@ -0,0 +1,10 @@
+package it.np.n_agent.ai.enums;
+
+/**
+ * How historical issues reach the model.
+ * PREFETCH inlines the issues of the changed files in the prompt; TOOL lets the model query them with a tool call.
+ */
+public enum HistoryModeEnum {
+    PREFETCH,
+    TOOL
+}
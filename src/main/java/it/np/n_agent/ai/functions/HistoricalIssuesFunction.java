@@ -1,12 +1,15 @@
 package it.np.n_agent.ai.functions;
 
+import it.np.n_agent.ai.similarity.IssueSimilarityIndex;
 import it.np.n_agent.entity.HistoricalIssueEntity;
-import it.np.n_agent.repository.IssueRepository;
+import it.np.n_agent.service.HistoricalIssueSearchService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.model.ToolContext;
 import org.springframework.ai.tool.annotation.Tool;
 import org.springframework.ai.tool.annotation.ToolParam;
 import org.springframework.lang.NonNull;
+import reactor.core.publisher.Mono;
 
 import java.time.Duration;
 import java.util.List;
@@ -16,10 +19,17 @@ public class HistoricalIssuesFunction {
 
     private static final Logger log = LoggerFactory.getLogger(HistoricalIssuesFunction.class);
 
-    private final IssueRepository issueRepository;
+    /**
+     * Tool context key of the installation the searches are scoped to.
+     */
+    public static final String INSTALLATION_ID = "installationId";
 
-    public HistoricalIssuesFunction(@NonNull IssueRepository issueRepository) {
-        this.issueRepository = issueRepository;
+    private final IssueSimilarityIndex similarityIndex;
+    private final HistoricalIssueSearchService issueSearch;
+
+    public HistoricalIssuesFunction(@NonNull IssueSimilarityIndex similarityIndex, @NonNull HistoricalIssueSearchService issueSearch) {
+        this.similarityIndex = similarityIndex;
+        this.issueSearch = issueSearch;
     }
 
     @Tool(description = "Search for SIMILAR code issues in historical database based on issue type and file. " +
@@ -28,18 +38,23 @@ public class HistoricalIssuesFunction {
             @ToolParam(description = "Keyword or issue type to search")
             String keyword,
 
-            @ToolParam(description = "File or repository name to filter")
+            @ToolParam(description = "File path, directory or file name to filter")
             String fileOrRepo,
 
             @ToolParam(description = "Max results to return (default 5)")
-            Integer maxResults
+            Integer maxResults,
+
+            ToolContext toolContext
     ) {
         int effectiveMax = (maxResults != null && maxResults > 0) ? maxResults : 5;
-        log.info("🔍 AI called searchSimilarIssues: type={}, file={}, max={}", keyword, fileOrRepo, effectiveMax);
+        Long installationId = toolContext == null ? null : (Long) toolContext.getContext().get(INSTALLATION_ID);
+        log.info("🔍 AI called searchSimilarIssues: type={}, file={}, max={}, installation={}", keyword, fileOrRepo, effectiveMax, installationId);
 
-        return issueRepository.findSimilarIssues(keyword, fileOrRepo)
-                .take(effectiveMax)
-                .collectList()
+        // The in-memory index holds the recent issues; older ones are only found by the MongoDB search
+        String query = fileOrRepo == null ? keyword : keyword + " " + fileOrRepo;
+        return similarityIndex.similar(installationId, query, effectiveMax)
+                .filter(issues -> !issues.isEmpty())
+                .switchIfEmpty(Mono.defer(() -> issueSearch.search(installationId, keyword, fileOrRepo, effectiveMax).collectList()))
                 .timeout(Duration.ofSeconds(8))
                 .doOnSuccess(issues -> log.info("Found {} similar issues", issues.size()))
                 .doOnError(e -> log.error("Historical issues lookup failed (returning empty list): {}", e.toString()))
@@ -47,4 +62,4 @@ public class HistoricalIssuesFunction {
                 .toFuture();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package it.np.n_agent.ai.prompt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prompt template parsed once into literal segments and positional slots.
+ * Supports the {@code %s}, {@code %b} and {@code %%} conversions of {@link String#format}, with the same output,
+ * so existing templates keep working unchanged.
+ *
+ * A prompt is assembled with {@link String#join}, which sizes the result exactly before filling it:
+ * the arguments (the diff above all) are copied once, into the final string.
+ */
+public final class PromptTemplate {
+
+    private final String name;
+    private final String source;
+    // literals.length == conversions.length + 1: literal, slot, literal, slot, ..., literal
+    private final String[] literals;
+    private final char[] conversions;
+
+    private PromptTemplate(String name, String source, String[] literals, char[] conversions) {
+        this.name = name;
+        this.source = source;
+        this.literals = literals;
+        this.conversions = conversions;
+    }
+
+    /**
+     * Parses a template.
+     *
+     * @param name template name, for error messages
+     * @param source template text
+     * @return parsed template
+     */
+    public static PromptTemplate parse(String name, String source) {
+        List<String> literals = new ArrayList<>();
+        StringBuilder conversions = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            char next = i + 1 < source.length() ? source.charAt(i + 1) : 0;
+            if (c == '%' && next == '%') {
+                literal.append('%');
+                i++;
+            } else if (c == '%' && (next == 's' || next == 'b')) {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                conversions.append(next);
+                i++;
+            } else {
+                literal.append(c);
+            }
+        }
+        literals.add(literal.toString());
+        return new PromptTemplate(name, source, literals.toArray(String[]::new), conversions.toString().toCharArray());
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int slots() {
+        return conversions.length;
+    }
+
+    /**
+     * @return template text as loaded, for prompts used without placeholders such as system prompts
+     */
+    public String source() {
+        return source;
+    }
+
+    /**
+     * Renders the template with positional arguments, followed by optional trailing text.
+     *
+     * @param args one argument per slot
+     * @param trailing text appended after the template, e.g. output format instructions
+     * @return assembled prompt
+     * @throws IllegalArgumentException if the number of arguments does not match the slots
+     */
+    public String render(Object[] args, String... trailing) {
+        if (args.length != conversions.length) {
+            throw new IllegalArgumentException("Prompt template " + name + " expects " + conversions.length + " arguments, got " + args.length);
+        }
+        String[] parts = new String[literals.length + conversions.length + trailing.length];
+        int p = 0;
+        parts[p++] = literals[0];
+        for (int i = 0; i < conversions.length; i++) {
+            parts[p++] = convert(conversions[i], args[i]);
+            parts[p++] = literals[i + 1];
+        }
+        for (String text : trailing) {
+            parts[p++] = text;
+        }
+        return String.join("", parts);
+    }
+
+    private static String convert(char conversion, Object arg) {
+        if (conversion == 'b') {
+            // Same as String.format("%b"): null is false, any other non-Boolean is true
+            return arg == null ? "false" : arg instanceof Boolean bool ? bool.toString() : "true";
+        }
+        return String.valueOf(arg);
+    }
+}
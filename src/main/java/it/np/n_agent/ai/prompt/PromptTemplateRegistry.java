@@ -0,0 +1,144 @@
+package it.np.n_agent.ai.prompt;
+
+import it.np.n_agent.exception.WebhookMainException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prompt templates parsed once at startup from {@code prompt.templates.location} (default {@code classpath:prompt/}),
+ * so analyses do not look up, read or parse prompt files.
+ *
+ * With {@code prompt.templates.watch=true} and a location on the file system (an exploded classpath in development
+ * or an external directory such as {@code file:/etc/n-agent/prompt/}), created and modified templates are reloaded
+ * without a restart. Prompt sizes computed at startup, like the diff token budget, are not recomputed on reload.
+ */
+@Component
+public class PromptTemplateRegistry implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(PromptTemplateRegistry.class);
+
+    private static final String TEMPLATE_PATTERN = "*.md";
+
+    private final Map<String, PromptTemplate> templates = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+
+    @Autowired
+    public PromptTemplateRegistry(@Value("${prompt.templates.location:classpath:prompt/}") String location,
+                                  @Value("${prompt.templates.watch:false}") boolean watch) {
+        String base = location.endsWith("/") ? location : location + "/";
+        try {
+            for (Resource resource : new PathMatchingResourcePatternResolver().getResources(base + TEMPLATE_PATTERN)) {
+                String name = resource.getFilename();
+                templates.put(name, PromptTemplate.parse(name, StreamUtils.copyToString(resource.getInputStream(), StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            throw new WebhookMainException(String.format("Failed to load prompt templates from %s", base), HttpStatus.INTERNAL_SERVER_ERROR, e);
+        }
+        log.info("✅ Loaded {} prompt templates from {}: {}", templates.size(), base, templates.keySet());
+        this.watchService = watch ? startWatching(base) : null;
+    }
+
+    /**
+     * Returns a preloaded template.
+     *
+     * @param name template file name, e.g. {@code user_analysis_rules.md}
+     * @return parsed template
+     * @throws WebhookMainException if no template has that name
+     */
+    public PromptTemplate get(String name) {
+        PromptTemplate template = templates.get(name);
+        if (template == null) {
+            throw new WebhookMainException(String.format("Prompt template not found: %s", name), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+        return template;
+    }
+
+    /**
+     * Returns the text of a preloaded template without placeholders, e.g. a system prompt.
+     *
+     * @param name template file name
+     * @return template text
+     */
+    public String text(String name) {
+        return get(name).source();
+    }
+
+    private WatchService startWatching(String base) {
+        Path directory;
+        try {
+            directory = new PathMatchingResourcePatternResolver().getResource(base).getFile().toPath();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Prompt template hot reload disabled: {} is not a file system directory", base);
+            return null;
+        }
+        try {
+            WatchService service = directory.getFileSystem().newWatchService();
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            Thread watcher = new Thread(() -> watch(service, directory), "prompt-template-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+            log.info("Watching prompt templates in {}", directory);
+            return service;
+        } catch (IOException e) {
+            log.warn("Prompt template hot reload disabled: cannot watch {}: {}", directory, e.getMessage());
+            return null;
+        }
+    }
+
+    private void watch(WatchService service, Path directory) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path file && file.toString().endsWith(".md")) {
+                        reload(directory.resolve(file));
+                    }
+                }
+                if (!key.reset()) {
+                    log.warn("Prompt template directory {} is no longer accessible, hot reload stopped", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reload(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            templates.put(name, PromptTemplate.parse(name, Files.readString(file, StandardCharsets.UTF_8)));
+            log.info("🔄 Reloaded prompt template {}", name);
+        } catch (IOException e) {
+            // Keep the previous version: the file may still be being written
+            log.warn("Failed to reload prompt template {}, keeping the previous version: {}", name, e.getMessage());
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package it.np.n_agent.ai.routing;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.np.n_agent.ai.tokenizer.TokenEstimator;
+import it.np.n_agent.config.AiModelRoutingConfig;
+import it.np.n_agent.config.AiModelRoutingConfig.ModelPrice;
+import it.np.n_agent.utilities.DiffUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the model of each analysis from the size of the diff, with the installation model as the ceiling:
+ * small diffs go to the fast model, larger ones to the installation model.
+ * Routing decisions, latency and cost of the calls are exported per model.
+ */
+@Component
+public class AiModelRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(AiModelRouter.class);
+
+    // Code tokens average about 4 characters and rarely exceed 8: a longer diff is large without counting its tokens
+    private static final int MAX_CHARS_PER_TOKEN = 8;
+
+    private final ChatClientPool clientPool;
+    private final AiModelRoutingConfig routingConfig;
+    private final TokenEstimator tokenEstimator;
+    private final MeterRegistry meterRegistry;
+    private final Set<String> reportedUnknownModels = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public AiModelRouter(ChatClientPool clientPool, AiModelRoutingConfig routingConfig,
+                         TokenEstimator tokenEstimator, MeterRegistry meterRegistry) {
+        this.clientPool = clientPool;
+        this.routingConfig = routingConfig;
+        this.tokenEstimator = tokenEstimator;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Model chosen for an analysis.
+     *
+     * @param model model to call
+     * @param ceiling model of the installation, which also scopes the analysis cache
+     * @param reason why the model was chosen: small, large, ceiling, or cached if there is nothing to send
+     */
+    public record Route(String model, String ceiling, String reason) {}
+
+    /**
+     * Resolves the model selected by an installation, falling back to the default model if it is not pooled.
+     *
+     * @param installationModel {@code ai_model} of the installation global settings, may be null
+     * @return pooled model
+     */
+    public String ceiling(String installationModel) {
+        if (clientPool.contains(installationModel)) {
+            return installationModel;
+        }
+        if (installationModel != null && reportedUnknownModels.add(installationModel)) {
+            log.warn("AI model {} is not in the client pool {}, using {}", installationModel, clientPool.models(), clientPool.defaultModel());
+        }
+        return clientPool.defaultModel();
+    }
+
+    /**
+     * Routes the diff of an analysis.
+     *
+     * @param diff diff to send to the model
+     * @param ceiling pooled installation model, as returned by {@link #ceiling}
+     * @return chosen route
+     */
+    public Route route(String diff, String ceiling) {
+        if (diff.isBlank()) {
+            // Every hunk came from the cache: no call, no decision to record
+            return new Route(ceiling, ceiling, "cached");
+        }
+        String fast = routingConfig.getFastModel();
+        if (!routingConfig.isEnabled() || fast.equals(ceiling) || !clientPool.contains(fast) || costsMore(fast, ceiling)) {
+            return decide(new Route(ceiling, ceiling, "ceiling"));
+        }
+
+        boolean small = diff.length() <= routingConfig.getSmallDiffTokens() * MAX_CHARS_PER_TOKEN
+                && DiffUtility.splitByFile(diff).size() <= routingConfig.getSmallDiffFiles()
+                && tokenEstimator.count(diff) <= routingConfig.getSmallDiffTokens();
+        return decide(small ? new Route(fast, ceiling, "small") : new Route(ceiling, ceiling, "large"));
+    }
+
+    /**
+     * Records latency and cost of a completed call.
+     *
+     * @param model model called
+     * @param nanos duration of the call
+     * @param usage usage reported by the model, may be null
+     */
+    public void recordCall(String model, long nanos, Usage usage) {
+        Timer.builder("ai.model.latency")
+                .tag("model", model)
+                .description("Duration of the AI calls, from request to last token")
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+
+        ModelPrice price = routingConfig.getPricing().get(model);
+        if (price == null || usage == null || usage.getPromptTokens() == null) {
+            return;
+        }
+        int completionTokens = usage.getCompletionTokens() == null ? 0 : usage.getCompletionTokens();
+        double cost = (usage.getPromptTokens() * price.getInputPerMillion() + completionTokens * price.getOutputPerMillion()) / 1_000_000;
+        Counter.builder("ai.model.cost")
+                .tag("model", model)
+                .baseUnit("usd")
+                .description("Cost of the AI calls")
+                .register(meterRegistry)
+                .increment(cost);
+    }
+
+    private Route decide(Route route) {
+        Counter.builder("ai.routing.decisions")
+                .tag("model", route.model())
+                .tag("reason", route.reason())
+                .description("Models chosen for the AI analyses")
+                .register(meterRegistry)
+                .increment();
+        log.info("AI analysis routed to {} ({}, ceiling {})", route.model(), route.reason(), route.ceiling());
+        return route;
+    }
+
+    /**
+     * Whether a model is priced higher than the ceiling; unknown prices never prevent routing.
+     */
+    private boolean costsMore(String model, String ceiling) {
+        ModelPrice modelPrice = routingConfig.getPricing().get(model);
+        ModelPrice ceilingPrice = routingConfig.getPricing().get(ceiling);
+        return modelPrice != null && ceilingPrice != null && modelPrice.getInputPerMillion() > ceilingPrice.getInputPerMillion();
+    }
+}
@@ -0,0 +1,49 @@
+package it.np.n_agent.ai.routing;
+
+import org.springframework.ai.chat.client.ChatClient;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Chat clients built once at startup, one per model a request can be routed to.
+ * Clients share the same chat model, advisors and system prompt and only differ by their default model option.
+ */
+public class ChatClientPool {
+
+    private final String defaultModel;
+    private final Map<String, ChatClient> clients;
+
+    /**
+     * @param defaultModel model of {@code spring.ai.openai.chat.options.model}
+     * @param models every model of the pool, including the default one
+     * @param factory builds the client of a model
+     */
+    public ChatClientPool(String defaultModel, Set<String> models, Function<String, ChatClient> factory) {
+        this.defaultModel = defaultModel;
+        this.clients = models.stream().collect(Collectors.toUnmodifiableMap(Function.identity(), factory));
+    }
+
+    public String defaultModel() {
+        return defaultModel;
+    }
+
+    public boolean contains(String model) {
+        return model != null && clients.containsKey(model);
+    }
+
+    public Set<String> models() {
+        return clients.keySet();
+    }
+
+    /**
+     * @param model model name
+     * @return client of the model, the default client if the model is not pooled
+     */
+    public ChatClient client(String model) {
+        ChatClient client = clients.get(model);
+        return client != null ? client : clients.get(defaultModel);
+    }
+}
@@ -0,0 +1,120 @@
+package it.np.n_agent.ai.similarity;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.np.n_agent.config.HistoricalContextConfig;
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import it.np.n_agent.service.HistoricalIssueSearchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process similarity index of historical issues, answering similar-issue searches without a MongoDB query.
+ * The index is partitioned by installation: a partition is built from the most recent issues of the installation
+ * on its first search, then kept up to date with the issues saved by the analyses. Partitions of installations
+ * without searches expire; partitions are weighed by their issues and terms, and the least recently used ones are
+ * dropped over {@code max-indexed-terms}, a bound on the heap used by the whole index.
+ * Only TOOL mode analyses search the index; in PREFETCH mode no partition is built.
+ * Matching is TF-IDF over the words of type, file path and resolution (see TfIdfPartition), so issues
+ * phrased differently or found in a renamed file are still found.
+ */
+@Component
+public class IssueSimilarityIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(IssueSimilarityIndex.class);
+
+    private final HistoricalIssueSearchService issueSearch;
+    private final HistoricalContextConfig.Similarity similarityConfig;
+    private final AsyncCache<Long, TfIdfPartition> partitions;
+    private final Timer queryTimer;
+
+    @Autowired
+    public IssueSimilarityIndex(HistoricalIssueSearchService issueSearch,
+                                HistoricalContextConfig historyConfig,
+                                MeterRegistry meterRegistry) {
+        this.issueSearch = issueSearch;
+        this.similarityConfig = historyConfig.getSimilarity();
+        this.partitions = Caffeine.newBuilder()
+                .maximumWeight(similarityConfig.getMaxIndexedTerms())
+                .weigher((Long id, TfIdfPartition partition) -> partition.weight())
+                .expireAfterAccess(similarityConfig.getExpireAfterAccess())
+                .buildAsync();
+        this.queryTimer = Timer.builder("analysis.history.similarity.query")
+                .description("Duration of a similar-issue search on the in-process index")
+                .register(meterRegistry);
+        Gauge.builder("analysis.history.similarity.installations", partitions, cache -> cache.synchronous().estimatedSize())
+                .description("Installations with an in-process similarity index")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return similarityConfig.isEnabled();
+    }
+
+    /**
+     * Issues of an installation most similar to a query.
+     *
+     * @param installationId installation whose issues are searched
+     * @param query keyword, issue type, file path or name, in any combination
+     * @param limit maximum number of issues
+     * @return Mono emitting the best matching issues, best first; empty list if disabled or nothing matches
+     */
+    public Mono<List<HistoricalIssueEntity>> similar(Long installationId, String query, int limit) {
+        if (!isEnabled() || installationId == null) {
+            return Mono.just(List.of());
+        }
+        return Mono.fromFuture(partitions.get(installationId, (id, executor) -> load(id)))
+                .map(partition -> {
+                    long startNanos = System.nanoTime();
+                    List<HistoricalIssueEntity> issues = partition.similar(query, limit);
+                    queryTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    return issues;
+                });
+    }
+
+    /**
+     * Adds newly saved issues to the partition of their installation, if it is in memory; a partition not built
+     * yet will read them from MongoDB.
+     *
+     * @param installationId installation of the issues
+     * @param issues saved issues, with their id
+     */
+    public void add(Long installationId, List<HistoricalIssueEntity> issues) {
+        if (!isEnabled() || installationId == null || issues.isEmpty()) {
+            return;
+        }
+        CompletableFuture<TfIdfPartition> partition = partitions.getIfPresent(installationId);
+        if (partition != null) {
+            // A partition still loading gets them once built; issues it already read are skipped.
+            // Replacing the entry makes the cache weigh the grown partition again.
+            partition.thenAccept(loaded -> {
+                loaded.addAll(issues);
+                partitions.asMap().replace(installationId, partition, CompletableFuture.completedFuture(loaded));
+            });
+        }
+    }
+
+    private CompletableFuture<TfIdfPartition> load(Long installationId) {
+        long startNanos = System.nanoTime();
+        return issueSearch.recent(installationId, similarityConfig.getMaxIssuesPerInstallation())
+                .collectList()
+                .map(issues -> {
+                    TfIdfPartition partition = new TfIdfPartition(similarityConfig.getMaxIssuesPerInstallation());
+                    partition.addAll(issues.reversed());
+                    log.info("Similarity index of installation {} built from {} issues in {} ms",
+                            installationId, partition.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    return partition;
+                })
+                .toFuture();
+    }
+}
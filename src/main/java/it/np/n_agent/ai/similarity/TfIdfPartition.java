@@ -0,0 +1,167 @@
+package it.np.n_agent.ai.similarity;
+
+import it.np.n_agent.entity.HistoricalIssueEntity;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static it.np.n_agent.utilities.IssueSearchUtility.keywordsOf;
+import static it.np.n_agent.utilities.IssueSearchUtility.normalizePath;
+import static it.np.n_agent.utilities.IssueSearchUtility.wordsOf;
+
+/**
+ * TF-IDF index of the issues of a single installation.
+ * An issue is a bag of terms: the keywords of its type and the words of its file name count twice, the words
+ * of its directories and resolution once. Term weights are length-normalized at insertion; the IDF is computed
+ * at query time from the postings, so adding an issue never rewrites the others. A query scores only the
+ * issues sharing a term with it. Once full, the oldest issue is evicted for each new one.
+ * Access is synchronized: queries and insertions are short, in-memory operations.
+ */
+final class TfIdfPartition {
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "if", "in", "into", "is", "it", "its",
+            "of", "on", "or", "so", "than", "that", "the", "then", "this", "to", "use", "with");
+
+    private static final Comparator<Scored> RANKING = Comparator.comparingDouble(Scored::score)
+            .thenComparing(scored -> scored.doc().foundAt(), Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private static final int MIN_ISSUES_TO_PRUNE = 20;
+
+    private final int maxIssues;
+    private final Map<String, Map<Doc, Double>> postings = new HashMap<>();
+    private final Deque<Doc> docs = new ArrayDeque<>();
+    private final Set<String> ids = new HashSet<>();
+    private int postingCount;
+
+    TfIdfPartition(int maxIssues) {
+        this.maxIssues = maxIssues;
+    }
+
+    /**
+     * Adds issues, oldest first; issues already indexed are skipped.
+     */
+    synchronized void addAll(List<HistoricalIssueEntity> issues) {
+        for (HistoricalIssueEntity issue : issues) {
+            if (issue.getId() != null && !ids.add(issue.getId())) {
+                continue;
+            }
+            Doc doc = new Doc(issue, weightsOf(issue));
+            doc.weights().forEach((term, weight) -> postings.computeIfAbsent(term, key -> new IdentityHashMap<>()).put(doc, weight));
+            postingCount += doc.weights().size();
+            docs.addLast(doc);
+            if (docs.size() > maxIssues) {
+                remove(docs.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Top issues by TF-IDF score of the query terms, the most recent first among equal scores.
+     *
+     * @param query free text: keyword, issue type, file path or name
+     * @param limit maximum number of issues
+     * @return issues sharing at least one term with the query, best first
+     */
+    synchronized List<HistoricalIssueEntity> similar(String query, int limit) {
+        Map<Doc, Double> scores = new IdentityHashMap<>();
+        for (String term : termsOf(query)) {
+            Map<Doc, Double> posting = postings.get(term);
+            // Terms of most issues (src, main, java...) barely change the ranking but would score every issue
+            if (posting == null || docs.size() >= MIN_ISSUES_TO_PRUNE && posting.size() > docs.size() / 2) {
+                continue;
+            }
+            double idf = Math.log(1.0 + (double) docs.size() / posting.size());
+            posting.forEach((doc, weight) -> scores.merge(doc, idf * weight, Double::sum));
+        }
+
+        PriorityQueue<Scored> top = new PriorityQueue<>(RANKING);
+        scores.forEach((doc, score) -> {
+            top.add(new Scored(doc, score));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        });
+        List<HistoricalIssueEntity> result = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            result.add(top.poll().doc().issue());
+        }
+        return result.reversed();
+    }
+
+    synchronized int size() {
+        return docs.size();
+    }
+
+    /**
+     * Memory weight of the index: one per issue and per distinct term of each issue.
+     */
+    synchronized int weight() {
+        return docs.size() + postingCount;
+    }
+
+    private void remove(Doc doc) {
+        ids.remove(doc.issue().getId());
+        postingCount -= doc.weights().size();
+        doc.weights().keySet().forEach(term -> {
+            Map<Doc, Double> posting = postings.get(term);
+            posting.remove(doc);
+            if (posting.isEmpty()) {
+                postings.remove(term);
+            }
+        });
+    }
+
+    /**
+     * Term frequencies of an issue, normalized to a unit vector so long resolutions do not outweigh short ones.
+     */
+    private static Map<String, Double> weightsOf(HistoricalIssueEntity issue) {
+        Map<String, Double> frequencies = new HashMap<>();
+        count(frequencies, keywordsOf(issue.getType()), 2);
+        String path = normalizePath(issue.getRepository());
+        int slash = path.lastIndexOf('/');
+        count(frequencies, wordsOf(path.substring(slash + 1)), 2);
+        count(frequencies, wordsOf(path.substring(0, Math.max(slash, 0))), 1);
+        count(frequencies, wordsOf(issue.getResolution()), 1);
+
+        double norm = Math.sqrt(frequencies.values().stream().mapToDouble(frequency -> frequency * frequency).sum());
+        frequencies.replaceAll((term, frequency) -> frequency / norm);
+        return frequencies;
+    }
+
+    private static void count(Map<String, Double> frequencies, List<String> words, int weight) {
+        words.stream().filter(TfIdfPartition::isTerm).forEach(word -> frequencies.merge(word, (double) weight, Double::sum));
+    }
+
+    private static Set<String> termsOf(String query) {
+        Set<String> terms = new HashSet<>();
+        wordsOf(query).stream().filter(TfIdfPartition::isTerm).forEach(terms::add);
+        return terms;
+    }
+
+    private static boolean isTerm(String word) {
+        return word.length() > 1 && !STOP_WORDS.contains(word);
+    }
+
+    /**
+     * Indexed issue, a key of identity maps: equal issues saved twice are distinct documents.
+     */
+    private record Doc(HistoricalIssueEntity issue, Map<String, Double> weights) {
+
+        LocalDateTime foundAt() {
+            return issue.getFoundAt();
+        }
+    }
+
+    private record Scored(Doc doc, double score) {}
+}
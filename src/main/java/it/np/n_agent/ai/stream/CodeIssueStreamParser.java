@@ -0,0 +1,131 @@
+package it.np.n_agent.ai.stream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import it.np.n_agent.ai.dto.CodeIssue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incrementally extracts the elements of the top-level {@code issues} array from a streamed
+ * {@link it.np.n_agent.ai.dto.CodeAnalysisResult} JSON completion.
+ * Chunks are fed to Jackson's non-blocking parser; the tokens of each array element are buffered
+ * and bound to a {@link CodeIssue} as soon as the element's object is closed.
+ * Any text before the root object (e.g. a markdown code fence) is ignored.
+ *
+ * Not thread-safe: one instance per completion, fed in order.
+ * Malformed JSON disables the parser; the complete result is still parsed from the whole completion.
+ */
+public class CodeIssueStreamParser {
+
+    private static final Logger log = LoggerFactory.getLogger(CodeIssueStreamParser.class);
+
+    private static final String ISSUES_FIELD = "issues";
+    private static final int ROOT_DEPTH = 1;
+    private static final int ARRAY_DEPTH = 2;
+
+    private final ObjectMapper objectMapper;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+
+    private boolean started;
+    private boolean done;
+    private int depth;
+    private boolean issuesFieldNext;
+    private boolean inIssues;
+    private TokenBuffer issue;
+
+    public CodeIssueStreamParser(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        try {
+            this.parser = objectMapper.getFactory().createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create non-blocking JSON parser", e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Feeds the next chunk of the completion.
+     *
+     * @param chunk next completion chunk
+     * @return issues completed by this chunk, in order
+     */
+    public List<CodeIssue> feed(String chunk) {
+        if (done || chunk == null || chunk.isEmpty()) {
+            return List.of();
+        }
+        if (!started) {
+            int root = chunk.indexOf('{');
+            if (root < 0) {
+                return List.of();
+            }
+            chunk = chunk.substring(root);
+            started = true;
+        }
+
+        List<CodeIssue> completed = new ArrayList<>(1);
+        try {
+            byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+            feeder.feedInput(bytes, 0, bytes.length);
+            JsonToken token;
+            while (!done && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                onToken(token, completed);
+            }
+        } catch (IOException e) {
+            log.warn("Incremental parsing of the AI completion stopped: {}", e.getMessage());
+            done = true;
+        }
+        return completed;
+    }
+
+    private void onToken(JsonToken token, List<CodeIssue> completed) throws IOException {
+        if (token.isStructStart()) {
+            depth++;
+        } else if (token.isStructEnd()) {
+            depth--;
+        }
+
+        if (issue != null) {
+            issue.copyCurrentEvent(parser);
+            if (depth == ARRAY_DEPTH) {
+                bind(completed);
+            }
+            return;
+        }
+
+        if (depth == 0) {
+            done = true;
+        } else if (depth == ROOT_DEPTH && token == JsonToken.FIELD_NAME) {
+            issuesFieldNext = ISSUES_FIELD.equals(parser.currentName());
+        } else if (issuesFieldNext && depth == ARRAY_DEPTH && token == JsonToken.START_ARRAY) {
+            issuesFieldNext = false;
+            inIssues = true;
+        } else if (inIssues && depth == ROOT_DEPTH && token == JsonToken.END_ARRAY) {
+            inIssues = false;
+        } else if (inIssues && depth == ARRAY_DEPTH + 1 && token == JsonToken.START_OBJECT) {
+            issue = new TokenBuffer(parser);
+            issue.copyCurrentEvent(parser);
+        } else {
+            issuesFieldNext = false;
+        }
+    }
+
+    private void bind(List<CodeIssue> completed) {
+        try (JsonParser buffered = issue.asParser(objectMapper)) {
+            completed.add(objectMapper.readValue(buffered, CodeIssue.class));
+        } catch (IOException e) {
+            log.warn("Skipping streamed issue that cannot be bound: {}", e.getMessage());
+        } finally {
+            issue = null;
+        }
+    }
+}
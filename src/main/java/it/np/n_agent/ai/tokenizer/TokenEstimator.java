@@ -0,0 +1,100 @@
+package it.np.n_agent.ai.tokenizer;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local token counter for the configured OpenAI model, based on the BPE tables bundled with jtokkit.
+ * Models unknown to jtokkit are counted with {@code o200k_base}, the encoding of the GPT-4o family.
+ * Text is encoded as ordinary text: special-token markers appearing in a diff are counted, not rejected.
+ *
+ * Estimates are compared with the usage reported by the provider, so that chunk budgets can be tuned.
+ * Reported prompt tokens also include message framing and tool call round trips, hence a ratio slightly above 1.
+ */
+@Component
+public class TokenEstimator {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenEstimator.class);
+
+    /**
+     * Average characters per token of source code and diffs, used for estimates that do not warrant encoding.
+     */
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private final Encoding encoding;
+    private final DistributionSummary estimatedPromptTokens;
+    private final DistributionSummary actualPromptTokens;
+    private final DistributionSummary actualCompletionTokens;
+    private final DistributionSummary promptEstimateRatio;
+
+    @Autowired
+    public TokenEstimator(@Value("${spring.ai.openai.chat.options.model}") String model, MeterRegistry meterRegistry) {
+        EncodingRegistry registry = Encodings.newLazyEncodingRegistry();
+        this.encoding = registry.getEncodingForModel(model)
+                .orElseGet(() -> registry.getEncoding(EncodingType.O200K_BASE));
+        log.info("Token estimates for model {} use encoding {}", model, encoding.getName());
+
+        this.estimatedPromptTokens = DistributionSummary.builder("analysis.tokens.prompt")
+                .tag("source", "estimated")
+                .baseUnit("tokens")
+                .description("Prompt tokens of an AI call")
+                .register(meterRegistry);
+        this.actualPromptTokens = DistributionSummary.builder("analysis.tokens.prompt")
+                .tag("source", "actual")
+                .baseUnit("tokens")
+                .description("Prompt tokens of an AI call")
+                .register(meterRegistry);
+        this.actualCompletionTokens = DistributionSummary.builder("analysis.tokens.completion")
+                .tag("source", "actual")
+                .baseUnit("tokens")
+                .description("Completion tokens of an AI call")
+                .register(meterRegistry);
+        this.promptEstimateRatio = DistributionSummary.builder("analysis.tokens.prompt.ratio")
+                .description("Actual / estimated prompt tokens of an AI call")
+                .register(meterRegistry);
+    }
+
+    public int count(String text) {
+        return text == null || text.isEmpty() ? 0 : encoding.countTokensOrdinary(text);
+    }
+
+    /**
+     * Rough token count from the text length, without encoding it: for metrics, not for budgets.
+     */
+    public static int approximate(CharSequence text) {
+        return text == null ? 0 : (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    /**
+     * Records the estimated prompt size of a call against the usage reported by the provider.
+     *
+     * @param estimatedPrompt estimated prompt tokens
+     * @param usage usage reported by the provider, null if not reported
+     */
+    public void recordUsage(int estimatedPrompt, Usage usage) {
+        estimatedPromptTokens.record(estimatedPrompt);
+        if (usage == null || usage.getPromptTokens() == null || usage.getPromptTokens() == 0) {
+            log.info("AI call prompt tokens: estimated {}, usage not reported", estimatedPrompt);
+            return;
+        }
+        int actualPrompt = usage.getPromptTokens();
+        actualPromptTokens.record(actualPrompt);
+        if (usage.getCompletionTokens() != null) {
+            actualCompletionTokens.record(usage.getCompletionTokens());
+        }
+        if (estimatedPrompt > 0) {
+            promptEstimateRatio.record((double) actualPrompt / estimatedPrompt);
+        }
+        log.info("AI call prompt tokens: estimated {}, actual {}; completion tokens {}", estimatedPrompt, actualPrompt, usage.getCompletionTokens());
+    }
+}
@@ -3,45 +3,74 @@ package it.np.n_agent.config;
 import io.netty.channel.ChannelOption;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
+import it.np.n_agent.ai.prompt.PromptTemplateRegistry;
+import it.np.n_agent.ai.routing.ChatClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.SimpleLoggerAdvisor;
 import org.springframework.ai.openai.OpenAiChatModel;
+import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.ai.openai.api.OpenAiApi;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.client.ReactorClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
 
 import java.time.Duration;
-
-import static it.np.n_agent.utilities.ResourceUtility.loadPrompt;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class AiConfig {
 
     private final static Logger log = LoggerFactory.getLogger(AiConfig.class);
 
-    @Bean("OPEN_AI")
-    public ChatClient openAiChatClient(OpenAiChatModel model) {
-        return ChatClient.builder(model)
+    /**
+     * Chat clients of every model an analysis can be routed to, built once: the default model, the fast model
+     * and the models installations may select. Each client only overrides the model of the default chat options.
+     */
+    @Bean
+    public ChatClientPool chatClientPool(OpenAiChatModel chatModel,
+                                         AiModelRoutingConfig routingConfig,
+                                         PromptTemplateRegistry promptTemplates,
+                                         @Value("${spring.ai.openai.chat.options.model}") String defaultModel) {
+        Set<String> models = new LinkedHashSet<>();
+        models.add(defaultModel);
+        models.add(routingConfig.getFastModel());
+        models.addAll(routingConfig.getModels());
+        String systemPrompt = promptTemplates.text("default_analysis_diff.md");
+
+        log.info("Building chat clients for models {}", models);
+        return new ChatClientPool(defaultModel, models, model -> ChatClient.builder(chatModel)
                          .defaultAdvisors(new SimpleLoggerAdvisor())
 //                         .defaultAdvisors(new RetryAdvisor(3,300))
-                         .defaultSystem(loadPrompt("default_analysis_diff.md"))
-                         .build();
+                         .defaultSystem(systemPrompt)
+                         .defaultOptions(OpenAiChatOptions.builder().model(model).build())
+                         .build());
     }
 
+    /**
+     * OpenAI API client. Streaming requests ({@code ChatClient.stream()}) go through the WebClient on Netty
+     * and hold no thread while waiting for tokens; the RestClient only serves blocking {@code call()} requests.
+     */
     @Bean
     public OpenAiApi openAiApi(
             @Value("${spring.ai.openai.api-key}") String apiKey,
+            @Value("${spring.ai.openai.connection-timeout:10s}") Duration connectionTimeout,
+            @Value("${spring.ai.openai.read-timeout:120s}") Duration readTimeout,
             RestClient.Builder openAiRestClient) {
         return OpenAiApi.builder()
                 .baseUrl("https://api.openai.com")
                 .apiKey(apiKey)
                 .restClientBuilder(openAiRestClient)
+                .webClientBuilder(WebClient.builder()
+                        .clientConnector(new ReactorClientHttpConnector(openAiHttpClient(connectionTimeout, readTimeout))))
                 .build();
     }
 
@@ -63,4 +92,17 @@ public class AiConfig {
                 ));
     }
 
+    /**
+     * Netty client for streaming completions: the read timeout bounds the silence between two chunks,
+     * not the whole completion, so a long analysis that keeps streaming tokens is never cut.
+     */
+    private static HttpClient openAiHttpClient(Duration connectionTimeout, Duration readTimeout) {
+        return HttpClient.create()
+                .responseTimeout(readTimeout)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectionTimeout.toMillis())
+                .doOnConnected(conn ->
+                        conn.addHandlerLast(new ReadTimeoutHandler(readTimeout.toMillis(), TimeUnit.MILLISECONDS))
+                            .addHandlerLast(new WriteTimeoutHandler(120)));
+    }
+
 }
@@ -0,0 +1,75 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration of per-request model routing.
+ * The model set in the global settings of an installation is the ceiling: small diffs go to {@code fast-model},
+ * the others to the installation model. A chat client is built at startup for the default model, the fast model
+ * and every model in {@code models}; an installation model outside this pool falls back to the default model.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "ai.routing")
+@Data
+@Validated
+public class AiModelRoutingConfig {
+
+    private boolean enabled = true;
+
+    @NotBlank
+    private String fastModel = "gpt-4o-mini";
+
+    /**
+     * Diffs of at most this many tokens and {@code small-diff-files} files go to the fast model.
+     */
+    @Positive
+    private int smallDiffTokens = 1_500;
+
+    @Positive
+    private int smallDiffFiles = 3;
+
+    /**
+     * Models installations may select, on top of the default and fast models.
+     */
+    @NotNull
+    private List<String> models = new ArrayList<>();
+
+    /**
+     * Prices of the models, to export the cost of each call. Models without a price report no cost.
+     */
+    @Valid
+    private Map<String, ModelPrice> pricing = new HashMap<>();
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Validated
+    public static class ModelPrice {
+        /**
+         * USD per million prompt tokens.
+         */
+        @PositiveOrZero
+        private double inputPerMillion;
+
+        /**
+         * USD per million completion tokens.
+         */
+        @PositiveOrZero
+        private double outputPerMillion;
+    }
+}
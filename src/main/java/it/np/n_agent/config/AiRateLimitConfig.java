@@ -0,0 +1,75 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of the AI provider rate limiter.
+ * Calls of a model are admitted within its requests-per-minute and estimated tokens-per-minute quota,
+ * counted in one MongoDB bucket per model shared by every replica. Callers over quota wait in line instead of failing.
+ * Models without an entry in {@code models} use {@code defaults}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "ai.rate-limit")
+@Data
+@Validated
+public class AiRateLimitConfig {
+
+    private boolean enabled = true;
+
+    @Valid
+    @NotNull
+    private ModelLimits defaults = new ModelLimits(500, 200_000);
+
+    @Valid
+    private Map<String, ModelLimits> models = new HashMap<>();
+
+    /**
+     * Callers waiting longer than this for their turn fail, so a stuck quota cannot hold analyses forever.
+     */
+    @NotNull
+    private Duration maxWait = Duration.ofMinutes(10);
+
+    /**
+     * Retries of a call rejected by the provider with 429, after waiting for the reset it announced.
+     */
+    @PositiveOrZero
+    private int maxThrottleRetries = 3;
+
+    /**
+     * Wait after a 429 without Retry-After or x-ratelimit-reset headers.
+     */
+    @NotNull
+    private Duration defaultBackoff = Duration.ofSeconds(10);
+
+    public ModelLimits limitsOf(String model) {
+        return models.getOrDefault(model, defaults);
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Validated
+    public static class ModelLimits {
+        @Positive
+        private int requestsPerMinute;
+
+        /**
+         * Prompt plus expected completion tokens per minute, as counted by the provider.
+         */
+        @Positive
+        private long tokensPerMinute;
+    }
+}
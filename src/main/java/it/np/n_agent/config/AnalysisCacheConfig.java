@@ -0,0 +1,36 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Configuration of the content-addressed cache of hunk analyses.
+ * Entries live in a per-node Caffeine cache bounded by their estimated size and in the
+ * {@code analysis_cache} collection, which expires them through a TTL index.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "analysis.cache")
+@Data
+@Validated
+public class AnalysisCacheConfig {
+
+    private boolean enabled = true;
+
+    /**
+     * How long the issues of a hunk are reused, both in memory and in MongoDB.
+     */
+    @NotNull
+    private Duration ttl = Duration.ofDays(7);
+
+    /**
+     * Maximum estimated size of the in-memory tier; least valuable entries are evicted first.
+     */
+    @NotNull
+    private DataSize localMaxSize = DataSize.ofMegabytes(32);
+}
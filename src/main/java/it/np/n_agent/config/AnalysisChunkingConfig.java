@@ -0,0 +1,88 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of token-budgeted diff chunking.
+ * Diffs are split on file boundaries and bin-packed into AI calls whose estimated input fits the budget of the model:
+ * its context window minus the expected output and the prompt template, capped by {@code max-chunk-tokens}.
+ * At most {@code concurrency} calls of the same pull request run at a time, and the partial results are merged
+ * into one review. Models without an entry in {@code models} use {@code defaults}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "analysis.chunking")
+@Data
+@Validated
+public class AnalysisChunkingConfig {
+
+    private boolean enabled = true;
+
+    /**
+     * Maximum diff tokens sent in a single AI call, well below the context window so that the issues
+     * of a chunk fit in the response. A file larger than this is split on its hunks.
+     */
+    @Positive
+    private int maxChunkTokens = 8_000;
+
+    /**
+     * Maximum chunks of the same pull request analyzed at the same time.
+     */
+    @Positive
+    private int concurrency = 3;
+
+    @Valid
+    @NotNull
+    private ModelBudget defaults = new ModelBudget(128_000, 2_000);
+
+    @Valid
+    private Map<String, ModelBudget> models = new HashMap<>();
+
+    /**
+     * Diff tokens available to a single call of a model.
+     *
+     * @param model model name
+     * @param promptTokens tokens of the prompt template without the diff
+     * @return diff token budget, at least 1
+     */
+    public int diffBudget(String model, int promptTokens) {
+        ModelBudget budget = models.getOrDefault(model, defaults);
+        int available = budget.getContextWindow() - budget.getExpectedOutputTokens() - promptTokens;
+        return Math.max(1, Math.min(maxChunkTokens, available));
+    }
+
+    /**
+     * Tokens reserved for the response of a model.
+     *
+     * @param model model name
+     * @return expected output tokens
+     */
+    public int expectedOutputTokens(String model) {
+        return models.getOrDefault(model, defaults).getExpectedOutputTokens();
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Validated
+    public static class ModelBudget {
+        @Positive
+        private int contextWindow;
+
+        /**
+         * Tokens reserved for the response, usually the configured max-tokens.
+         */
+        @Positive
+        private int expectedOutputTokens;
+    }
+}
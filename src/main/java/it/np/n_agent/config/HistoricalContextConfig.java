@@ -0,0 +1,105 @@
+package it.np.n_agent.config;
+
+import it.np.n_agent.ai.enums.HistoryModeEnum;
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Configuration of the historical issues given to the model.
+ * In PREFETCH mode the recent issues of the installation are read while the diff is fetched, and those of the
+ * changed files are inlined in the prompt, saving the tool-call turn of TOOL mode.
+ * {@code tool-sample-rate} keeps a share of the analyses in TOOL mode so both modes are measured on the same traffic.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "analysis.history")
+@Data
+@Validated
+public class HistoricalContextConfig {
+
+    @NotNull
+    private HistoryModeEnum mode = HistoryModeEnum.PREFETCH;
+
+    /**
+     * Share of the analyses run in TOOL mode while PREFETCH is configured, from 0 to 1.
+     */
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    private double toolSampleRate = 0.0;
+
+    /**
+     * Most recent issues of the installation read for a prefetch.
+     */
+    @Positive
+    private int candidateLimit = 200;
+
+    /**
+     * Maximum issues inlined in a prompt.
+     */
+    @Positive
+    private int maxIssues = 10;
+
+    /**
+     * Maximum tokens of the inlined issues; the prompt budget reserves them for every call.
+     */
+    @Positive
+    private int maxContextTokens = 600;
+
+    @Positive
+    private int maxResolutionChars = 200;
+
+    /**
+     * A slower prefetch is abandoned and the analysis runs without history.
+     */
+    @NotNull
+    private Duration timeout = Duration.ofSeconds(2);
+
+    /**
+     * Writes at startup the search keys of the issues saved without them.
+     * Enable once after upgrading an existing database: finding those issues is a collection scan on every startup.
+     */
+    private boolean backfillSearchKeys = false;
+
+    @Valid
+    @NotNull
+    private Similarity similarity = new Similarity();
+
+    /**
+     * In-process TF-IDF index of the recent issues of each installation, answering the similar-issue tool calls.
+     * Only analyses in TOOL mode search it (all of them, or the {@code tool-sample-rate} share under PREFETCH):
+     * PREFETCH inlines the issues read from MongoDB and never builds a partition.
+     */
+    @Data
+    @Validated
+    public static class Similarity {
+
+        private boolean enabled = true;
+
+        /**
+         * Index entries kept in memory across installations, one per issue and per distinct term of an issue:
+         * the indexes of the least recently used installations are dropped over it.
+         */
+        @Positive
+        private long maxIndexedTerms = 1_000_000;
+
+        /**
+         * Most recent issues indexed per installation; older ones are only found by the MongoDB search.
+         */
+        @Positive
+        private int maxIssuesPerInstallation = 2_000;
+
+        /**
+         * The index of an installation without searches for this long is dropped and rebuilt on the next one.
+         */
+        @NotNull
+        private Duration expireAfterAccess = Duration.ofHours(1);
+    }
+}
@@ -0,0 +1,57 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of the retention of historical issues.
+ * Issues older than the window of their installation are rolled into monthly summaries and deleted by a
+ * periodic job. Installations without an entry in {@code installations} use {@code default-window}.
+ * A TTL index on {@code found_at}, {@code grace} beyond the longest window, bounds the collection
+ * even if the job does not run.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "analysis.history.retention")
+@Data
+@Validated
+public class HistoricalIssueRetentionConfig {
+
+    private boolean enabled = true;
+
+    @NotNull
+    private Duration defaultWindow = Duration.ofDays(365);
+
+    /**
+     * Retention window by installation id.
+     */
+    private Map<Long, Duration> installations = new HashMap<>();
+
+    /**
+     * Period of the roll-up job, which also refreshes the per-installation metrics.
+     */
+    @NotNull
+    private Duration interval = Duration.ofHours(6);
+
+    @NotNull
+    private Duration grace = Duration.ofDays(30);
+
+    public Duration windowOf(Long installationId) {
+        return installations.getOrDefault(installationId, defaultWindow);
+    }
+
+    /**
+     * Expiration of the TTL index: the longest window plus the grace period.
+     */
+    public Duration ttl() {
+        return installations.values().stream()
+                .reduce(defaultWindow, (longest, window) -> window.compareTo(longest) > 0 ? window : longest)
+                .plus(grace);
+    }
+}
@@ -0,0 +1,50 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Configuration of the write-behind persistence of historical issues.
+ * Issues of all analyses are buffered in memory and inserted in unordered bulk writes of up to
+ * {@code batch-size} issues, or of what is buffered every {@code flush-interval}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "analysis.history.write")
+@Data
+@Validated
+public class HistoricalIssueWriteConfig {
+
+    @Positive
+    private int batchSize = 500;
+
+    @NotNull
+    private Duration flushInterval = Duration.ofSeconds(2);
+
+    /**
+     * Issues buffered at most; issues submitted to a full buffer are dropped, the analysis is not held.
+     */
+    @Positive
+    private int capacity = 10_000;
+
+    /**
+     * Retries of a failed bulk write, with exponential backoff from {@code retry-backoff}, before the batch is dropped.
+     */
+    @PositiveOrZero
+    private int maxRetries = 3;
+
+    @NotNull
+    private Duration retryBackoff = Duration.ofSeconds(1);
+
+    /**
+     * On shutdown, the buffered issues are flushed for at most this long.
+     */
+    @NotNull
+    private Duration shutdownTimeout = Duration.ofSeconds(10);
+}
@@ -0,0 +1,36 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Configuration of incremental pull request reviews.
+ * On a synchronize event, only the changes between the last reviewed head and the new one are analyzed,
+ * as long as the new head simply extends the old one.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "analysis.incremental")
+@Data
+@Validated
+public class IncrementalReviewConfig {
+
+    private boolean enabled = true;
+
+    /**
+     * How long the last reviewed SHA of a pull request is kept after its last review.
+     */
+    @NotNull
+    private Duration stateTtl = Duration.ofDays(90);
+
+    /**
+     * Compares touching more files fall back to the full PR diff: the compare API lists at most 300 files.
+     */
+    @Positive
+    private int maxFiles = 300;
+}
@@ -0,0 +1,151 @@
+package it.np.n_agent.config;
+
+import com.mongodb.MongoCommandException;
+import it.np.n_agent.entity.AiRateLimitBucket;
+import it.np.n_agent.entity.AnalysisCacheEntry;
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import it.np.n_agent.entity.PullRequestReviewState;
+import it.np.n_agent.entity.WebhookDelivery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.index.Index;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Creates the MongoDB indexes the application relies on once the application is ready.
+ * Index creation is idempotent and runs in the background: each index is created on its own, so a failure
+ * is logged and neither prevents startup nor the creation of the other indexes.
+ * TTL indexes follow their configuration: when the configured expiry of an existing one changed, it is updated
+ * in place with {@code collMod}, since re-creating an index with other options fails.
+ */
+@Configuration
+public class MongoIndexConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoIndexConfig.class);
+
+    /**
+     * Rate limit buckets only matter for the current minute: a day without calls drops the bucket of a retired model.
+     */
+    private static final Duration RATE_LIMIT_BUCKET_TTL = Duration.ofDays(1);
+
+    /**
+     * Error of an index created with the name of an existing one with different options.
+     */
+    private static final int INDEX_OPTIONS_CONFLICT = 85;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final WebhookDedupConfig dedupConfig;
+    private final AnalysisCacheConfig analysisCacheConfig;
+    private final IncrementalReviewConfig incrementalReviewConfig;
+    private final HistoricalIssueRetentionConfig retentionConfig;
+
+    @Autowired
+    public MongoIndexConfig(ReactiveMongoTemplate mongoTemplate,
+                            WebhookDedupConfig dedupConfig,
+                            AnalysisCacheConfig analysisCacheConfig,
+                            IncrementalReviewConfig incrementalReviewConfig,
+                            HistoricalIssueRetentionConfig retentionConfig) {
+        this.mongoTemplate = mongoTemplate;
+        this.dedupConfig = dedupConfig;
+        this.analysisCacheConfig = analysisCacheConfig;
+        this.incrementalReviewConfig = incrementalReviewConfig;
+        this.retentionConfig = retentionConfig;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        Flux.concat(
+                        createIndex(WebhookDelivery.class, new Index()
+                                .on("created_at", Sort.Direction.ASC)
+                                .named("created_at_ttl")
+                                .expire(dedupConfig.getTtl())),
+                        createIndex(AnalysisCacheEntry.class, new Index()
+                                .on("created_at", Sort.Direction.ASC)
+                                .named("created_at_ttl")
+                                .expire(analysisCacheConfig.getTtl())),
+                        createIndex(PullRequestReviewState.class, new Index()
+                                .on("reviewed_at", Sort.Direction.ASC)
+                                .named("reviewed_at_ttl")
+                                .expire(incrementalReviewConfig.getStateTtl())),
+                        createIndex(AiRateLimitBucket.class, new Index()
+                                .on("updated_at", Sort.Direction.ASC)
+                                .named("updated_at_ttl")
+                                .expire(RATE_LIMIT_BUCKET_TTL)),
+                        // Historical issue searches are scoped to an installation: every index starts with it
+                        createIndex(HistoricalIssueEntity.class, new Index()
+                                .on("user_installation_id", Sort.Direction.ASC)
+                                .on("found_at", Sort.Direction.DESC)
+                                .named("installation_found_at")),
+                        createIndex(HistoricalIssueEntity.class, new Index()
+                                .on("user_installation_id", Sort.Direction.ASC)
+                                .on("keywords", Sort.Direction.ASC)
+                                .on("found_at", Sort.Direction.DESC)
+                                .named("installation_keywords_found_at")),
+                        createIndex(HistoricalIssueEntity.class, new Index()
+                                .on("user_installation_id", Sort.Direction.ASC)
+                                .on("path_prefixes", Sort.Direction.ASC)
+                                .on("found_at", Sort.Direction.DESC)
+                                .named("installation_path_prefixes_found_at")),
+                        createIndex(HistoricalIssueEntity.class, new CompoundIndexDefinition(new Document("user_installation_id", 1)
+                                .append("resolution", "text"))
+                                .named("installation_resolution_text")),
+                        // Safety net of the retention job (see HistoricalIssueRetentionService)
+                        createIndex(HistoricalIssueEntity.class, new Index()
+                                .on("found_at", Sort.Direction.ASC)
+                                .named("found_at_ttl")
+                                .expire(retentionConfig.ttl())),
+                        createIndex(HistoricalIssueEntity.class, new Index()
+                                .on("rollup_run", Sort.Direction.ASC)
+                                .named("rollup_run")
+                                .sparse())
+                )
+                .subscribe(
+                        index -> log.info("MongoDB index ensured: {}", index),
+                        error -> log.error("Failed to ensure MongoDB indexes: {}", error.getMessage())
+                );
+    }
+
+    private Mono<String> createIndex(Class<?> entityClass, Index index) {
+        Document options = index.getIndexOptions();
+        String name = options.getString("name");
+        String collection = mongoTemplate.getCollectionName(entityClass);
+        return mongoTemplate.indexOps(entityClass).createIndex(index)
+                .onErrorResume(error -> options.containsKey("expireAfterSeconds") && isOptionsConflict(error),
+                        error -> updateExpiry(collection, name, options.get("expireAfterSeconds")))
+                .onErrorResume(error -> {
+                    log.error("Failed to ensure MongoDB index {} of {}: {}", name, collection, error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Changes the expiry of an existing TTL index.
+     */
+    private Mono<String> updateExpiry(String collection, String name, Object expireAfterSeconds) {
+        Document command = new Document("collMod", collection)
+                .append("index", new Document("name", name).append("expireAfterSeconds", expireAfterSeconds));
+        return mongoTemplate.executeCommand(command)
+                .doOnSuccess(result -> log.info("MongoDB TTL index {} of {} now expires after {} s", name, collection, expireAfterSeconds))
+                .thenReturn(name);
+    }
+
+    private static boolean isOptionsConflict(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoCommandException command && command.getErrorCode() == INDEX_OPTIONS_CONFLICT) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
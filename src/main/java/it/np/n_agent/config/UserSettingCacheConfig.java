@@ -0,0 +1,43 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Configuration of the in-memory cache of user settings, read on every PR webhook.
+ * Settings are reloaded in the background once older than {@code refresh-after-write}, while the cached ones
+ * are still served; installations without settings are remembered for {@code missing-ttl}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "user-settings.cache")
+@Data
+@Validated
+public class UserSettingCacheConfig {
+
+    @Positive
+    private long maxInstallations = 1_000;
+
+    /**
+     * Age after which the next read reloads the settings in the background.
+     */
+    @NotNull
+    private Duration refreshAfterWrite = Duration.ofMinutes(5);
+
+    /**
+     * Age after which settings not refreshed in the meantime are dropped and the next read waits for MongoDB.
+     */
+    @NotNull
+    private Duration expireAfterWrite = Duration.ofMinutes(50);
+
+    /**
+     * How long an installation without settings is answered as not found without reading MongoDB.
+     */
+    @NotNull
+    private Duration missingTtl = Duration.ofMinutes(1);
+}
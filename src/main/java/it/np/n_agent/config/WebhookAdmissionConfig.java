@@ -0,0 +1,107 @@
+package it.np.n_agent.config;
+
+import it.np.n_agent.github.enums.ActionType;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Configuration of the admission control on pull request webhooks.
+ * Each load signal has two thresholds: above {@code defer} low-priority actions are parked and retried later,
+ * above {@code reject} every pull request webhook is answered with 503 and Retry-After.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "webhook.admission")
+@Data
+@Validated
+public class WebhookAdmissionConfig {
+
+    private boolean enabled = true;
+
+    /**
+     * Pull request webhooks debouncing, queued or being processed. The pull request lane holds at most its
+     * capacity plus its workers, so {@code reject} must stay below that to ever apply.
+     */
+    @Valid
+    @NotNull
+    private Thresholds pendingAnalyses = new Thresholds(120, 180);
+
+    /**
+     * Size of the diffs held by analyses in progress, in bytes.
+     */
+    @Valid
+    @NotNull
+    private SizeThresholds diffBytes = new SizeThresholds(DataSize.ofMegabytes(64), DataSize.ofMegabytes(128));
+
+    /**
+     * AI model calls in progress, one per analyzed chunk, including those waiting for their rate-limit quota.
+     */
+    @Valid
+    @NotNull
+    private Thresholds aiCalls = new Thresholds(8, 16);
+
+    /**
+     * Pull request actions deferred first when the service is under pressure.
+     */
+    @NotNull
+    private Set<ActionType> lowPriorityActions = EnumSet.of(ActionType.EDITED, ActionType.SYNCHRONIZE);
+
+    /**
+     * Delay before a deferred webhook is admitted again.
+     */
+    @NotNull
+    private Duration deferDelay = Duration.ofSeconds(30);
+
+    /**
+     * Times a webhook can be deferred, by admission control or because its lane is full, before being enqueued
+     * regardless of load, over the lane capacity if needed.
+     */
+    @PositiveOrZero
+    private int maxDeferrals = 10;
+
+    /**
+     * Maximum number of deferred webhooks held in memory; further low-priority webhooks are rejected.
+     */
+    @Positive
+    private int maxDeferred = 500;
+
+    /**
+     * Value of the Retry-After header on 503 responses.
+     */
+    @NotNull
+    private Duration retryAfter = Duration.ofSeconds(60);
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Thresholds {
+        @Positive
+        private long defer;
+
+        @Positive
+        private long reject;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SizeThresholds {
+        @NotNull
+        private DataSize defer;
+
+        @NotNull
+        private DataSize reject;
+    }
+}
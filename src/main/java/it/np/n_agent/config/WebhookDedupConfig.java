@@ -0,0 +1,33 @@
+package it.np.n_agent.config;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+/**
+ * Configuration of webhook redelivery detection.
+ * GitHub allows manual redelivery of events up to three days old, so keys are kept at least that long.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "webhook.dedup")
+@Data
+@Validated
+public class WebhookDedupConfig {
+
+    /**
+     * How long a delivery ID or pull request head SHA is remembered, both in memory and in MongoDB.
+     */
+    @NotNull
+    private Duration ttl = Duration.ofHours(72);
+
+    /**
+     * Maximum number of keys kept in the in-memory front cache of each node.
+     */
+    @Positive
+    private long localMaxSize = 100_000;
+}
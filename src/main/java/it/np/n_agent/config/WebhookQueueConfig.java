@@ -0,0 +1,78 @@
+package it.np.n_agent.config;
+
+import it.np.n_agent.github.enums.EventType;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of the in-process webhook work queue.
+ * Every event type gets its own lane with a bounded capacity and a fixed number of workers;
+ * event types without an explicit entry in {@code lanes} fall back to {@code defaults}.
+ * Within a lane, installations are served in weighted round-robin: an installation with weight N
+ * may start up to N webhooks per round, 1 if not listed in {@code installation-weights}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "webhook.queue")
+@Data
+@Validated
+public class WebhookQueueConfig {
+
+    /**
+     * Maximum time to wait for queued and in-flight webhooks to complete on shutdown.
+     */
+    @NotNull
+    private Duration drainTimeout = Duration.ofSeconds(60);
+
+    @Valid
+    @NotNull
+    private Lane defaults = new Lane();
+
+    @Valid
+    private Map<EventType, Lane> lanes = new EnumMap<>(EventType.class);
+
+    /**
+     * Round-robin weight by installation ID, for installations entitled to a larger share of the workers.
+     */
+    private Map<Long, @Positive Integer> installationWeights = new HashMap<>();
+
+    public Lane laneFor(EventType eventType) {
+        return lanes.getOrDefault(eventType, defaults);
+    }
+
+    public int weightOf(long installationId) {
+        return installationWeights.getOrDefault(installationId, 1);
+    }
+
+    @Data
+    @Validated
+    public static class Lane {
+        @Positive(message = "Queue capacity must be positive")
+        private int capacity = 100;
+
+        @Positive(message = "Queue workers must be positive")
+        private int workers = 2;
+
+        /**
+         * Maximum webhooks of a single installation processed at the same time, 0 for no cap besides {@code workers}.
+         */
+        @PositiveOrZero
+        private int maxInFlightPerInstallation = 0;
+
+        /**
+         * Maximum webhooks of a single installation waiting in the lane, 0 for no cap besides {@code capacity}.
+         */
+        @PositiveOrZero
+        private int maxQueuedPerInstallation = 0;
+    }
+}
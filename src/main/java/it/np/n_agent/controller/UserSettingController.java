@@ -36,8 +36,8 @@ public class UserSettingController {
     @GetMapping("/{installation-id}")
     public Mono<ResponseEntity<UserSettingDto>> getUserSettings(@PathVariable(name = "installation-id") @Valid @NotNull Long installationId) {
         log.info("Retrieving user settings for installationId: {}", installationId);
-        return userSettingService.getUserSettings(installationId)
-                .map(ResponseEntity::ok)
+        return userSettingService.getInstallationRoutes(installationId)
+                .map(routes -> ResponseEntity.ok(routes.settings()))
                 .defaultIfEmpty(ResponseEntity.notFound().build())
                 .doOnSuccess(response -> {
                     if (response.getStatusCode().is2xxSuccessful())
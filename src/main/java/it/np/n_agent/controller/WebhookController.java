@@ -1,13 +1,19 @@
 package it.np.n_agent.controller;
 
 import it.np.n_agent.github.enums.EventType;
-import it.np.n_agent.service.WebhookService;
+import it.np.n_agent.service.WebhookDeduplicationService;
+import it.np.n_agent.service.WebhookPrefilterService;
+import it.np.n_agent.service.queue.AdmissionDecision;
+import it.np.n_agent.service.queue.WebhookQueueService;
 import it.np.n_agent.utilities.RequestUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
@@ -17,48 +23,67 @@ public class WebhookController {
 
     private static final Logger log = LoggerFactory.getLogger(WebhookController.class);
 
-    private final WebhookService webhookService;
+    private final WebhookQueueService webhookQueueService;
+    private final WebhookDeduplicationService deduplicationService;
+    private final WebhookPrefilterService prefilterService;
     private final RequestUtility requestUtility;
 
     @Autowired
-    public WebhookController(WebhookService webhookService,  RequestUtility requestUtility) {
-        this.webhookService = webhookService;
+    public WebhookController(WebhookQueueService webhookQueueService,
+                             WebhookDeduplicationService deduplicationService,
+                             WebhookPrefilterService prefilterService,
+                             RequestUtility requestUtility) {
+        this.webhookQueueService = webhookQueueService;
+        this.deduplicationService = deduplicationService;
+        this.prefilterService = prefilterService;
         this.requestUtility = requestUtility;
     }
 
     /**
      * GitHub webhook endpoint for receiving events (PUSH, PULL_REQUEST, INSTALLATION).
-     * Validates HMAC signature, parses payload based on event type, and processes asynchronously.
-     * Runs validation on bounded elastic scheduler to avoid blocking reactive threads.
+     * Validates HMAC signature, parses payload based on event type, and enqueues it for asynchronous processing.
+     * The body is consumed once as raw DataBuffers: the same bytes feed the HMAC and the JSON parser.
+     * Validation and parsing are CPU-bound, so they run on the parallel scheduler rather than on the Netty event loop.
+     * Pull request events that cannot trigger an analysis (action or repository triggers) are acknowledged with 200
+     * after a streaming pre-parse of a few fields, without binding the whole payload.
+     * Redeliveries (same delivery ID, or same pull request head SHA) are acknowledged with 200 and not processed again.
+     * Under load, admission control defers low-priority pull request actions (still 202) and, past the hard
+     * thresholds or when the queue for the event type is full, responds 503 with Retry-After.
      *
-     * @param rawPayload Raw JSON webhook payload from GitHub
+     * @param rawPayload Raw JSON webhook payload chunks from GitHub
      * @param eventType GitHub event type header (X-GitHub-Event)
      * @param signature HMAC SHA-256 signature for payload validation (X-Hub-Signature-256)
-     * @return Mono emitting ResponseEntity with success message if processing succeeds
-     * @throws it.np.n_agent.exception.WebhookMainException if HMAC validation fails or event type unsupported
+     * @param deliveryId unique ID of the delivery, preserved across redeliveries (X-GitHub-Delivery)
+     * @return Mono emitting 202 if the webhook was enqueued or deferred, 200 if it was a duplicate or irrelevant
+     * @throws it.np.n_agent.exception.WebhookMainException if HMAC validation fails, event type unsupported or queue full
      */
     @PostMapping("/github")
     public Mono<ResponseEntity<String>> handleWebhook(
-            @RequestBody String rawPayload,
+            @RequestBody Flux<DataBuffer> rawPayload,
             @RequestHeader("X-GitHub-Event") String eventType,
-            @RequestHeader("X-Hub-Signature-256") String signature
+            @RequestHeader("X-Hub-Signature-256") String signature,
+            @RequestHeader(value = "X-GitHub-Delivery", required = false) String deliveryId
     ) {
         log.info("=== WEBHOOK RECEIVED ===");
-        log.info("Event: {}", eventType);
+        log.info("Event: {} Delivery: {}", eventType, deliveryId);
 
-        return Mono.fromCallable(() -> {
-                    requestUtility.validateHmac(rawPayload, signature);
-                    return EventType.retrievePayload(rawPayload, eventType, requestUtility);
-                })
-                .subscribeOn(Schedulers.boundedElastic())
-                .doOnNext(payload -> { //TODO replace with a queue system for better reliability
-                    webhookService.processGithubWebhook(payload, eventType)
-                            .subscribe(
-                            result -> log.info("Webhook processed successfully"),
-                            error -> log.error("Webhook processing failed", error)
-                            );
-                })
-                .then(Mono.just(ResponseEntity.accepted().body("WEBHOOK ACCEPTED")));
+        return requestUtility.readPayload(rawPayload)
+                .publishOn(Schedulers.parallel())
+                .flatMap(buffer -> Mono.defer(() -> {
+                            requestUtility.validateHmac(buffer, signature);
+                            return prefilterService.isRelevant(buffer, eventType);
+                        })
+                        .publishOn(Schedulers.parallel())
+                        .filter(Boolean::booleanValue)
+                        .map(relevant -> EventType.retrievePayload(buffer, eventType, requestUtility))
+                        .doFinally(signal -> DataBufferUtils.release(buffer)))
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                .flatMap(payload -> deduplicationService.claim(deliveryId, eventType, payload)
+                        .map(claim -> webhookQueueService.enqueue(eventType, payload, claim))
+                        .map(decision -> ResponseEntity.accepted().body(
+                                decision == AdmissionDecision.DEFER ? "WEBHOOK DEFERRED" : "WEBHOOK ACCEPTED"))
+                        .defaultIfEmpty(ResponseEntity.ok("WEBHOOK ALREADY RECEIVED")))
+                .switchIfEmpty(Mono.fromSupplier(() -> ResponseEntity.ok("WEBHOOK IGNORED")));
     }
 
 
@@ -27,6 +27,10 @@ public class UserSettingDto {
     private List<RepositoryConfigDto> repositories;
     @Valid
     private GlobalSettingsDto globalSettings;
+    /**
+     * Version of the settings the client read; when sent, an update of settings changed since fails with 409.
+     */
+    private Long version;
 
     @Data
     @Builder
@@ -70,6 +74,7 @@ public class UserSettingDto {
             private Boolean checkComplexity;
             private Boolean detectDuplication;
             private Boolean checkTestCoverage;
+            private List<String> ignorePatterns;
             private List<String> languages;
         }
 
@@ -0,0 +1,42 @@
+package it.np.n_agent.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.time.Instant;
+
+/**
+ * Requests and estimated tokens sent to an AI model in the current minute, shared by every replica.
+ * The id is the model name. {@code blocked_until} holds the reset time announced by a provider 429.
+ * Documents of unused models expire through the TTL index on {@code updated_at} (see MongoIndexConfig).
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "ai_rate_limit")
+public class AiRateLimitBucket {
+
+    @Id
+    private String id;
+
+    @Field("window_start")
+    private Instant windowStart;
+
+    @Field("requests")
+    private int requests;
+
+    @Field("tokens")
+    private long tokens;
+
+    @Field("blocked_until")
+    private Instant blockedUntil;
+
+    @Field("updated_at")
+    private Instant updatedAt;
+}
@@ -0,0 +1,36 @@
+package it.np.n_agent.entity;
+
+import it.np.n_agent.ai.dto.CodeIssue;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Issues found by the model in a diff hunk, reused when the same hunk is analyzed again.
+ * The id is the hash of the normalized hunk, the analysis rules and the model;
+ * issue lines are stored relative to the first line of the hunk, so a moved hunk can still be reused.
+ * Documents expire through the TTL index on {@code created_at} (see MongoIndexConfig).
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "analysis_cache")
+public class AnalysisCacheEntry {
+
+    @Id
+    private String id;
+
+    @Field("issues")
+    private List<CodeIssue> issues;
+
+    @Field("created_at")
+    private Instant createdAt;
+}
@@ -7,7 +7,12 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
+/**
+ * Issue found by a past analysis. {@code keywords} and {@code path_prefixes} are search keys normalized
+ * at write time (see IssueSearchUtility), so searches match by equality on indexed fields.
+ */
 @Data
 @Builder
 @Document(collection = "historical_issue")
@@ -36,4 +41,16 @@ public class HistoricalIssueEntity {
 
     @Field("user_installation_id")
     private Long userInstallationId;
+
+    @Field("keywords")
+    private List<String> keywords;
+
+    @Field("path_prefixes")
+    private List<String> pathPrefixes;
+
+    /**
+     * Run of the retention job rolling the issue into its summary, set just before the issue is deleted.
+     */
+    @Field("rollup_run")
+    private String rollupRun;
 }
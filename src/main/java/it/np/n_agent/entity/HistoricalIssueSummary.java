@@ -0,0 +1,44 @@
+package it.np.n_agent.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.time.Instant;
+
+/**
+ * Historical issues of an installation past their retention window, counted by month and type.
+ * The id is {@code <installation>:<yyyy-MM>:<type>}; issues rolled up by later runs are added to it.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "historical_issue_summary")
+public class HistoricalIssueSummary {
+
+    @Id
+    private String id;
+
+    @Field("user_installation_id")
+    private Long userInstallationId;
+
+    @Field("month")
+    private String month;
+
+    @Field("type")
+    private String type;
+
+    @Field("issues")
+    private long issues;
+
+    @Field("total_time_to_fix")
+    private double totalTimeToFix;
+
+    @Field("updated_at")
+    private Instant updatedAt;
+}
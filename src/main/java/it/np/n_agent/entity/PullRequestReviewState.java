@@ -0,0 +1,33 @@
+package it.np.n_agent.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.time.Instant;
+
+/**
+ * Last head SHA reviewed for a pull request, the starting point of the next incremental review.
+ * The id is installation ID + repository full name + PR number.
+ * Documents expire through the TTL index on {@code reviewed_at} (see MongoIndexConfig).
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "pr_review_state")
+public class PullRequestReviewState {
+
+    @Id
+    private String id;
+
+    @Field("last_reviewed_sha")
+    private String lastReviewedSha;
+
+    @Field("reviewed_at")
+    private Instant reviewedAt;
+}
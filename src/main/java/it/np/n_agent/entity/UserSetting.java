@@ -5,6 +5,7 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
@@ -51,4 +52,9 @@ public class UserSetting {
     private LocalDateTime updatedAt;
     @Field("last_login_at")
     private LocalDateTime lastLoginAt;
+
+    // Incrementata da ogni scrittura: le modifiche parziali sono condizionate alla versione letta
+    @Version
+    @Field("version")
+    private Long version;
 }
\ No newline at end of file
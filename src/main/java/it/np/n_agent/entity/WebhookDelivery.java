@@ -0,0 +1,30 @@
+package it.np.n_agent.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.time.Instant;
+
+/**
+ * Marker of an already received webhook, used to drop GitHub redeliveries.
+ * The id is the deduplication key itself, so the unique _id index rejects the second insert.
+ * Documents expire through the TTL index on {@code created_at} (see MongoIndexConfig).
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "webhook_delivery")
+public class WebhookDelivery {
+
+    @Id
+    private String id;
+
+    @Field("created_at")
+    private Instant createdAt;
+}
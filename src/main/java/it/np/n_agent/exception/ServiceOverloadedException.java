@@ -0,0 +1,21 @@
+package it.np.n_agent.exception;
+
+import lombok.Getter;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+
+/**
+ * Raised when a webhook is shed because the service is overloaded.
+ * Mapped to 503 with a Retry-After header by the global exception handler.
+ */
+@Getter
+public class ServiceOverloadedException extends WebhookMainException {
+
+    private final Duration retryAfter;
+
+    public ServiceOverloadedException(String message, Duration retryAfter) {
+        super(message, HttpStatus.SERVICE_UNAVAILABLE);
+        this.retryAfter = retryAfter;
+    }
+}
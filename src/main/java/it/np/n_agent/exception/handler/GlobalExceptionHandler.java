@@ -1,8 +1,10 @@
 package it.np.n_agent.exception.handler;
 
+import it.np.n_agent.exception.ServiceOverloadedException;
 import it.np.n_agent.exception.WebhookMainException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.FieldError;
@@ -53,6 +55,20 @@ public class GlobalExceptionHandler {
         return Mono.just(ResponseEntity.status(ex.getStatus()).body(error));
     }
 
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public Mono<ResponseEntity<ResponseError>> handleServiceOverloadedException(ServiceOverloadedException ex) {
+        log.warn("Service overloaded: {} - retry after {}", ex.getMessage(), ex.getRetryAfter());
+        ResponseError error = ResponseError.builder()
+                .message(ex.getMessage())
+                .status(ex.getStatus().value())
+                .errorType(ex.getStatus().getReasonPhrase())
+                .timestamp(LocalDateTime.now())
+                .build();
+        return Mono.just(ResponseEntity.status(ex.getStatus())
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter().toSeconds()))
+                .body(error));
+    }
+
     @ExceptionHandler(Exception.class)
     public Mono<ResponseEntity<ResponseError>> handleGlobalException(Exception ex) {
         loggerHandle(ex);
@@ -0,0 +1,52 @@
+package it.np.n_agent.github.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Response of the GitHub compare API ({@code GET /repos/{owner}/{repo}/compare/{base}...{head}}),
+ * limited to the fields needed to review the changes between two commits.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GHCompareResponse {
+
+    private String status;  // "ahead", "behind", "diverged", "identical"
+
+    @JsonProperty("ahead_by")
+    private Integer aheadBy;
+
+    @JsonProperty("total_commits")
+    private Integer totalCommits;
+
+    private List<Commit> commits;
+    private List<File> files;
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Commit {
+        private String sha;
+        private List<Parent> parents;
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Parent {
+        private String sha;
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class File {
+        private String filename;
+
+        @JsonProperty("previous_filename")
+        private String previousFilename;
+
+        private String status;  // "added", "removed", "modified", "renamed", ...
+        private String patch;   // missing for binary files and large diffs
+    }
+}
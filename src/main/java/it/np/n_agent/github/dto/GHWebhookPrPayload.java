@@ -23,6 +23,7 @@ public class GHWebhookPrPayload {
         private Long number;
         private String title;
         private String url;
+        private Boolean draft;
 
         @JsonProperty("diff_url")
         private String diffUrl;  // Per scaricare il diff
@@ -68,11 +69,15 @@ public class GHWebhookPrPayload {
     @Data
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class Repository {
+        private Long id;
+
         @JsonProperty("full_name")
         private String fullName;  // "NicoPonziani/SecurityDemo"
 
         private String name;  // "SecurityDemo"
 
+        private String url;  // API URL, "https://api.github.com/repos/NicoPonziani/SecurityDemo"
+
         @JsonProperty("private")
         private Boolean isPrivate;
     }
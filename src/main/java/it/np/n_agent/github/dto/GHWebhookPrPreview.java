@@ -0,0 +1,19 @@
+package it.np.n_agent.github.dto;
+
+import lombok.Builder;
+
+/**
+ * Fields of a pull_request webhook needed to decide whether it can trigger an analysis,
+ * read by a streaming pass over the raw payload before binding it to {@link GHWebhookPrPayload}.
+ * Fields after an irrelevant {@code action} are not read and stay null.
+ */
+@Builder
+public record GHWebhookPrPreview(String action,
+                                 Long installationId,
+                                 Long repositoryId,
+                                 String repositoryName,
+                                 String pullRequestUrl,
+                                 Long pullRequestNumber,
+                                 String headSha,
+                                 Boolean draft
+) {}
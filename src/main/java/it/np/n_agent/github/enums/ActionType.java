@@ -1,6 +1,8 @@
 package it.np.n_agent.github.enums;
 
-import it.np.n_agent.dto.UserSettingDto;
+import java.util.EnumSet;
+import java.util.Set;
+
 import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.TriggerSettingsDto;
 
 
@@ -15,6 +17,11 @@ public enum ActionType {
     CREATED,
     REMOVED;
 
+    /**
+     * Pull request actions handled by {@link #triggerMask}; any other action never triggers an analysis.
+     */
+    private static final Set<ActionType> ANALYZABLE_PR_ACTIONS = EnumSet.of(OPENED, REOPENED, EDITED, SYNCHRONIZE);
+
     public static ActionType fromValue(String value) {
         for (ActionType actionType : ActionType.values()) {
             if (actionType.name().equalsIgnoreCase(value)) {
@@ -24,12 +31,43 @@ public enum ActionType {
         throw new IllegalArgumentException("Unknown ActionType value: " + value);
     }
 
-    public static boolean isValidActionPR(TriggerSettingsDto setting,String action) {
-        return switch(fromValue(action)){
-            case OPENED -> setting.getOnPROpen();
-            case REOPENED -> setting.getOnPRReopen();
-            case EDITED -> setting.getOnPRUpdate();
-            default -> false;
-        };
+    public static boolean isAnalyzableActionPR(String action) {
+        for (ActionType actionType : ANALYZABLE_PR_ACTIONS) {
+            if (actionType.name().equalsIgnoreCase(action)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bit of the action in a trigger mask.
+     */
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * Pull request actions enabled by trigger settings, as a mask of {@link #bit()}s:
+     * onPROpen enables OPENED, onPRReopen REOPENED, onPRUpdate EDITED and SYNCHRONIZE.
+     *
+     * @param setting trigger settings of a repository, may be null
+     * @return mask of the enabled actions, 0 if none
+     */
+    public static int triggerMask(TriggerSettingsDto setting) {
+        if (setting == null) {
+            return 0;
+        }
+        int mask = 0;
+        if (Boolean.TRUE.equals(setting.getOnPROpen())) {
+            mask |= OPENED.bit();
+        }
+        if (Boolean.TRUE.equals(setting.getOnPRReopen())) {
+            mask |= REOPENED.bit();
+        }
+        if (Boolean.TRUE.equals(setting.getOnPRUpdate())) {
+            mask |= EDITED.bit() | SYNCHRONIZE.bit();
+        }
+        return mask;
     }
 }
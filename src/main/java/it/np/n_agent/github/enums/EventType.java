@@ -6,6 +6,7 @@ import it.np.n_agent.github.dto.GHWebhookInstallationRepoPayload;
 import it.np.n_agent.github.dto.GHWebhookPrPayload;
 import it.np.n_agent.utilities.RequestUtility;
 import lombok.Getter;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
 
 @Getter
@@ -37,7 +38,7 @@ public enum EventType {
         return OTHER;
     }
 
-    public static Object retrievePayload(String payload,String eventType,RequestUtility requestUtility){
+    public static Object retrievePayload(DataBuffer payload,String eventType,RequestUtility requestUtility){
         EventType type = fromValue(eventType);
         if(type.getPayloadClass() != null){
             return requestUtility.parsePayload(payload, type.getPayloadClass());
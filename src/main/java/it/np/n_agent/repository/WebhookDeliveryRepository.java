@@ -0,0 +1,9 @@
+package it.np.n_agent.repository;
+
+import it.np.n_agent.entity.WebhookDelivery;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface WebhookDeliveryRepository extends ReactiveMongoRepository<WebhookDelivery, String> {
+}
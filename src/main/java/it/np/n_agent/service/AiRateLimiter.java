@@ -0,0 +1,383 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.np.n_agent.config.AiRateLimitConfig;
+import it.np.n_agent.config.AiRateLimitConfig.ModelLimits;
+import it.np.n_agent.entity.AiRateLimitBucket;
+import it.np.n_agent.exception.AiAnalysisException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.metadata.RateLimit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Keeps AI calls within the requests-per-minute and tokens-per-minute quota of each model, across replicas.
+ *
+ * Each model has one bucket in the {@code ai_rate_limit} collection counting the requests and estimated tokens
+ * of the current minute; a call is admitted by a conditional {@code $inc} that only matches while both stay within
+ * the quota, so concurrent replicas never overshoot it. Callers over quota wait in a per-node FIFO queue: the head
+ * retries when the window rolls over, the callers behind it keep their order, so large calls are not starved by small ones.
+ *
+ * A provider 429 blocks the bucket until the reset announced by {@code Retry-After}, {@code retry-after-ms}
+ * or {@code x-ratelimit-reset-*}, for every replica, and the call is queued again instead of failing.
+ * If MongoDB is unavailable calls are admitted: the provider 429s are still honored.
+ */
+@Service
+public class AiRateLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(AiRateLimiter.class);
+
+    private static final Duration WINDOW = Duration.ofMinutes(1);
+    private static final Duration CONTENDED = Duration.ofMillis(10);
+    private static final long MAX_JITTER_MILLIS = 250;
+    private static final Pattern RESET_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final AiRateLimitConfig config;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, ModelQueue> queues = new ConcurrentHashMap<>();
+
+    @Autowired
+    public AiRateLimiter(ReactiveMongoTemplate mongoTemplate, AiRateLimitConfig config, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.config = config;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Runs an AI call once the model quota admits it; a call rejected with 429 waits for the announced reset
+     * and is queued again, up to {@code max-throttle-retries} times.
+     *
+     * @param model model name
+     * @param estimatedTokens estimated prompt plus completion tokens of the call
+     * @param call cold AI call, subscribed again on retry
+     * @return the call output
+     * @throws AiAnalysisException if the call waited longer than {@code max-wait}
+     */
+    public <T> Flux<T> limit(String model, int estimatedTokens, Flux<T> call) {
+        if (!config.isEnabled()) {
+            return call;
+        }
+        return Flux.defer(() -> acquire(model, estimatedTokens).thenMany(call))
+                .retryWhen(Retry.max(config.getMaxThrottleRetries())
+                        .filter(error -> rateLimitedFor(error) != null)
+                        .doBeforeRetryAsync(signal -> {
+                            Duration wait = rateLimitedFor(signal.failure());
+                            queueOf(model).providerThrottles.increment();
+                            log.warn("AI provider rate limit hit for {}, retrying in {} ms", model, wait.toMillis());
+                            return block(model, wait);
+                        })
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+    }
+
+    /**
+     * Blocks a model when a successful response reports an exhausted quota, ahead of the next 429.
+     *
+     * @param model model name
+     * @param rateLimit rate limit metadata of the response, may be null or empty
+     */
+    public void observe(String model, RateLimit rateLimit) {
+        if (!config.isEnabled() || rateLimit == null) {
+            return;
+        }
+        Duration wait = Duration.ZERO;
+        if (isExhausted(rateLimit.getRequestsLimit(), rateLimit.getRequestsRemaining()) && rateLimit.getRequestsReset() != null) {
+            wait = rateLimit.getRequestsReset();
+        }
+        if (isExhausted(rateLimit.getTokensLimit(), rateLimit.getTokensRemaining()) && rateLimit.getTokensReset() != null
+                && rateLimit.getTokensReset().compareTo(wait) > 0) {
+            wait = rateLimit.getTokensReset();
+        }
+        if (wait.isPositive()) {
+            block(model, wait).subscribe();
+        }
+    }
+
+    private static boolean isExhausted(Long limit, Long remaining) {
+        // Responses without rate limit headers report 0 for everything
+        return limit != null && limit > 0 && remaining != null && remaining == 0;
+    }
+
+    private Mono<Void> acquire(String model, int estimatedTokens) {
+        ModelQueue queue = queueOf(model);
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(estimatedTokens, sink, System.nanoTime(), new AtomicBoolean());
+            sink.onCancel(() -> waiter.cancelled().set(true));
+            queue.waiters.offer(waiter);
+            queue.drain();
+        });
+    }
+
+    private ModelQueue queueOf(String model) {
+        return queues.computeIfAbsent(model, ModelQueue::new);
+    }
+
+    /**
+     * Tries to admit a call in the current window of a model.
+     *
+     * @return Mono emitting zero if the call is admitted, otherwise how long to wait before trying again
+     */
+    private Mono<Duration> reserve(String model, int estimatedTokens) {
+        Instant now = Instant.now();
+        Instant window = now.truncatedTo(ChronoUnit.MINUTES);
+        ModelLimits limits = config.limitsOf(model);
+        // A call larger than the whole quota is admitted alone in an empty window
+        long tokens = Math.min(estimatedTokens, limits.getTokensPerMinute());
+
+        return mongoTemplate.updateFirst(
+                        query(where("_id").is(model)
+                                .and("window_start").is(window)
+                                .and("requests").lt(limits.getRequestsPerMinute())
+                                .and("tokens").lte(limits.getTokensPerMinute() - tokens)
+                                .and("blocked_until").not().gt(now)),
+                        new Update().inc("requests", 1).inc("tokens", tokens).set("updated_at", now),
+                        AiRateLimitBucket.class)
+                .flatMap(result -> result.getModifiedCount() > 0
+                        ? Mono.just(Duration.ZERO)
+                        : mongoTemplate.findById(model, AiRateLimitBucket.class)
+                                .flatMap(bucket -> retryAfter(bucket, window, now, tokens))
+                                .switchIfEmpty(Mono.defer(() -> open(model, window, now, tokens))))
+                .onErrorResume(error -> {
+                    log.warn("AI rate limit store unavailable, admitting call to {}: {}", model, error.toString());
+                    return Mono.just(Duration.ZERO);
+                });
+    }
+
+    private Mono<Duration> retryAfter(AiRateLimitBucket bucket, Instant window, Instant now, long tokens) {
+        if (bucket.getBlockedUntil() != null && bucket.getBlockedUntil().isAfter(now)) {
+            return Mono.just(Duration.between(now, bucket.getBlockedUntil()));
+        }
+        if (bucket.getWindowStart() == null || bucket.getWindowStart().isBefore(window)) {
+            // First call of a new minute: reset the counters, unless another replica did it first
+            return mongoTemplate.updateFirst(
+                            query(where("_id").is(bucket.getId())
+                                    .and("window_start").is(bucket.getWindowStart())
+                                    .and("blocked_until").not().gt(now)),
+                            new Update().set("window_start", window).set("requests", 1).set("tokens", tokens).set("updated_at", now),
+                            AiRateLimitBucket.class)
+                    .map(result -> result.getModifiedCount() > 0 ? Duration.ZERO : CONTENDED);
+        }
+        Duration untilNextWindow = Duration.between(now, bucket.getWindowStart().plus(WINDOW));
+        return Mono.just(untilNextWindow.isPositive() ? untilNextWindow : CONTENDED);
+    }
+
+    private Mono<Duration> open(String model, Instant window, Instant now, long tokens) {
+        return mongoTemplate.insert(AiRateLimitBucket.builder()
+                        .id(model)
+                        .windowStart(window)
+                        .requests(1)
+                        .tokens(tokens)
+                        .updatedAt(now)
+                        .build())
+                .thenReturn(Duration.ZERO)
+                .onErrorResume(DuplicateKeyException.class, error -> Mono.just(CONTENDED));
+    }
+
+    /**
+     * Blocks a model for every replica until the given delay has elapsed; an existing longer block is kept.
+     */
+    private Mono<Void> block(String model, Duration wait) {
+        Instant now = Instant.now();
+        Instant until = now.plus(wait);
+        return mongoTemplate.upsert(
+                        query(where("_id").is(model).and("blocked_until").not().gte(until)),
+                        new Update().set("blocked_until", until).set("updated_at", now),
+                        AiRateLimitBucket.class)
+                .onErrorResume(DuplicateKeyException.class, error -> Mono.empty())
+                .onErrorResume(error -> {
+                    log.warn("Failed to share AI rate limit block of {}: {}", model, error.toString());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Delay before retrying a call rejected by the provider, null if the error is not a rate limit.
+     * Streaming calls surface the raw 429 response, whose headers announce when the quota resets.
+     */
+    private Duration rateLimitedFor(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof WebClientResponseException response && response.getStatusCode().value() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                Duration wait = retryDelay(response.getHeaders());
+                return wait != null && wait.isPositive() ? wait : config.getDefaultBackoff();
+            }
+        }
+        return null;
+    }
+
+    private static Duration retryDelay(HttpHeaders headers) {
+        String retryAfterMs = headers.getFirst("retry-after-ms");
+        if (retryAfterMs != null) {
+            try {
+                return Duration.ofMillis((long) Double.parseDouble(retryAfterMs.trim()));
+            } catch (NumberFormatException ignored) {
+                // fall through to the other headers
+            }
+        }
+        String retryAfter = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter != null) {
+            try {
+                return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException notSeconds) {
+                try {
+                    return Duration.between(Instant.now(), ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+                } catch (DateTimeParseException ignored) {
+                    // fall through to the reset headers
+                }
+            }
+        }
+        Duration requests = "0".equals(headers.getFirst("x-ratelimit-remaining-requests")) ? resetDuration(headers.getFirst("x-ratelimit-reset-requests")) : null;
+        Duration tokens = "0".equals(headers.getFirst("x-ratelimit-remaining-tokens")) ? resetDuration(headers.getFirst("x-ratelimit-reset-tokens")) : null;
+        if (requests == null && tokens == null) {
+            // Remaining counts missing: wait for the later of the two resets
+            requests = resetDuration(headers.getFirst("x-ratelimit-reset-requests"));
+            tokens = resetDuration(headers.getFirst("x-ratelimit-reset-tokens"));
+        }
+        if (requests == null) {
+            return tokens;
+        }
+        return tokens == null || requests.compareTo(tokens) > 0 ? requests : tokens;
+    }
+
+    /**
+     * Parses the OpenAI reset format, e.g. {@code 20ms}, {@code 1s}, {@code 6m0s} or {@code 1h2m3.5s}.
+     */
+    private static Duration resetDuration(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        Matcher matcher = RESET_PART.matcher(value.trim());
+        double millis = 0;
+        boolean found = false;
+        while (matcher.find()) {
+            found = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            millis += switch (matcher.group(2)) {
+                case "h" -> amount * 3_600_000;
+                case "m" -> amount * 60_000;
+                case "s" -> amount * 1_000;
+                default -> amount;
+            };
+        }
+        return found ? Duration.ofMillis((long) Math.ceil(millis)) : null;
+    }
+
+    private record Waiter(int tokens, MonoSink<Void> sink, long enqueuedNanos, AtomicBoolean cancelled) {}
+
+    /**
+     * Callers of a model waiting for the quota, admitted one at a time in arrival order.
+     * A single drain runs at a time; it is resumed by the bucket store responses and by the wait timers.
+     */
+    private final class ModelQueue {
+
+        private final String model;
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final Timer waitTimer;
+        private final Counter localThrottles;
+        private final Counter providerThrottles;
+
+        private ModelQueue(String model) {
+            this.model = model;
+            this.waitTimer = Timer.builder("ai.ratelimit.wait")
+                    .tag("model", model)
+                    .description("Time AI calls waited for the rate limit quota")
+                    .register(meterRegistry);
+            this.localThrottles = Counter.builder("ai.ratelimit.throttled")
+                    .tag("model", model)
+                    .tag("source", "quota")
+                    .description("AI calls delayed by the rate limiter")
+                    .register(meterRegistry);
+            this.providerThrottles = Counter.builder("ai.ratelimit.throttled")
+                    .tag("model", model)
+                    .tag("source", "provider")
+                    .description("AI calls delayed by the rate limiter")
+                    .register(meterRegistry);
+            Gauge.builder("ai.ratelimit.queue", waiters, Queue::size)
+                    .tag("model", model)
+                    .description("AI calls waiting for the rate limit quota")
+                    .register(meterRegistry);
+        }
+
+        private void drain() {
+            if (draining.compareAndSet(false, true)) {
+                next();
+            }
+        }
+
+        private void next() {
+            Waiter head = waiters.peek();
+            while (head != null && head.cancelled().get()) {
+                waiters.poll();
+                head = waiters.peek();
+            }
+            if (head == null) {
+                draining.set(false);
+                // A caller may have arrived after the queue was seen empty
+                if (!waiters.isEmpty()) {
+                    drain();
+                }
+                return;
+            }
+
+            Waiter waiter = head;
+            long waitedNanos = System.nanoTime() - waiter.enqueuedNanos();
+            if (waitedNanos > config.getMaxWait().toNanos()) {
+                waiters.poll();
+                waiter.sink().error(new AiAnalysisException("AI rate limit wait exceeded for model " + model, HttpStatus.TOO_MANY_REQUESTS));
+                next();
+                return;
+            }
+
+            reserve(model, waiter.tokens()).subscribe(wait -> {
+                if (wait.isZero()) {
+                    waiters.poll();
+                    waitTimer.record(System.nanoTime() - waiter.enqueuedNanos(), TimeUnit.NANOSECONDS);
+                    waiter.sink().success();
+                    next();
+                } else {
+                    if (wait.compareTo(CONTENDED) > 0) {
+                        localThrottles.increment();
+                        log.info("AI rate limit of {} reached, {} calls waiting {} ms", model, waiters.size(), wait.toMillis());
+                    }
+                    // Jitter keeps the replicas from retrying in lockstep at the window boundary
+                    Mono.delay(wait.plusMillis(ThreadLocalRandom.current().nextLong(MAX_JITTER_MILLIS)))
+                            .subscribe(ignored -> next());
+                }
+            });
+        }
+    }
+}
@@ -1,92 +1,377 @@
 package it.np.n_agent.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import it.np.n_agent.ai.dto.AnalysisEvent;
 import it.np.n_agent.ai.dto.CodeAnalysisResult;
 import it.np.n_agent.ai.enums.RecommendationEnum;
 import it.np.n_agent.ai.functions.HistoricalIssuesFunction;
+import it.np.n_agent.ai.prompt.PromptTemplateRegistry;
+import it.np.n_agent.ai.routing.AiModelRouter;
+import it.np.n_agent.ai.routing.AiModelRouter.Route;
+import it.np.n_agent.ai.routing.ChatClientPool;
+import it.np.n_agent.ai.similarity.IssueSimilarityIndex;
+import it.np.n_agent.ai.stream.CodeIssueStreamParser;
+import it.np.n_agent.ai.tokenizer.TokenEstimator;
+import it.np.n_agent.config.AnalysisChunkingConfig;
 import it.np.n_agent.entity.HistoricalIssueEntity;
 import it.np.n_agent.exception.AiAnalysisException;
-import it.np.n_agent.exception.MongoDbException;
-import it.np.n_agent.repository.IssueRepository;
+import it.np.n_agent.service.AnalysisCacheService.CacheLookup;
+import it.np.n_agent.service.HistoricalContextService.HistoricalContext;
+import it.np.n_agent.utilities.AnalysisMergeUtility;
+import it.np.n_agent.utilities.DiffUtility;
+import it.np.n_agent.utilities.DiffUtility.DiffChunk;
+import it.np.n_agent.utilities.IssueSearchUtility;
 import it.np.n_agent.utilities.PromptUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.converter.BeanOutputConverter;
 import org.springframework.ai.support.ToolCallbacks;
-import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.ai.tool.ToolCallback;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
+import reactor.core.publisher.SignalType;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.AnalysisRulesDto;
-import static it.np.n_agent.utilities.ResourceUtility.loadPromptAsString;
 
 @Service
 public class AiService {
 
     private final static Logger log = LoggerFactory.getLogger(AiService.class);
 
-    private final ChatClient chatModel;
-    private final IssueRepository issueRepository;
+    private static final String INSTRUCTIONS_PROMPT = "historical_issue_prompt.md";
+    private static final String CONTEXT_PROMPT = "historical_context_prompt.md";
+    private static final String RULES_PROMPT = "user_analysis_rules.md";
 
-    public AiService(@Qualifier("OPEN_AI") ChatClient chatModel, IssueRepository issueRepository, ObjectMapper objectMapper){
-        this.chatModel = chatModel;
-        this.issueRepository = issueRepository;
+    private final ChatClientPool clientPool;
+    private final AiModelRouter modelRouter;
+    private final HistoricalIssueWriter issueWriter;
+    private final ObjectMapper objectMapper;
+    private final BeanOutputConverter<CodeAnalysisResult> analysisConverter;
+    private final AnalysisChunkingConfig chunkingConfig;
+    private final AnalysisCacheService analysisCache;
+    private final TokenEstimator tokenEstimator;
+    private final PromptTemplateRegistry promptTemplates;
+    private final AiRateLimiter rateLimiter;
+    private final HistoricalContextService historyService;
+    private final IssueSimilarityIndex similarityIndex;
+    private final AnalysisLoadTracker loadTracker;
+    private final ToolCallback[] historicalIssueTools;
+    private final String formatInstructions;
+    private final Map<String, Integer> diffBudgets;
+
+    public AiService(ChatClientPool clientPool, AiModelRouter modelRouter, HistoricalIssueWriter issueWriter, ObjectMapper objectMapper,
+                     AnalysisChunkingConfig chunkingConfig, AnalysisCacheService analysisCache, TokenEstimator tokenEstimator,
+                     PromptTemplateRegistry promptTemplates, AiRateLimiter rateLimiter, HistoricalContextService historyService,
+                     HistoricalIssueSearchService issueSearch, IssueSimilarityIndex similarityIndex, AnalysisLoadTracker loadTracker){
+        this.clientPool = clientPool;
+        this.modelRouter = modelRouter;
+        this.issueWriter = issueWriter;
+        this.objectMapper = objectMapper;
+        this.chunkingConfig = chunkingConfig;
+        this.analysisCache = analysisCache;
+        this.tokenEstimator = tokenEstimator;
+        this.promptTemplates = promptTemplates;
+        this.rateLimiter = rateLimiter;
+        this.historyService = historyService;
+        this.similarityIndex = similarityIndex;
+        this.loadTracker = loadTracker;
+        // The tool function is stateless, the installation comes with the tool context:
+        // its callbacks are resolved by reflection once, not per call
+        this.historicalIssueTools = ToolCallbacks.from(new HistoricalIssuesFunction(similarityIndex, issueSearch));
+        this.analysisConverter = new BeanOutputConverter<>(CodeAnalysisResult.class, objectMapper);
+        // The format instructions are generated from the result schema: computed once, like the templates
+        this.formatInstructions = System.lineSeparator() + analysisConverter.getFormat();
+        // Prompt template without the diff, rendered with default rules: rules only change a few words
+        // Instructions of the larger history mode: both can run when TOOL mode is sampled
+        int instructionsTokens = Math.max(tokenEstimator.count(promptTemplates.text(INSTRUCTIONS_PROMPT)),
+                tokenEstimator.count(promptTemplates.text(CONTEXT_PROMPT)) + historyService.maxContextTokens());
+        int promptTokens = instructionsTokens
+                + tokenEstimator.count(PromptUtility.generatePullRequestPrompt(promptTemplates.get(RULES_PROMPT), AnalysisRulesDto.builder().build(), "", formatInstructions));
+        this.diffBudgets = clientPool.models().stream()
+                .collect(Collectors.toUnmodifiableMap(Function.identity(), model -> chunkingConfig.diffBudget(model, promptTokens)));
+        log.info("AI analysis prompt template {} tokens, diff budget per call by model {}", promptTokens, diffBudgets);
     }
 
     /**
      * Analyzes code diff using AI model with configured analysis rules.
-     * Sends diff to OpenAI GPT model with historical issues context via function calling.
-     * Runs on bounded elastic scheduler to handle potentially blocking AI API calls.
+     * Sends diff to OpenAI GPT model with historical issues context, inlined from the prefetched issues
+     * or, in TOOL mode, via function calling.
+     * The completion is streamed over the non-blocking OpenAI client and aggregated before conversion,
+     * so no thread is held while waiting for tokens. The JSON format instructions are appended to the user
+     * message here, since streaming requests do not get them from {@code entity()}.
+     * Cancelling the returned Mono closes the HTTP exchange.
+     *
+     * Hunks already analyzed by the installation model with the same rules are taken from the {@link AnalysisCacheService};
+     * only the others are sent to the model, chosen by the {@link AiModelRouter} from their size. Diffs larger than the token budget of a call are packed into
+     * chunks on file boundaries and the chunks are analyzed concurrently, then merged by {@link AnalysisMergeUtility}. A failed chunk is reported in the summary
+     * instead of failing the whole review; the analysis fails only if every chunk fails.
+     * Every call waits for the quota of the model in the {@link AiRateLimiter}; each call, one per chunk,
+     * is counted by the {@link AnalysisLoadTracker} for admission control.
      *
      * @param diff Git diff content to analyze
      * @param rules Analysis rules configuration (null pointer prediction, debt estimation, etc.)
+     * @param aiModel model selected in the installation global settings, the most capable model to use; may be null
+     * @param history historical issues prefetched by the {@link HistoricalContextService}
      * @return Mono emitting CodeAnalysisResult with detected issues and recommendations
      * @throws AiAnalysisException if AI analysis fails
      */
-    public Mono<CodeAnalysisResult> analyzeDiff(String diff, AnalysisRulesDto rules){
-        log.info("Analyzing diff START");
+    public Mono<CodeAnalysisResult> analyzeDiff(String diff, AnalysisRulesDto rules, String aiModel, HistoricalContext history){
+        String ceiling = modelRouter.ceiling(aiModel);
+        return analysisCache.lookup(diff, rules, ceiling).flatMap(lookup -> {
+            Route route = modelRouter.route(lookup.missedDiff(), ceiling);
+            List<DiffChunk> chunks = chunksOf(lookup.missedDiff(), route.model());
+            if (!lookup.hasHits() && chunks.size() == 1) {
+                return analyzeAndCache(diff, rules, route, history);
+            }
+
+            log.info("Analyzing diff in {} chunks, {} cached hunks", chunks.size(), lookup.hits());
+            ChunkResults results = new ChunkResults(lookup);
+            return Flux.fromIterable(chunks)
+                    .flatMap(chunk -> analyzeAndCache(chunk.content(), rules, route, history)
+                                    .doOnNext(result -> results.completed(chunk, result))
+                                    .onErrorResume(error -> results.failed(chunk, error)),
+                            chunkingConfig.getConcurrency())
+                    .then(Mono.fromCallable(results::merge));
+        });
+    }
+
+    /**
+     * Analyzes code diff like {@link #analyzeDiff}, emitting each issue as soon as its JSON object
+     * has been generated, so comments can be published before the model finishes.
+     * Issues are extracted from the token stream by a {@link CodeIssueStreamParser}; the complete
+     * result is still converted from the whole completion and emitted last.
+     * Cached issues are emitted first; chunked diffs interleave the issues of the chunks analyzed concurrently
+     * and emit the merged result last.
+     *
+     * @param diff Git diff content to analyze
+     * @param rules Analysis rules configuration
+     * @param aiModel model selected in the installation global settings, may be null
+     * @param history historical issues prefetched by the {@link HistoricalContextService}
+     * @return Flux of {@link AnalysisEvent.IssueFound} events followed by one {@link AnalysisEvent.Completed}
+     * @throws AiAnalysisException if AI analysis fails
+     */
+    public Flux<AnalysisEvent> streamAnalysis(String diff, AnalysisRulesDto rules, String aiModel, HistoricalContext history){
+        String ceiling = modelRouter.ceiling(aiModel);
+        return analysisCache.lookup(diff, rules, ceiling).flatMapMany(lookup -> {
+            Route route = modelRouter.route(lookup.missedDiff(), ceiling);
+            List<DiffChunk> chunks = chunksOf(lookup.missedDiff(), route.model());
+            if (!lookup.hasHits() && chunks.size() == 1) {
+                return streamAndCache(diff, rules, route, history);
+            }
+
+            log.info("Streaming diff analysis in {} chunks, {} cached hunks", chunks.size(), lookup.hits());
+            ChunkResults results = new ChunkResults(lookup);
+            return Flux.fromIterable(lookup.cachedIssues())
+                    .<AnalysisEvent>map(AnalysisEvent.IssueFound::new)
+                    .concatWith(Flux.fromIterable(chunks)
+                            .flatMap(chunk -> streamAndCache(chunk.content(), rules, route, history)
+                                            .<AnalysisEvent>handle((event, sink) -> {
+                                                if (event instanceof AnalysisEvent.Completed completed) {
+                                                    results.completed(chunk, completed.result());
+                                                } else {
+                                                    sink.next(event);
+                                                }
+                                            })
+                                            .onErrorResume(error -> results.failed(chunk, error)),
+                                    chunkingConfig.getConcurrency()))
+                    .concatWith(Mono.fromCallable(() -> new AnalysisEvent.Completed(results.merge())));
+        });
+    }
+
+    private List<DiffChunk> chunksOf(String diff, String model) {
+        if (diff.isBlank()) {
+            return List.of();
+        }
+        return chunkingConfig.isEnabled()
+                ? DiffUtility.chunk(diff, tokenEstimator::count, diffBudgets.get(model))
+                : List.of(new DiffChunk(0, List.of(), diff, 0));
+    }
+
+    private Mono<CodeAnalysisResult> analyzeAndCache(String diff, AnalysisRulesDto rules, Route route, HistoricalContext history) {
+        return analyzeChunk(diff, rules, route.model(), history)
+                .delayUntil(result -> store(diff, rules, route, result));
+    }
+
+    private Flux<AnalysisEvent> streamAndCache(String diff, AnalysisRulesDto rules, Route route, HistoricalContext history) {
+        return streamChunk(diff, rules, route.model(), history)
+                .delayUntil(event -> event instanceof AnalysisEvent.Completed completed
+                        ? store(diff, rules, route, completed.result())
+                        : Mono.empty());
+    }
+
+    /**
+     * Caches the result of a call made with the installation model only: lookups are keyed by that model,
+     * so a hit must never return issues found by the cheaper model a small diff was routed to.
+     */
+    private Mono<Void> store(String diff, AnalysisRulesDto rules, Route route, CodeAnalysisResult result) {
+        return route.model().equals(route.ceiling())
+                ? analysisCache.store(diff, rules, route.ceiling(), result)
+                : Mono.empty();
+    }
+
+    private Mono<CodeAnalysisResult> analyzeChunk(String diff, AnalysisRulesDto rules, String model, HistoricalContext history){
+        log.info("Analyzing diff START with {}", model);
 
         long startNanos = System.nanoTime();
 
-        return Mono.fromSupplier(() ->
-                        chatModel.prompt(loadPromptAsString("historical_issue_prompt.md"))
-                        .user(PromptUtility.generatePullRequestPrompt("user_analysis_rules.md", rules, diff))
-                        .toolCallbacks(ToolCallbacks.from(new HistoricalIssuesFunction(issueRepository)))
-                        .call()
-                        .entity(CodeAnalysisResult.class)
-                )
-                .subscribeOn(Schedulers.boundedElastic())
+        return streamCompletion(diff, rules, model, history)
+                .collect(StringBuilder::new, StringBuilder::append)
+                .map(completion -> analysisConverter.convert(completion.toString()))
                 .doOnSuccess(response -> log.info("AI analysis completed {}",response))
-                .doFinally(st -> {
-                    switch (st){
-                        case CANCEL -> log.error("AI analysis errored after {} ms", (System.nanoTime() - startNanos) / 1_000_000);
-                        case ON_ERROR -> log.error("AI analysis cancelled after {} ms", (System.nanoTime() - startNanos) / 1_000_000);
-                        default -> log.info("AI analysis completed successfully after {} ms", (System.nanoTime() - startNanos) / 1_000_000);
-                    }
+                .doFinally(st -> logAnalysisOutcome(st, startNanos))
+                .onErrorMap(AiService::toAnalysisException);
+    }
+
+    private Flux<AnalysisEvent> streamChunk(String diff, AnalysisRulesDto rules, String model, HistoricalContext history){
+        log.info("Streaming diff analysis START with {}", model);
+
+        long startNanos = System.nanoTime();
+
+        return Flux.defer(() -> {
+                    CodeIssueStreamParser parser = new CodeIssueStreamParser(objectMapper);
+                    StringBuilder completion = new StringBuilder();
+                    return streamCompletion(diff, rules, model, history)
+                            .concatMapIterable(chunk -> {
+                                completion.append(chunk);
+                                return parser.feed(chunk);
+                            })
+                            .<AnalysisEvent>map(AnalysisEvent.IssueFound::new)
+                            .concatWith(Mono.fromCallable(() ->
+                                    new AnalysisEvent.Completed(analysisConverter.convert(completion.toString()))));
                 })
-                .onErrorMap(error -> {
-                    if (error instanceof java.util.concurrent.TimeoutException) {
-                        return new AiAnalysisException("AI analysis timeout", HttpStatus.SERVICE_UNAVAILABLE, error);
+                .doOnNext(event -> {
+                    if (event instanceof AnalysisEvent.IssueFound found) {
+                        log.info("Streamed issue after {} ms: {}:{}", (System.nanoTime() - startNanos) / 1_000_000,
+                                found.issue().getFile(), found.issue().getLine());
                     }
-                    return new AiAnalysisException("Failed to analyze code diff", HttpStatus.INTERNAL_SERVER_ERROR, error);
-                });
+                })
+                .doFinally(st -> logAnalysisOutcome(st, startNanos))
+                .onErrorMap(AiService::toAnalysisException);
+    }
+
+    private Flux<String> streamCompletion(String diff, AnalysisRulesDto rules, String model, HistoricalContext history) {
+        return Flux.defer(() -> {
+            // Only the issues of the files of this diff (or chunk) are inlined
+            String instructions = history.isPrefetch()
+                    ? promptTemplates.get(CONTEXT_PROMPT).render(new Object[]{historyService.contextFor(diff, history)})
+                    : promptTemplates.text(INSTRUCTIONS_PROMPT);
+            String userPrompt = PromptUtility.generatePullRequestPrompt(promptTemplates.get(RULES_PROMPT), rules, diff, formatInstructions);
+            int estimatedPrompt = tokenEstimator.count(instructions) + tokenEstimator.count(userPrompt);
+            // The provider counts the requested completion tokens against the quota too
+            int estimatedTokens = estimatedPrompt + chunkingConfig.expectedOutputTokens(model);
+            AtomicReference<Usage> usage = new AtomicReference<>();
+
+            // Latency is measured from the request, after the rate limiter admitted the call
+            Flux<ChatResponse> call = Flux.defer(() -> {
+                long callStartNanos = System.nanoTime();
+                ChatClient.ChatClientRequestSpec request = clientPool.client(model).prompt(instructions).user(userPrompt);
+                if (!history.isPrefetch()) {
+                    request = request.toolCallbacks(historicalIssueTools)
+                            .toolContext(Map.of(HistoricalIssuesFunction.INSTALLATION_ID, history.installationId()));
+                }
+                return request.stream()
+                        .chatResponse()
+                        .doOnNext(response -> {
+                            Usage reported = response.getMetadata().getUsage();
+                            if (reported != null && reported.getPromptTokens() != null && reported.getPromptTokens() > 0) {
+                                usage.set(reported);
+                            }
+                            rateLimiter.observe(model, response.getMetadata().getRateLimit());
+                        })
+                        .doOnComplete(() -> {
+                            long callNanos = System.nanoTime() - callStartNanos;
+                            modelRouter.recordCall(model, callNanos, usage.get());
+                            historyService.recordCall(history.mode(), callNanos, usage.get());
+                        });
+            });
+
+            // Counted while waiting for its quota too: a chunked diff holds one call per chunk
+            return loadTracker.aiCall(rateLimiter.limit(model, estimatedTokens, call))
+                    .mapNotNull(response -> response.getResult() == null || response.getResult().getOutput() == null
+                            ? null
+                            : response.getResult().getOutput().getText())
+                    .doOnComplete(() -> tokenEstimator.recordUsage(estimatedPrompt, usage.get()));
+        });
+    }
+
+    private static void logAnalysisOutcome(SignalType signal, long startNanos) {
+        switch (signal){
+            case CANCEL -> log.error("AI analysis cancelled after {} ms", (System.nanoTime() - startNanos) / 1_000_000);
+            case ON_ERROR -> log.error("AI analysis errored after {} ms", (System.nanoTime() - startNanos) / 1_000_000);
+            default -> log.info("AI analysis completed successfully after {} ms", (System.nanoTime() - startNanos) / 1_000_000);
+        }
+    }
+
+    private static Throwable toAnalysisException(Throwable error) {
+        if (error instanceof AiAnalysisException) {
+            return error;
+        }
+        if (error instanceof java.util.concurrent.TimeoutException) {
+            return new AiAnalysisException("AI analysis timeout", HttpStatus.SERVICE_UNAVAILABLE, error);
+        }
+        return new AiAnalysisException("Failed to analyze code diff", HttpStatus.INTERNAL_SERVER_ERROR, error);
+    }
+
+    /**
+     * Partial results of a chunked analysis, including the cached hunks as a chunk of their own.
+     * Chunks complete concurrently, hence the concurrent collections.
+     */
+    private static final class ChunkResults {
+        private final Map<DiffChunk, CodeAnalysisResult> completed = new ConcurrentHashMap<>();
+        private final Set<DiffChunk> failed = ConcurrentHashMap.newKeySet();
+        private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+        private ChunkResults(CacheLookup lookup) {
+            if (lookup.hasHits()) {
+                completed.put(new DiffChunk(-1, lookup.cachedFiles(), "", 0), lookup.cachedResult());
+            }
+        }
+
+        private void completed(DiffChunk chunk, CodeAnalysisResult result) {
+            completed.put(chunk, result);
+        }
+
+        private <T> Mono<T> failed(DiffChunk chunk, Throwable error) {
+            log.warn("AI analysis of chunk {} ({}) failed: {}", chunk.index(), chunk.files(), error.getMessage());
+            failed.add(chunk);
+            firstError.compareAndSet(null, error);
+            return Mono.empty();
+        }
+
+        private CodeAnalysisResult merge() {
+            if (completed.isEmpty()) {
+                throw new AiAnalysisException("Failed to analyze every chunk of the diff", HttpStatus.INTERNAL_SERVER_ERROR, firstError.get());
+            }
+            if (!failed.isEmpty()) {
+                log.warn("AI analysis degraded: {} of {} chunks failed", failed.size(), failed.size() + completed.size());
+            }
+            return AnalysisMergeUtility.merge(completed, failed);
+        }
     }
 
     /**
      * Handles AI analysis response by saving detected issues to historical database.
      * Processes recommendation (APPROVE, REQUEST_CHANGES, COMMENT) and persists issues for future predictions.
      * If recommendation is APPROVE or no issues found, returns analysis without saving.
-     * Otherwise, maps issues to HistoricalIssueEntity and saves to MongoDB.
+     * Otherwise, maps issues to HistoricalIssueEntity and submits them to the write-behind persistence.
      *
      * @param analysis AI analysis result containing issues and recommendation
      * @param prNumber Pull request number for issue tracking
      * @param userInstallationId GitHub App installation ID for issue association
-     * @return Mono emitting the original analysis result after saving issues
-     * @throws MongoDbException if saving historical issues fails
+     * @return Mono emitting the original analysis result, without waiting for the issues to be saved
      */
     public Mono<CodeAnalysisResult> handleAiResponse(CodeAnalysisResult analysis,Long prNumber, Long userInstallationId) {
         log.info("Handling AI response with recommendation: {} \nsummary: {}",analysis.getRecommendation(), analysis.getSummary());
@@ -124,13 +409,14 @@ public class AiService {
                                 .foundAt(analysis.getAnalyzedAt())
                                 .prNumber(prNumber)
                                 .userInstallationId(userInstallationId)
+                                .keywords(IssueSearchUtility.keywordsOf(issue.getType()))
+                                .pathPrefixes(IssueSearchUtility.pathPrefixesOf(issue.getFile()))
                                 .build()
                         ).toList();
 
-                yield issueRepository.saveAll(issues)
-                        .doOnNext(saved -> log.info("Saved issue: {}", saved))
-                        .onErrorMap(error -> new MongoDbException("Failed to save historical issues", HttpStatus.INTERNAL_SERVER_ERROR, error))
-                        .then(Mono.just(analysis));
+                // Persisted in the background: the review is not held by the insert
+                issueWriter.submit(issues);
+                yield Mono.just(analysis);
             }
         };
     }
@@ -0,0 +1,357 @@
+package it.np.n_agent.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import it.np.n_agent.ai.dto.CodeAnalysisResult;
+import it.np.n_agent.ai.dto.CodeIssue;
+import it.np.n_agent.ai.enums.RecommendationEnum;
+import it.np.n_agent.config.AnalysisCacheConfig;
+import it.np.n_agent.entity.AnalysisCacheEntry;
+import it.np.n_agent.repository.AnalysisCacheRepository;
+import it.np.n_agent.utilities.DiffUtility;
+import it.np.n_agent.utilities.DiffUtility.FileDiff;
+import it.np.n_agent.utilities.DiffUtility.Hunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.AnalysisRulesDto;
+
+/**
+ * Content-addressed cache of the issues found in each diff hunk.
+ * A hunk is identified by the hash of its normalized body (without the {@code @@} positions), its file path,
+ * the analysis rules and the installation model, so a rebased PR or an update touching a few files only sends the
+ * changed hunks to the model and reuses the issues of the others.
+ * Only results of the installation model are stored, never those of a cheaper model a small diff was routed to.
+ *
+ * Lookups check a per-node Caffeine cache first, then the {@code analysis_cache} collection.
+ * MongoDB failures are logged and treated as misses: the cache never fails an analysis.
+ */
+@Service
+public class AnalysisCacheService {
+
+    private static final Logger log = LoggerFactory.getLogger(AnalysisCacheService.class);
+
+    private final AnalysisCacheRepository cacheRepository;
+    private final AnalysisCacheConfig cacheConfig;
+    private final Cache<String, List<CodeIssue>> local;
+    private final Counter localHits;
+    private final Counter storeHits;
+    private final Counter misses;
+
+    @Autowired
+    public AnalysisCacheService(AnalysisCacheRepository cacheRepository,
+                                AnalysisCacheConfig cacheConfig,
+                                MeterRegistry meterRegistry) {
+        this.cacheRepository = cacheRepository;
+        this.cacheConfig = cacheConfig;
+        this.local = Caffeine.newBuilder()
+                .maximumWeight(cacheConfig.getLocalMaxSize().toBytes())
+                .weigher(AnalysisCacheService::weigh)
+                .expireAfterWrite(cacheConfig.getTtl())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, local, "analysis.cache.local");
+        this.localHits = Counter.builder("analysis.cache.hunks")
+                .tag("result", "hit")
+                .tag("tier", "local")
+                .description("Diff hunks looked up in the analysis cache")
+                .register(meterRegistry);
+        this.storeHits = Counter.builder("analysis.cache.hunks")
+                .tag("result", "hit")
+                .tag("tier", "mongodb")
+                .description("Diff hunks looked up in the analysis cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("analysis.cache.hunks")
+                .tag("result", "miss")
+                .tag("tier", "none")
+                .description("Diff hunks looked up in the analysis cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Result of a cache lookup on a diff.
+     *
+     * @param missedDiff diff with only the hunks to send to the model, with their file headers; empty if all hit
+     * @param cachedIssues issues of the cached hunks, with lines moved to the current hunk positions
+     * @param cachedFiles files with at least one cached hunk
+     * @param hits number of cached hunks
+     */
+    public record CacheLookup(String missedDiff, List<CodeIssue> cachedIssues, List<String> cachedFiles, int hits) {
+
+        static CacheLookup none(String diff) {
+            return new CacheLookup(diff, List.of(), List.of(), 0);
+        }
+
+        public boolean hasHits() {
+            return hits > 0;
+        }
+
+        /**
+         * Partial result of the cached hunks, merged with the model result of the missed ones.
+         * Without a model opinion on these hunks, the recommendation follows the highest cached severity.
+         */
+        public CodeAnalysisResult cachedResult() {
+            CodeAnalysisResult result = new CodeAnalysisResult();
+            result.setIssues(new ArrayList<>(cachedIssues));
+            result.setSummary("Unchanged since a previous review, " + cachedIssues.size() + " issues carried over");
+            result.setRecommendation(cachedIssues.isEmpty()
+                    ? RecommendationEnum.APPROVE
+                    : cachedIssues.stream().anyMatch(AnalysisCacheService::isBlocking)
+                        ? RecommendationEnum.REQUEST_CHANGES
+                        : RecommendationEnum.COMMENT);
+            double fixTime = cachedIssues.stream()
+                    .map(CodeIssue::getEstimatedFixTime)
+                    .filter(Objects::nonNull)
+                    .mapToDouble(Double::doubleValue)
+                    .sum();
+            result.setEstimatedFixTime(cachedIssues.isEmpty() ? null : fixTime);
+            return result;
+        }
+    }
+
+    /**
+     * Looks up every hunk of a diff.
+     *
+     * @param diff filtered diff of the PR
+     * @param rules analysis rules of the repository
+     * @param model model selected by the installation, whatever model the hunks are routed to
+     * @return Mono emitting the cached issues and the diff still to analyze
+     */
+    public Mono<CacheLookup> lookup(String diff, AnalysisRulesDto rules, String model) {
+        if (!cacheConfig.isEnabled()) {
+            return Mono.just(CacheLookup.none(diff));
+        }
+        return Mono.defer(() -> lookupHunks(diff, scopeOf(rules, model)));
+    }
+
+    private Mono<CacheLookup> lookupHunks(String diff, String scope) {
+        List<FileDiff> files = DiffUtility.splitByFile(diff).stream().map(DiffUtility::parseFile).toList();
+        Map<Hunk, String> keys = new IdentityHashMap<>();
+        Map<String, List<CodeIssue>> found = new HashMap<>();
+        List<String> remote = new ArrayList<>();
+        for (FileDiff file : files) {
+            if (!isCacheable(file)) {
+                continue;
+            }
+            for (Hunk hunk : file.hunks()) {
+                String key = keyOf(scope, file.path(), hunk);
+                keys.put(hunk, key);
+                List<CodeIssue> issues = local.getIfPresent(key);
+                if (issues != null) {
+                    localHits.increment();
+                    found.put(key, issues);
+                } else {
+                    remote.add(key);
+                }
+            }
+        }
+
+        Mono<Map<String, List<CodeIssue>>> remoteHits = remote.isEmpty()
+                ? Mono.just(Map.of())
+                : cacheRepository.findAllById(remote)
+                    .doOnNext(entry -> local.put(entry.getId(), entry.getIssues()))
+                    .collectMap(AnalysisCacheEntry::getId, AnalysisCacheEntry::getIssues)
+                    .onErrorResume(error -> {
+                        log.warn("Analysis cache lookup failed, analyzing every hunk: {}", error.getMessage());
+                        return Mono.just(Map.of());
+                    });
+
+        return remoteHits.map(hits -> {
+            storeHits.increment(hits.size());
+            found.putAll(hits);
+            return assemble(files, keys, found);
+        });
+    }
+
+    /**
+     * Stores the issues the model found in an analyzed diff, one entry per hunk.
+     * Issues are assigned to the hunk containing their line, or the closest one of their file;
+     * a file with an issue without line is not cached, since its issues cannot be placed.
+     *
+     * @param analyzedDiff diff sent to the model
+     * @param rules analysis rules of the repository
+     * @param model model selected by the installation, as passed to {@link #lookup}, that produced the result
+     * @param result model result for that diff
+     * @return Mono completing when the entries are written, never failing
+     */
+    public Mono<Void> store(String analyzedDiff, AnalysisRulesDto rules, String model, CodeAnalysisResult result) {
+        if (!cacheConfig.isEnabled()) {
+            return Mono.empty();
+        }
+
+        return Mono.fromCallable(() -> entriesOf(analyzedDiff, scopeOf(rules, model), result))
+                .flatMap(entries -> {
+                    entries.forEach(entry -> local.put(entry.getId(), entry.getIssues()));
+                    return cacheRepository.saveAll(entries).then();
+                })
+                .onErrorResume(error -> {
+                    log.warn("Failed to store hunk analyses in the cache: {}", error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private CacheLookup assemble(List<FileDiff> files, Map<Hunk, String> keys, Map<String, List<CodeIssue>> found) {
+        StringBuilder missed = new StringBuilder();
+        List<CodeIssue> cachedIssues = new ArrayList<>();
+        List<String> cachedFiles = new ArrayList<>();
+        int hits = 0;
+
+        for (FileDiff file : files) {
+            if (!isCacheable(file)) {
+                missed.append(file.header());
+                file.hunks().forEach(hunk -> missed.append(hunk.text()));
+                continue;
+            }
+            StringBuilder missedHunks = new StringBuilder();
+            boolean fileHit = false;
+            for (Hunk hunk : file.hunks()) {
+                List<CodeIssue> issues = found.get(keys.get(hunk));
+                if (issues == null) {
+                    missedHunks.append(hunk.text());
+                } else {
+                    hits++;
+                    fileHit = true;
+                    issues.forEach(issue -> cachedIssues.add(copyOf(issue, issue.getLine() == null ? null : issue.getLine() + hunk.newStart())));
+                }
+            }
+            if (!missedHunks.isEmpty()) {
+                missed.append(file.header()).append(missedHunks);
+            }
+            if (fileHit) {
+                cachedFiles.add(file.path());
+            }
+        }
+
+        misses.increment(keys.size() - hits);
+        if (hits > 0) {
+            log.info("Analysis cache: {} of {} hunks reused, {} issues carried over", hits, keys.size(), cachedIssues.size());
+        }
+        return new CacheLookup(missed.toString(), cachedIssues, cachedFiles, hits);
+    }
+
+    private List<AnalysisCacheEntry> entriesOf(String analyzedDiff, String scope, CodeAnalysisResult result) {
+        List<CodeIssue> issues = result.getIssues() == null ? List.of() : result.getIssues();
+        Instant now = Instant.now();
+        List<AnalysisCacheEntry> entries = new ArrayList<>();
+
+        for (String section : DiffUtility.splitByFile(analyzedDiff)) {
+            FileDiff file = DiffUtility.parseFile(section);
+            if (!isCacheable(file)) {
+                continue;
+            }
+            List<CodeIssue> fileIssues = issues.stream().filter(issue -> sameFile(file.path(), issue.getFile())).toList();
+            if (fileIssues.stream().anyMatch(issue -> issue.getLine() == null)) {
+                continue;
+            }
+
+            Map<Hunk, List<CodeIssue>> byHunk = new HashMap<>();
+            file.hunks().forEach(hunk -> byHunk.put(hunk, new ArrayList<>()));
+            for (CodeIssue issue : fileIssues) {
+                Hunk hunk = closestHunk(file.hunks(), issue.getLine());
+                byHunk.get(hunk).add(copyOf(issue, issue.getLine() - hunk.newStart()));
+            }
+            byHunk.forEach((hunk, hunkIssues) -> entries.add(AnalysisCacheEntry.builder()
+                    .id(keyOf(scope, file.path(), hunk))
+                    .issues(hunkIssues)
+                    .createdAt(now)
+                    .build()));
+        }
+        return entries;
+    }
+
+    private static Hunk closestHunk(List<Hunk> hunks, int line) {
+        Hunk closest = hunks.getFirst();
+        int closestDistance = Integer.MAX_VALUE;
+        for (Hunk hunk : hunks) {
+            int end = hunk.newStart() + Math.max(hunk.newCount(), 1) - 1;
+            int distance = line < hunk.newStart() ? hunk.newStart() - line : Math.max(0, line - end);
+            if (distance < closestDistance) {
+                closest = hunk;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    private static boolean isCacheable(FileDiff file) {
+        return file.path() != null && !file.hunks().isEmpty();
+    }
+
+    private static boolean sameFile(String path, String issueFile) {
+        return issueFile != null && (issueFile.equals(path) || issueFile.endsWith("/" + path) || path.endsWith("/" + issueFile));
+    }
+
+    private static boolean isBlocking(CodeIssue issue) {
+        return "CRITICAL".equalsIgnoreCase(issue.getSeverity()) || "HIGH".equalsIgnoreCase(issue.getSeverity());
+    }
+
+    private static String scopeOf(AnalysisRulesDto rules, String model) {
+        return model + "\n" + (rules == null ? "default" : rules.toString());
+    }
+
+    private static String keyOf(String scope, String path, Hunk hunk) {
+        StringBuilder normalized = new StringBuilder(hunk.text().length());
+        for (String line : hunk.body().split("\n")) {
+            if (!line.startsWith("\\")) {
+                normalized.append(line.stripTrailing()).append('\n');
+            }
+        }
+        return sha256(scope + "\n" + path + "\n" + normalized);
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static CodeIssue copyOf(CodeIssue issue, Integer line) {
+        CodeIssue copy = new CodeIssue();
+        copy.setType(issue.getType());
+        copy.setSeverity(issue.getSeverity());
+        copy.setFile(issue.getFile());
+        copy.setLine(line);
+        copy.setMessage(issue.getMessage());
+        copy.setSuggestion(issue.getSuggestion());
+        copy.setCodeSnippet(issue.getCodeSnippet());
+        copy.setEstimatedFixTime(issue.getEstimatedFixTime());
+        return copy;
+    }
+
+    /**
+     * Approximate retained size of an entry in bytes, for the size-bounded local tier.
+     */
+    private static int weigh(String key, List<CodeIssue> issues) {
+        long weight = 64L + 2L * key.length();
+        for (CodeIssue issue : issues) {
+            weight += 96L + 2L * (length(issue.getType()) + length(issue.getSeverity()) + length(issue.getFile())
+                    + length(issue.getMessage()) + length(issue.getSuggestion()) + length(issue.getCodeSnippet()));
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,95 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Tracks the resources held by pull request analyses in progress: bytes of diff kept in memory
+ * and concurrent AI calls. Read by the webhook admission control.
+ */
+@Component
+public class AnalysisLoadTracker {
+
+    private final AtomicLong diffBytes = new AtomicLong();
+    private final AtomicInteger aiCalls = new AtomicInteger();
+
+    @Autowired
+    public AnalysisLoadTracker(MeterRegistry meterRegistry) {
+        Gauge.builder("analysis.load.diff_bytes", diffBytes, AtomicLong::get)
+                .description("Bytes of diff held by analyses in progress")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("analysis.load.ai_calls", aiCalls, AtomicInteger::get)
+                .description("AI analysis calls in progress")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs a pipeline on a diff, accounting for the diff size in UTF-8 bytes until the pipeline terminates or is cancelled.
+     *
+     * @param diff Mono emitting the diff
+     * @param pipeline pipeline holding the diff
+     * @return Mono emitting the pipeline result
+     */
+    public <T> Mono<T> holdingDiff(Mono<String> diff, Function<String, Mono<T>> pipeline) {
+        return diff.flatMap(content -> {
+            long size = utf8Length(content);
+            diffBytes.addAndGet(size);
+            return Mono.defer(() -> pipeline.apply(content))
+                    .doFinally(signal -> diffBytes.addAndGet(-size));
+        });
+    }
+
+    /**
+     * Counts an AI call as in progress from subscription until it terminates or is cancelled.
+     */
+    public <T> Mono<T> aiCall(Mono<T> call) {
+        return Mono.defer(() -> {
+            aiCalls.incrementAndGet();
+            return call.doFinally(signal -> aiCalls.decrementAndGet());
+        });
+    }
+
+    /**
+     * Streaming variant of {@link #aiCall(Mono)}.
+     */
+    public <T> Flux<T> aiCall(Flux<T> call) {
+        return Flux.defer(() -> {
+            aiCalls.incrementAndGet();
+            return call.doFinally(signal -> aiCalls.decrementAndGet());
+        });
+    }
+
+    /**
+     * Size of a string encoded in UTF-8, without encoding it.
+     */
+    static long utf8Length(String content) {
+        long bytes = content.length();
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c >= 0x800) {
+                // 3 bytes, or 4 for a surrogate pair: 2 extra bytes for each of its chars
+                bytes += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    public long diffBytes() {
+        return diffBytes.get();
+    }
+
+    public int aiCalls() {
+        return aiCalls.get();
+    }
+}
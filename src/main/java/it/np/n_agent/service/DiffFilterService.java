@@ -0,0 +1,213 @@
+package it.np.n_agent.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.np.n_agent.ai.tokenizer.TokenEstimator;
+import it.np.n_agent.utilities.GlobUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.AnalysisRulesDto;
+import static it.np.n_agent.utilities.DiffUtility.filePath;
+import static it.np.n_agent.utilities.DiffUtility.splitByFile;
+
+/**
+ * Drops from a PR diff the file sections the repository rules exclude, before the diff reaches the model:
+ * files matching an ignore pattern (of the repository or of {@code analysis.filter.always-ignore})
+ * and files of a known language not listed in the repository languages.
+ * Files of unknown language are kept. Compiled filters are cached by rule content, so a settings change
+ * compiles a new filter and the old one is evicted.
+ * Saved tokens are approximated from the size of the dropped sections, which are never encoded.
+ */
+@Service
+public class DiffFilterService {
+
+    private static final Logger log = LoggerFactory.getLogger(DiffFilterService.class);
+
+    private static final Map<String, Set<String>> LANGUAGE_EXTENSIONS = Map.ofEntries(
+            Map.entry("java", Set.of("java")),
+            Map.entry("kotlin", Set.of("kt", "kts")),
+            Map.entry("scala", Set.of("scala", "sc")),
+            Map.entry("groovy", Set.of("groovy", "gradle")),
+            Map.entry("javascript", Set.of("js", "jsx", "mjs", "cjs")),
+            Map.entry("typescript", Set.of("ts", "tsx", "mts", "cts")),
+            Map.entry("python", Set.of("py", "pyi")),
+            Map.entry("go", Set.of("go")),
+            Map.entry("rust", Set.of("rs")),
+            Map.entry("c", Set.of("c", "h")),
+            Map.entry("c++", Set.of("cpp", "cc", "cxx", "hpp", "hh", "hxx", "h")),
+            Map.entry("cpp", Set.of("cpp", "cc", "cxx", "hpp", "hh", "hxx", "h")),
+            Map.entry("c#", Set.of("cs")),
+            Map.entry("csharp", Set.of("cs")),
+            Map.entry("ruby", Set.of("rb")),
+            Map.entry("php", Set.of("php")),
+            Map.entry("swift", Set.of("swift")),
+            Map.entry("dart", Set.of("dart")),
+            Map.entry("sql", Set.of("sql")),
+            Map.entry("shell", Set.of("sh", "bash", "zsh")),
+            Map.entry("bash", Set.of("sh", "bash")),
+            Map.entry("html", Set.of("html", "htm")),
+            Map.entry("css", Set.of("css", "scss", "sass", "less")),
+            Map.entry("vue", Set.of("vue")),
+            Map.entry("svelte", Set.of("svelte"))
+    );
+
+    private static final Set<String> KNOWN_EXTENSIONS = LANGUAGE_EXTENSIONS.values().stream()
+            .flatMap(Set::stream)
+            .collect(Collectors.toUnmodifiableSet());
+
+    private final List<String> alwaysIgnore;
+    private final Cache<FilterKey, CompiledFilter> filters;
+    private final DistributionSummary savedBytes;
+    private final DistributionSummary savedTokens;
+    private final Counter ignoredFiles;
+    private final Counter outOfScopeFiles;
+
+    @Autowired
+    public DiffFilterService(@Value("${analysis.filter.always-ignore:}") List<String> alwaysIgnore,
+                             MeterRegistry meterRegistry) {
+        this.alwaysIgnore = alwaysIgnore.stream().map(String::trim).filter(pattern -> !pattern.isEmpty()).toList();
+        this.filters = Caffeine.newBuilder()
+                .maximumSize(1_000)
+                .recordStats()
+                .build();
+        this.savedBytes = DistributionSummary.builder("analysis.filter.saved.bytes")
+                .baseUnit("bytes")
+                .description("Diff bytes removed by ignore patterns and language scope, per analysis")
+                .register(meterRegistry);
+        this.savedTokens = DistributionSummary.builder("analysis.filter.saved.tokens")
+                .baseUnit("tokens")
+                .description("Prompt tokens saved by ignore patterns and language scope, per analysis, approximated from the size")
+                .register(meterRegistry);
+        this.ignoredFiles = Counter.builder("analysis.filter.files")
+                .tag("reason", "ignored")
+                .description("Diff file sections dropped before the analysis")
+                .register(meterRegistry);
+        this.outOfScopeFiles = Counter.builder("analysis.filter.files")
+                .tag("reason", "language")
+                .description("Diff file sections dropped before the analysis")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Removes excluded and out-of-scope files from a diff.
+     *
+     * @param diff unified diff of the PR
+     * @param rules repository analysis rules, null for defaults
+     * @return diff with only the files to analyze, empty if none is left
+     */
+    public String filter(String diff, AnalysisRulesDto rules) {
+        CompiledFilter filter = filters.get(FilterKey.of(alwaysIgnore, rules), CompiledFilter::compile);
+        if (filter.acceptsAll()) {
+            return diff;
+        }
+
+        StringBuilder kept = new StringBuilder(diff.length());
+        List<String> dropped = new ArrayList<>();
+        int tokens = 0;
+        for (String section : splitByFile(diff)) {
+            String path = filePath(section);
+            if (path == null) {
+                kept.append(section);
+            } else if (filter.isIgnored(path)) {
+                ignoredFiles.increment();
+                dropped.add(path);
+                tokens += TokenEstimator.approximate(section);
+            } else if (!filter.isInScope(path)) {
+                outOfScopeFiles.increment();
+                dropped.add(path);
+                tokens += TokenEstimator.approximate(section);
+            } else {
+                kept.append(section);
+            }
+        }
+
+        int saved = diff.length() - kept.length();
+        savedBytes.record(saved);
+        savedTokens.record(tokens);
+        if (!dropped.isEmpty()) {
+            log.info("Diff filter dropped {} files, {} chars (~{} tokens): {}", dropped.size(), saved, tokens, dropped);
+        }
+        return kept.toString();
+    }
+
+    /**
+     * Content of the rules a filter is compiled from.
+     */
+    private record FilterKey(List<String> ignorePatterns, List<String> languages) {
+
+        private static FilterKey of(List<String> alwaysIgnore, AnalysisRulesDto rules) {
+            List<String> patterns = rules == null || rules.getIgnorePatterns() == null
+                    ? alwaysIgnore
+                    : Stream.concat(alwaysIgnore.stream(), rules.getIgnorePatterns().stream()).toList();
+            List<String> languages = rules == null || rules.getLanguages() == null ? List.of() : rules.getLanguages();
+            return new FilterKey(clean(patterns), clean(languages));
+        }
+
+        private static List<String> clean(List<String> values) {
+            return values.stream().filter(Objects::nonNull).map(String::trim).filter(value -> !value.isEmpty()).toList();
+        }
+    }
+
+    /**
+     * Ignore patterns compiled into a single regular expression and allowed extensions of the repository languages.
+     */
+    private record CompiledFilter(Pattern ignored, Set<String> allowedExtensions) {
+
+        private static CompiledFilter compile(FilterKey key) {
+            Pattern ignored = key.ignorePatterns().isEmpty()
+                    ? null
+                    : Pattern.compile(String.join("|", key.ignorePatterns().stream().map(GlobUtility::toRegex).toList()));
+
+            Set<String> allowed = null;
+            if (!key.languages().isEmpty()) {
+                allowed = new HashSet<>();
+                for (String language : key.languages()) {
+                    String name = language.toLowerCase(Locale.ROOT);
+                    // Unknown language names are taken as file extensions, e.g. "vue" or "tf"
+                    allowed.addAll(LANGUAGE_EXTENSIONS.getOrDefault(name, Set.of(name)));
+                }
+            }
+            return new CompiledFilter(ignored, allowed);
+        }
+
+        private boolean acceptsAll() {
+            return ignored == null && allowedExtensions == null;
+        }
+
+        private boolean isIgnored(String path) {
+            return ignored != null && ignored.matcher(path).matches();
+        }
+
+        private boolean isInScope(String path) {
+            if (allowedExtensions == null) {
+                return true;
+            }
+            String extension = extensionOf(path);
+            return extension == null || !KNOWN_EXTENSIONS.contains(extension) || allowedExtensions.contains(extension);
+        }
+
+        private static String extensionOf(String path) {
+            int slash = path.lastIndexOf('/');
+            int dot = path.lastIndexOf('.');
+            return dot <= slash + 1 ? null : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+        }
+    }
+}
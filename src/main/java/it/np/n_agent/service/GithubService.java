@@ -1,6 +1,7 @@
 package it.np.n_agent.service;
 
 import it.np.n_agent.exception.GitHubApiException;
+import it.np.n_agent.github.dto.GHCompareResponse;
 import it.np.n_agent.github.enums.HeaderGithubUtility;
 import it.np.n_agent.service.auth.GitHubAuthService;
 import org.slf4j.Logger;
@@ -62,4 +63,37 @@ public class GithubService {
                                     .onErrorMap(error -> new GitHubApiException("Error fetching diff from GitHub", HttpStatus.BAD_GATEWAY, error))
                 );
     }
+
+    /**
+     * Retrieves the comparison between two commits of a repository, with the patch of every changed file.
+     * Same authentication, timeout and retry policy as {@link #retrieveDiff}.
+     *
+     * @param repositoryApiUrl GitHub API URL of the repository
+     * @param baseSha base commit SHA
+     * @param headSha head commit SHA
+     * @param installationId GitHub App installation ID for authentication
+     * @return Mono emitting the comparison
+     * @throws GitHubApiException if API call fails after retries or auth fails
+     */
+    public Mono<GHCompareResponse> retrieveComparison(String repositoryApiUrl, String baseSha, String headSha, Long installationId) {
+        log.info("Comparing {}...{} on {}", baseSha, headSha, repositoryApiUrl);
+        return authService.getInstallationToken(installationId)
+                .flatMap(installationToken ->
+                        githubWebClient.get()
+                                    .uri(repositoryApiUrl + "/compare/{base}...{head}", baseSha, headSha)
+                                    .header("Accept", HeaderGithubUtility.APPLICATION_VND_JSON.getHeaderValue())
+                                    .header("Authorization", "token " + installationToken)
+                                    .retrieve()
+                                    .onStatus(
+                                            status -> status.is5xxServerError() || status.is4xxClientError(),
+                                            ClientResponse::createException
+                                    )
+                                    .bodyToMono(GHCompareResponse.class)
+                                    .timeout(Duration.ofSeconds(30))
+                                    .retry(2)
+                                    .doOnSuccess(comparison -> log.info("Compared {}...{}: status {}, {} commits",
+                                            baseSha, headSha, comparison.getStatus(), comparison.getTotalCommits()))
+                                    .onErrorMap(error -> new GitHubApiException("Error comparing commits on GitHub", HttpStatus.BAD_GATEWAY, error))
+                );
+    }
 }
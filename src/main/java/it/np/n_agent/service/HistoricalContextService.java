@@ -0,0 +1,313 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.np.n_agent.ai.enums.HistoryModeEnum;
+import it.np.n_agent.ai.tokenizer.TokenEstimator;
+import it.np.n_agent.config.HistoricalContextConfig;
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static it.np.n_agent.utilities.DiffUtility.filePath;
+import static it.np.n_agent.utilities.DiffUtility.splitByFile;
+
+/**
+ * Provides the historical issues of an analysis without a tool-call round trip.
+ * The most recent issues of the installation are read while the diff is fetched; once the diff is known,
+ * the issues of the changed files, and of the issue types the added lines suggest, are ranked locally
+ * and inlined in the prompt as a compact block.
+ *
+ * Call latency and tokens are exported per mode, so PREFETCH can be compared with TOOL on live traffic
+ * through {@code analysis.history.tool-sample-rate}.
+ */
+@Service
+public class HistoricalContextService {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoricalContextService.class);
+
+    private static final String NO_HISTORY = "No past issues recorded for the files of this diff.";
+
+    /**
+     * Issue types suggested by the added lines of a diff, with the matches needed to suggest them.
+     * Types are compared lowercase without separators, e.g. NULL_POINTER as nullpointer.
+     */
+    private static final List<TypeSignal> TYPE_SIGNALS = List.of(
+            new TypeSignal("todo", Pattern.compile("\\b(?:TODO|FIXME|XXX|HACK)\\b"), 1),
+            new TypeSignal("nullpointer", Pattern.compile("\\bnull\\b|\\.get\\(\\)|Optional"), 1),
+            new TypeSignal("security", Pattern.compile("(?i)password|secret|token|credential|\\b(?:exec|eval)\\(|select\\s.+\\sfrom|innerHTML"), 1),
+            new TypeSignal("performance", Pattern.compile("\\b(?:for|while)\\s*\\(|\\.stream\\(\\)|\\.block\\(\\)|Thread\\.sleep|synchronized"), 2),
+            new TypeSignal("complexity", Pattern.compile("\\b(?:if|switch|case|catch)\\b|&&|\\|\\|"), 8),
+            new TypeSignal("debt", Pattern.compile("@Deprecated|@SuppressWarnings|\\b\\d{3,}\\b|^\\s*//\\s*\\S+\\s*\\("), 2)
+    );
+
+    private final HistoricalIssueSearchService issueSearch;
+    private final HistoricalContextConfig historyConfig;
+    private final TokenEstimator tokenEstimator;
+    private final MeterRegistry meterRegistry;
+    private final Timer prefetchTimer;
+    private final DistributionSummary inlinedIssues;
+
+    @Autowired
+    public HistoricalContextService(HistoricalIssueSearchService issueSearch,
+                                    HistoricalContextConfig historyConfig,
+                                    TokenEstimator tokenEstimator,
+                                    MeterRegistry meterRegistry) {
+        this.issueSearch = issueSearch;
+        this.historyConfig = historyConfig;
+        this.tokenEstimator = tokenEstimator;
+        this.meterRegistry = meterRegistry;
+        this.prefetchTimer = Timer.builder("analysis.history.prefetch")
+                .description("Duration of the historical issues prefetch")
+                .register(meterRegistry);
+        this.inlinedIssues = DistributionSummary.builder("analysis.history.inlined")
+                .description("Historical issues inlined in a prompt")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Historical issues of an analysis.
+     *
+     * @param mode how the issues reach the model
+     * @param candidates recent issues of the installation, empty in TOOL mode
+     * @param installationId installation the tool searches are scoped to
+     */
+    public record HistoricalContext(HistoryModeEnum mode, List<HistoricalIssueEntity> candidates, Long installationId) {
+
+        public static HistoricalContext tool(Long installationId) {
+            return new HistoricalContext(HistoryModeEnum.TOOL, List.of(), installationId);
+        }
+
+        public boolean isPrefetch() {
+            return mode == HistoryModeEnum.PREFETCH;
+        }
+    }
+
+    public boolean isPrefetchEnabled() {
+        return historyConfig.getMode() == HistoryModeEnum.PREFETCH;
+    }
+
+    /**
+     * @return tokens the prompt budget reserves for inlined issues, 0 in TOOL mode
+     */
+    public int maxContextTokens() {
+        return isPrefetchEnabled() ? historyConfig.getMaxContextTokens() : 0;
+    }
+
+    /**
+     * Reads the most recent issues of an installation. Meant to run concurrently with the diff retrieval.
+     * A failed or slow read yields a prefetch without candidates: the analysis runs without history.
+     *
+     * @param installationId GitHub App installation ID
+     * @return Mono emitting the historical context, never empty nor failing
+     */
+    public Mono<HistoricalContext> prefetch(Long installationId) {
+        if (!isPrefetchEnabled() || ThreadLocalRandom.current().nextDouble() < historyConfig.getToolSampleRate()) {
+            return Mono.just(HistoricalContext.tool(installationId));
+        }
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            return issueSearch.recent(installationId, historyConfig.getCandidateLimit())
+                    .collectList()
+                    .timeout(historyConfig.getTimeout())
+                    .doOnSuccess(issues -> prefetchTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS))
+                    .map(issues -> new HistoricalContext(HistoryModeEnum.PREFETCH, issues, installationId))
+                    .onErrorResume(error -> {
+                        log.warn("Historical issues prefetch failed for installation {}, analyzing without history: {}", installationId, error.toString());
+                        return Mono.just(new HistoricalContext(HistoryModeEnum.PREFETCH, List.of(), installationId));
+                    });
+        });
+    }
+
+    /**
+     * Renders the historical issues relevant to a diff: issues of the changed files first (same path, then same
+     * file name, then same directory), issues of a type the added lines suggest before the others, most recent first.
+     * Issues of files outside the diff are left out.
+     *
+     * @param diff diff sent to the model
+     * @param context prefetched historical context
+     * @return compact issue list for the prompt
+     */
+    public String contextFor(String diff, HistoricalContext context) {
+        if (context.candidates().isEmpty()) {
+            inlinedIssues.record(0);
+            return NO_HISTORY;
+        }
+
+        Set<String> paths = new LinkedHashSet<>();
+        for (String section : splitByFile(diff)) {
+            String path = filePath(section);
+            if (path != null) {
+                paths.add(path);
+            }
+        }
+        Set<String> names = new HashSet<>();
+        Set<String> directories = new HashSet<>();
+        paths.forEach(path -> {
+            names.add(nameOf(path));
+            directories.add(directoryOf(path));
+        });
+        Set<String> likelyTypes = likelyTypes(diff);
+
+        List<ScoredIssue> ranked = new ArrayList<>();
+        for (HistoricalIssueEntity issue : context.candidates()) {
+            int score = fileScore(issue.getRepository(), paths, names, directories);
+            if (score > 0) {
+                ranked.add(new ScoredIssue(issue, score * 2 + (likelyTypes.contains(normalizeType(issue.getType())) ? 1 : 0)));
+            }
+        }
+        // Stable sort: candidates are already the most recent first
+        ranked.sort(Comparator.comparingInt(ScoredIssue::score).reversed());
+
+        StringBuilder block = new StringBuilder();
+        Set<String> seen = new HashSet<>();
+        int tokens = 0;
+        int inlined = 0;
+        for (ScoredIssue scored : ranked) {
+            if (inlined == historyConfig.getMaxIssues()) {
+                break;
+            }
+            String line = lineOf(scored.issue());
+            if (!seen.add(line)) {
+                continue;
+            }
+            int lineTokens = tokenEstimator.count(line);
+            if (tokens + lineTokens > historyConfig.getMaxContextTokens()) {
+                break;
+            }
+            block.append(line);
+            tokens += lineTokens;
+            inlined++;
+        }
+        inlinedIssues.record(inlined);
+        return inlined == 0 ? NO_HISTORY : block.toString();
+    }
+
+    /**
+     * Records latency and tokens of a completed AI call, tagged with the history mode it used.
+     *
+     * @param mode history mode of the call
+     * @param nanos duration of the call, tool-call turns included
+     * @param usage usage reported by the model, may be null
+     */
+    public void recordCall(HistoryModeEnum mode, long nanos, Usage usage) {
+        String tag = mode.name().toLowerCase(Locale.ROOT);
+        Timer.builder("analysis.history.call")
+                .tag("mode", tag)
+                .description("Duration of the AI calls by historical issues mode")
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (usage == null) {
+            return;
+        }
+        if (usage.getPromptTokens() != null) {
+            tokensSummary(tag, "prompt").record(usage.getPromptTokens());
+        }
+        if (usage.getCompletionTokens() != null) {
+            tokensSummary(tag, "completion").record(usage.getCompletionTokens());
+        }
+    }
+
+    private DistributionSummary tokensSummary(String mode, String kind) {
+        return DistributionSummary.builder("analysis.history.call.tokens")
+                .tag("mode", mode)
+                .tag("kind", kind)
+                .baseUnit("tokens")
+                .description("Tokens of the AI calls by historical issues mode")
+                .register(meterRegistry);
+    }
+
+    private String lineOf(HistoricalIssueEntity issue) {
+        StringBuilder line = new StringBuilder("- [").append(issue.getType()).append("] ").append(issue.getRepository());
+        List<String> details = new ArrayList<>(2);
+        if (issue.getPrNumber() != null) {
+            details.add("PR #" + issue.getPrNumber());
+        }
+        if (issue.getTimeToFix() != null) {
+            details.add("~" + issue.getTimeToFix() + "h to fix");
+        }
+        if (!details.isEmpty()) {
+            line.append(" (").append(String.join(", ", details)).append(')');
+        }
+        String resolution = issue.getResolution();
+        if (resolution != null && !resolution.isBlank()) {
+            String compact = resolution.strip().replaceAll("\\s+", " ");
+            line.append(": ").append(compact.length() > historyConfig.getMaxResolutionChars()
+                    ? compact.substring(0, historyConfig.getMaxResolutionChars()) + "…"
+                    : compact);
+        }
+        return line.append('\n').toString();
+    }
+
+    private static Set<String> likelyTypes(String diff) {
+        int[] matches = new int[TYPE_SIGNALS.size()];
+        for (String line : diff.split("\n")) {
+            if (!line.startsWith("+") || line.startsWith("+++")) {
+                continue;
+            }
+            for (int i = 0; i < TYPE_SIGNALS.size(); i++) {
+                Matcher matcher = TYPE_SIGNALS.get(i).pattern().matcher(line);
+                while (matcher.find()) {
+                    matches[i]++;
+                }
+            }
+        }
+        Set<String> types = new HashSet<>();
+        for (int i = 0; i < TYPE_SIGNALS.size(); i++) {
+            if (matches[i] >= TYPE_SIGNALS.get(i).minMatches()) {
+                types.add(TYPE_SIGNALS.get(i).type());
+            }
+        }
+        return types;
+    }
+
+    private static int fileScore(String issueFile, Set<String> paths, Set<String> names, Set<String> directories) {
+        if (issueFile == null || issueFile.isBlank()) {
+            return 0;
+        }
+        for (String path : paths) {
+            if (issueFile.equals(path) || issueFile.endsWith("/" + path) || path.endsWith("/" + issueFile)) {
+                return 3;
+            }
+        }
+        if (names.contains(nameOf(issueFile))) {
+            return 2;
+        }
+        String directory = directoryOf(issueFile);
+        return !directory.isEmpty() && directories.contains(directory) ? 1 : 0;
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static String directoryOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static String normalizeType(String type) {
+        return type == null ? "" : type.toLowerCase(Locale.ROOT).replaceAll("[^a-z]", "");
+    }
+
+    private record TypeSignal(String type, Pattern pattern, int minMatches) {}
+
+    private record ScoredIssue(HistoricalIssueEntity issue, int score) {}
+}
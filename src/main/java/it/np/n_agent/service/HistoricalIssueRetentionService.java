@@ -0,0 +1,208 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import it.np.n_agent.config.HistoricalIssueRetentionConfig;
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import it.np.n_agent.entity.HistoricalIssueSummary;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.DateOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Enforces the retention window of historical issues.
+ * Every {@code analysis.history.retention.interval} the issues older than the window of their installation are
+ * claimed by the run, counted into monthly per-type summaries ({@code historical_issue_summary}) and deleted.
+ * Claiming first keeps concurrent runs of several replicas from counting an issue twice; issues of a run that
+ * died after claiming them are left to the TTL index on {@code found_at}.
+ * Each run also refreshes the per-installation size metrics.
+ */
+@Service
+public class HistoricalIssueRetentionService implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoricalIssueRetentionService.class);
+
+    private static final Duration INITIAL_DELAY = Duration.ofMinutes(1);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final HistoricalIssueRetentionConfig retentionConfig;
+    private final Counter rolledUpCounter;
+    private final MultiGauge issuesGauge;
+    private final MultiGauge oldestGauge;
+    private Disposable job;
+
+    @Autowired
+    public HistoricalIssueRetentionService(ReactiveMongoTemplate mongoTemplate,
+                                           HistoricalIssueRetentionConfig retentionConfig,
+                                           MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.retentionConfig = retentionConfig;
+        this.rolledUpCounter = Counter.builder("analysis.history.retention.rolled_up")
+                .description("Historical issues past retention rolled into summaries and deleted")
+                .register(meterRegistry);
+        this.issuesGauge = MultiGauge.builder("analysis.history.retention.issues")
+                .description("Historical issues stored, by installation")
+                .register(meterRegistry);
+        this.oldestGauge = MultiGauge.builder("analysis.history.retention.oldest")
+                .baseUnit("days")
+                .description("Age of the oldest historical issue stored, by installation")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!retentionConfig.isEnabled()) {
+            return;
+        }
+        job = Flux.interval(INITIAL_DELAY, retentionConfig.getInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> rollUp()
+                        .then(refreshMetrics())
+                        .onErrorResume(error -> {
+                            log.error("Historical issue retention run failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+        log.info("Historical issue retention every {}, default window {}, {} installation windows",
+                retentionConfig.getInterval(), retentionConfig.getDefaultWindow(), retentionConfig.getInstallations().size());
+    }
+
+    /**
+     * Rolls the issues past their retention window into the monthly summaries, then deletes them.
+     *
+     * @return Mono emitting the number of issues rolled up
+     */
+    public Mono<Long> rollUp() {
+        String run = UUID.randomUUID().toString();
+        LocalDateTime now = LocalDateTime.now();
+        return Flux.fromIterable(expiredCriteria(now))
+                .concatMap(expired -> mongoTemplate.updateMulti(
+                        query(expired.and("rollupRun").exists(false)),
+                        new Update().set("rollupRun", run),
+                        HistoricalIssueEntity.class))
+                .reduce(0L, (claimed, result) -> claimed + result.getModifiedCount())
+                .filter(claimed -> claimed > 0)
+                .flatMap(claimed -> summarize(run)
+                        .then(mongoTemplate.remove(query(where("rollupRun").is(run)), HistoricalIssueEntity.class))
+                        .map(deleted -> {
+                            rolledUpCounter.increment(deleted.getDeletedCount());
+                            log.info("Retention rolled up {} historical issues into monthly summaries", deleted.getDeletedCount());
+                            return deleted.getDeletedCount();
+                        }))
+                .defaultIfEmpty(0L);
+    }
+
+    /**
+     * Expired issues: for every installation with its own window, and for all the others with the default one.
+     */
+    private List<Criteria> expiredCriteria(LocalDateTime now) {
+        List<Criteria> criteria = new ArrayList<>();
+        retentionConfig.getInstallations().forEach((installationId, window) -> criteria.add(
+                where("userInstallationId").is(installationId).and("foundAt").lt(now.minus(window))));
+        criteria.add(where("userInstallationId").nin(retentionConfig.getInstallations().keySet())
+                .and("foundAt").lt(now.minus(retentionConfig.getDefaultWindow())));
+        return criteria;
+    }
+
+    /**
+     * Adds the issues claimed by a run to their summaries, one upsert per installation, month and type.
+     */
+    private Mono<Void> summarize(String run) {
+        Aggregation byMonth = Aggregation.newAggregation(
+                match(where("rollup_run").is(run)),
+                project("user_installation_id", "type", "time_to_fix")
+                        .and(DateOperators.DateToString.dateOf("found_at").toString("%Y-%m")).as("month"),
+                group("user_installation_id", "month", "type")
+                        .count().as("issues")
+                        .sum("time_to_fix").as("total_time_to_fix"));
+        return mongoTemplate.aggregate(byMonth, mongoTemplate.getCollectionName(HistoricalIssueEntity.class), Document.class)
+                .collectList()
+                .filter(groups -> !groups.isEmpty())
+                .flatMap(groups -> {
+                    ReactiveBulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, HistoricalIssueSummary.class);
+                    Instant updatedAt = Instant.now();
+                    groups.forEach(summary -> {
+                        Document key = summary.get("_id", Document.class);
+                        Long installationId = key.get("user_installation_id", Long.class);
+                        String month = key.getString("month");
+                        String type = key.getString("type");
+                        bulk.upsert(query(where("id").is(installationId + ":" + month + ":" + type)), new Update()
+                                .setOnInsert("userInstallationId", installationId)
+                                .setOnInsert("month", month)
+                                .setOnInsert("type", type)
+                                .inc("issues", summary.get("issues", Number.class).longValue())
+                                .inc("totalTimeToFix", summary.get("total_time_to_fix", Number.class).doubleValue())
+                                .set("updatedAt", updatedAt));
+                    });
+                    return bulk.execute();
+                })
+                .then();
+    }
+
+    /**
+     * Publishes the number of issues and the age of the oldest one of every installation.
+     */
+    private Mono<Void> refreshMetrics() {
+        Aggregation byInstallation = Aggregation.newAggregation(
+                group("user_installation_id")
+                        .count().as("issues")
+                        .min("found_at").as("oldest"));
+        Instant now = Instant.now();
+        return mongoTemplate.aggregate(byInstallation, mongoTemplate.getCollectionName(HistoricalIssueEntity.class), Document.class)
+                .filter(installation -> installation.get("_id") != null)
+                .collectList()
+                .doOnNext(installations -> {
+                    List<MultiGauge.Row<?>> issues = new ArrayList<>();
+                    List<MultiGauge.Row<?>> oldest = new ArrayList<>();
+                    for (Document installation : installations) {
+                        Tags tags = Tags.of("installation", String.valueOf(installation.get("_id")));
+                        issues.add(MultiGauge.Row.of(tags, installation.get("issues", Number.class)));
+                        Date oldestFoundAt = installation.getDate("oldest");
+                        if (oldestFoundAt != null) {
+                            oldest.add(MultiGauge.Row.of(tags, Duration.between(oldestFoundAt.toInstant(), now).toDays()));
+                        }
+                    }
+                    issuesGauge.register(issues, true);
+                    oldestGauge.register(oldest, true);
+                })
+                .then();
+    }
+
+    @Override
+    public void destroy() {
+        if (job != null) {
+            job.dispose();
+        }
+    }
+}
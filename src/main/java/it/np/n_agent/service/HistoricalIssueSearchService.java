@@ -0,0 +1,171 @@
+package it.np.n_agent.service;
+
+import it.np.n_agent.config.HistoricalContextConfig;
+import it.np.n_agent.config.HistoricalIssueRetentionConfig;
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static it.np.n_agent.utilities.IssueSearchUtility.keywordsOf;
+import static it.np.n_agent.utilities.IssueSearchUtility.normalizePath;
+import static it.np.n_agent.utilities.IssueSearchUtility.pathPrefixesOf;
+import static it.np.n_agent.utilities.IssueSearchUtility.tokensOf;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Searches the historical issues of an installation on indexed fields only.
+ * Every query starts with the installation id, the first key of all the historical_issue indexes
+ * (see MongoIndexConfig), so an installation never reads the issues of another one and a search never
+ * scans the collection. Keywords and paths are matched by equality on the search keys normalized at write
+ * time, resolutions through the text index; limit and projection are part of the query.
+ */
+@Service
+public class HistoricalIssueSearchService {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoricalIssueSearchService.class);
+
+    public static final int MAX_RESULTS = 20;
+    private static final int BACKFILL_BATCH = 500;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final HistoricalContextConfig historyConfig;
+    private final HistoricalIssueRetentionConfig retentionConfig;
+
+    @Autowired
+    public HistoricalIssueSearchService(ReactiveMongoTemplate mongoTemplate,
+                                        HistoricalContextConfig historyConfig,
+                                        HistoricalIssueRetentionConfig retentionConfig) {
+        this.mongoTemplate = mongoTemplate;
+        this.historyConfig = historyConfig;
+        this.retentionConfig = retentionConfig;
+    }
+
+    /**
+     * Most recent issues of an installation.
+     *
+     * @param installationId installation whose issues are read
+     * @param limit maximum number of issues
+     * @return issues, most recent first, empty without installation
+     */
+    public Flux<HistoricalIssueEntity> recent(Long installationId, int limit) {
+        if (installationId == null) {
+            return Flux.empty();
+        }
+        return mongoTemplate.find(project(query(scope(installationId, ""))
+                        .with(Sort.by(Sort.Direction.DESC, "foundAt"))
+                        .limit(limit)),
+                HistoricalIssueEntity.class);
+    }
+
+    /**
+     * Issues of an installation similar to a keyword: issues whose type matches one of its tokens, most recent
+     * first, then issues whose resolution matches it, most relevant first. Only the issues of the given path,
+     * directory or file name are returned when one is given.
+     *
+     * @param installationId installation whose issues are searched
+     * @param keyword issue type or free text, reduced to alphanumeric tokens
+     * @param fileOrPath file path, directory or file name, may be blank
+     * @param maxResults maximum number of issues, capped to {@value #MAX_RESULTS}
+     * @return distinct matching issues, empty without installation
+     */
+    public Flux<HistoricalIssueEntity> search(Long installationId, String keyword, String fileOrPath, int maxResults) {
+        if (installationId == null) {
+            return Flux.empty();
+        }
+        int limit = Math.clamp(maxResults, 1, MAX_RESULTS);
+        List<String> tokens = tokensOf(keyword);
+        String path = normalizePath(fileOrPath);
+
+        if (tokens.isEmpty()) {
+            return mongoTemplate.find(project(query(scope(installationId, path)).with(Sort.by(Sort.Direction.DESC, "foundAt")).limit(limit)),
+                    HistoricalIssueEntity.class);
+        }
+
+        Query byType = project(query(scope(installationId, path).and("keywords").in(tokens))
+                .with(Sort.by(Sort.Direction.DESC, "foundAt"))
+                .limit(limit));
+        // Tokens only: quotes and dashes of the keyword would be phrase and negation operators of $text
+        Query byResolution = project(TextQuery.queryText(TextCriteria.forDefaultLanguage().matchingAny(tokens.toArray(String[]::new)))
+                .sortByScore()
+                .addCriteria(scope(installationId, path))
+                .limit(limit));
+
+        return Flux.concat(
+                        mongoTemplate.find(byType, HistoricalIssueEntity.class),
+                        mongoTemplate.find(byResolution, HistoricalIssueEntity.class))
+                .distinct(HistoricalIssueEntity::getId)
+                .take(limit);
+    }
+
+    /**
+     * Writes the search keys of the issues saved before they existed, so they are found by the indexed searches.
+     * Runs once in the background at startup when {@code analysis.history.backfill-search-keys} is enabled;
+     * disabled by default, since the lookup of issues without keys is a collection scan.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillSearchKeys() {
+        if (!historyConfig.isBackfillSearchKeys()) {
+            return;
+        }
+        Query missing = query(where("keywords").exists(false));
+        missing.fields().include("repository", "type");
+        mongoTemplate.find(missing, HistoricalIssueEntity.class)
+                .buffer(BACKFILL_BATCH)
+                .concatMap(batch -> {
+                    ReactiveBulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, HistoricalIssueEntity.class);
+                    batch.forEach(issue -> bulk.updateOne(query(where("id").is(issue.getId())), new Update()
+                            .set("keywords", keywordsOf(issue.getType()))
+                            .set("pathPrefixes", pathPrefixesOf(issue.getRepository()))));
+                    return bulk.execute();
+                })
+                .reduce(0, (updated, result) -> updated + result.getModifiedCount())
+                .subscribe(
+                        updated -> {
+                            if (updated > 0) {
+                                log.info("Search keys written for {} historical issues", updated);
+                            }
+                        },
+                        error -> log.error("Failed to backfill historical issue search keys: {}", error.getMessage())
+                );
+    }
+
+    /**
+     * Installation of the issues and, if given, their path: equality on the leading keys of the indexes.
+     * Issues past the retention window of the installation, waiting for the retention job, are left out.
+     */
+    private Criteria scope(Long installationId, String path) {
+        Criteria scope = where("userInstallationId").is(installationId);
+        if (!path.isEmpty()) {
+            scope = scope.and("pathPrefixes").is(path);
+        }
+        return retentionConfig.isEnabled()
+                ? scope.and("foundAt").gte(LocalDateTime.now().minus(retentionConfig.windowOf(installationId)))
+                : scope;
+    }
+
+    /**
+     * Reads only the fields shown to the model, not the search keys.
+     */
+    private static <Q extends Query> Q project(Q query) {
+        query.fields().include("repository", "type", "resolution", "timeToFix", "prNumber", "foundAt", "userInstallationId");
+        return query;
+    }
+}
@@ -0,0 +1,190 @@
+package it.np.n_agent.service;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.np.n_agent.ai.similarity.IssueSimilarityIndex;
+import it.np.n_agent.config.HistoricalIssueWriteConfig;
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Write-behind persistence of historical issues.
+ * Analyses submit their issues and move on: issues of all analyses are buffered in a bounded queue and inserted
+ * by a single writer in unordered bulk writes, flushed by size or time. A failed batch is retried with backoff;
+ * ids are assigned on submit, so issues a failed attempt already inserted are duplicates on retry, not copies.
+ * On shutdown the buffer is flushed, after the webhook queue has drained the analyses that fill it.
+ */
+@Service
+public class HistoricalIssueWriter implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoricalIssueWriter.class);
+
+    /**
+     * Stops after the webhook queue, so the issues of the analyses it drains are flushed too.
+     */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 8192;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final IssueSimilarityIndex similarityIndex;
+    private final HistoricalIssueWriteConfig writeConfig;
+    private final ArrayBlockingQueue<HistoricalIssueEntity> buffer;
+    private final Sinks.Many<HistoricalIssueEntity> issues;
+    private final CountDownLatch flushed = new CountDownLatch(1);
+    private final Timer flushTimer;
+    private final Counter writtenCounter;
+    private final Counter droppedCounter;
+    private Disposable pipeline;
+    private volatile boolean running;
+
+    @Autowired
+    public HistoricalIssueWriter(ReactiveMongoTemplate mongoTemplate,
+                                 IssueSimilarityIndex similarityIndex,
+                                 HistoricalIssueWriteConfig writeConfig,
+                                 MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.similarityIndex = similarityIndex;
+        this.writeConfig = writeConfig;
+        this.buffer = new ArrayBlockingQueue<>(writeConfig.getCapacity());
+        this.issues = Sinks.many().unicast().onBackpressureBuffer(buffer);
+        this.flushTimer = Timer.builder("analysis.history.write.flush")
+                .description("Duration of a bulk write of historical issues, retries included")
+                .register(meterRegistry);
+        this.writtenCounter = Counter.builder("analysis.history.write.issues")
+                .tag("result", "written")
+                .description("Historical issues submitted for persistence")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("analysis.history.write.issues")
+                .tag("result", "dropped")
+                .description("Historical issues submitted for persistence")
+                .register(meterRegistry);
+        Gauge.builder("analysis.history.write.pending", buffer, ArrayBlockingQueue::size)
+                .description("Historical issues buffered, waiting for a bulk write")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Buffers issues for the next bulk write. Never blocks: issues that do not fit in the buffer,
+     * or submitted after shutdown, are dropped and counted.
+     *
+     * @param submitted issues of an analysis
+     */
+    public synchronized void submit(List<HistoricalIssueEntity> submitted) {
+        int dropped = 0;
+        for (HistoricalIssueEntity issue : submitted) {
+            if (issue.getId() == null) {
+                issue.setId(new ObjectId().toHexString());
+            }
+            // Emission is serialized by this method, the only failures left are a full buffer and shutdown
+            if (issues.tryEmitNext(issue).isFailure()) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            droppedCounter.increment(dropped);
+            log.warn("Historical issue buffer full or closed, {} of {} issues dropped", dropped, submitted.size());
+        }
+    }
+
+    private Mono<Void> write(List<HistoricalIssueEntity> batch) {
+        long startNanos = System.nanoTime();
+        return Mono.defer(() -> mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, HistoricalIssueEntity.class)
+                        .insert(batch)
+                        .execute()
+                        .then())
+                // Duplicates are issues a previous attempt inserted: the batch is written
+                .onErrorResume(HistoricalIssueWriter::isDuplicatesOnly, error -> Mono.empty())
+                .retryWhen(Retry.backoff(writeConfig.getMaxRetries(), writeConfig.getRetryBackoff())
+                        .doBeforeRetry(signal -> log.warn("Bulk write of {} historical issues failed (attempt {}), retrying: {}",
+                                batch.size(), signal.totalRetries() + 1, signal.failure().getMessage())))
+                .doOnSuccess(done -> {
+                    flushTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    writtenCounter.increment(batch.size());
+                    log.debug("Bulk write of {} historical issues completed", batch.size());
+                    Map<Long, List<HistoricalIssueEntity>> byInstallation = batch.stream()
+                            .filter(issue -> issue.getUserInstallationId() != null)
+                            .collect(Collectors.groupingBy(HistoricalIssueEntity::getUserInstallationId));
+                    byInstallation.forEach(similarityIndex::add);
+                })
+                .onErrorResume(error -> {
+                    droppedCounter.increment(batch.size());
+                    log.error("Bulk write of {} historical issues failed, batch dropped: {}", batch.size(), error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private static boolean isDuplicatesOnly(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            List<BulkWriteError> errors = switch (cause) {
+                case BulkOperationException bulk -> bulk.getErrors();
+                case MongoBulkWriteException bulk -> bulk.getWriteErrors();
+                default -> null;
+            };
+            if (errors != null) {
+                return !errors.isEmpty() && errors.stream().allMatch(writeError -> writeError.getCode() == DUPLICATE_KEY);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void start() {
+        pipeline = issues.asFlux()
+                .bufferTimeout(writeConfig.getBatchSize(), writeConfig.getFlushInterval(), true)
+                .concatMap(this::write, 1)
+                .doFinally(signal -> flushed.countDown())
+                .subscribe();
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        log.info("Flushing historical issues (pending={}, timeout={})", buffer.size(), writeConfig.getShutdownTimeout());
+        synchronized (this) {
+            issues.tryEmitComplete();
+        }
+        try {
+            if (!flushed.await(writeConfig.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Historical issues not flushed in time, {} issues dropped", buffer.size());
+                pipeline.dispose();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+}
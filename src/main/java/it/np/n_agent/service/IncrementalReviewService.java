@@ -0,0 +1,188 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.np.n_agent.config.IncrementalReviewConfig;
+import it.np.n_agent.entity.PullRequestReviewState;
+import it.np.n_agent.github.dto.GHCompareResponse;
+import it.np.n_agent.github.enums.ActionType;
+import it.np.n_agent.repository.PullRequestReviewStateRepository;
+import it.np.n_agent.service.WebhookService.WebhookBaseInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Restricts the review of a pull request update to the commits added since the last reviewed head.
+ * The last reviewed head SHA of every PR is kept in the {@code pr_review_state} collection; on a synchronize
+ * event the compare diff between that SHA and the new head is analyzed instead of the whole PR diff.
+ *
+ * The full PR diff is used instead when there is no usable delta: first review, unknown or unreachable
+ * last SHA, force push or rebase (compare status other than "ahead"), merge commits in the range (they
+ * would bring in the changes of the merged branch) or files without a patch. MongoDB failures fall back
+ * to the full diff too.
+ */
+@Service
+public class IncrementalReviewService {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalReviewService.class);
+
+    private final GithubService githubService;
+    private final PullRequestReviewStateRepository stateRepository;
+    private final IncrementalReviewConfig incrementalConfig;
+    private final Counter incrementalCounter;
+    private final Counter fullCounter;
+
+    @Autowired
+    public IncrementalReviewService(GithubService githubService,
+                                    PullRequestReviewStateRepository stateRepository,
+                                    IncrementalReviewConfig incrementalConfig,
+                                    MeterRegistry meterRegistry) {
+        this.githubService = githubService;
+        this.stateRepository = stateRepository;
+        this.incrementalConfig = incrementalConfig;
+        this.incrementalCounter = Counter.builder("analysis.review.diffs")
+                .tag("scope", "incremental")
+                .description("Pull request diffs retrieved for an analysis")
+                .register(meterRegistry);
+        this.fullCounter = Counter.builder("analysis.review.diffs")
+                .tag("scope", "full")
+                .description("Pull request diffs retrieved for an analysis")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Diff to analyze for a pull request head.
+     *
+     * @param diff unified diff
+     * @param sinceSha last reviewed head SHA the diff starts from, null if this is the full PR diff
+     */
+    public record ReviewDiff(String diff, String sinceSha) {
+
+        public boolean isIncremental() {
+            return sinceSha != null;
+        }
+    }
+
+    /**
+     * Retrieves the diff to analyze: the changes since the last reviewed head for a synchronize event
+     * when a usable delta exists, the full PR diff otherwise.
+     *
+     * @param baseInfo PR head to analyze
+     * @return Mono emitting the diff to analyze
+     */
+    public Mono<ReviewDiff> retrieveDiff(WebhookBaseInfo baseInfo) {
+        Mono<ReviewDiff> full = Mono.defer(() -> {
+            fullCounter.increment();
+            return githubService.retrieveDiff(baseInfo.url(), baseInfo.installationId())
+                    .map(diff -> new ReviewDiff(diff, null));
+        });
+
+        if (!incrementalConfig.isEnabled()
+                || !ActionType.SYNCHRONIZE.name().equalsIgnoreCase(baseInfo.action())
+                || baseInfo.repoUrl() == null) {
+            return full;
+        }
+
+        return stateRepository.findById(keyOf(baseInfo))
+                .onErrorResume(error -> {
+                    log.warn("Failed to read review state of PR #{}, reviewing the full diff: {}", baseInfo.prNumber(), error.getMessage());
+                    return Mono.empty();
+                })
+                .filter(state -> state.getLastReviewedSha() != null && !state.getLastReviewedSha().equals(baseInfo.commitSha()))
+                .flatMap(state -> githubService.retrieveComparison(baseInfo.repoUrl(), state.getLastReviewedSha(), baseInfo.commitSha(), baseInfo.installationId())
+                        .onErrorResume(error -> {
+                            log.warn("Failed to compare {}...{} for PR #{}, reviewing the full diff: {}",
+                                    state.getLastReviewedSha(), baseInfo.commitSha(), baseInfo.prNumber(), error.getMessage());
+                            return Mono.empty();
+                        })
+                        .filter(comparison -> isUsableDelta(comparison, baseInfo))
+                        .map(comparison -> {
+                            incrementalCounter.increment();
+                            String delta = toUnifiedDiff(comparison.getFiles());
+                            log.info("Incremental review of PR #{} since {}: {} commits, {} files, {} characters",
+                                    baseInfo.prNumber(), state.getLastReviewedSha(), comparison.getTotalCommits(),
+                                    comparison.getFiles().size(), delta.length());
+                            return new ReviewDiff(delta, state.getLastReviewedSha());
+                        }))
+                .switchIfEmpty(full);
+    }
+
+    /**
+     * Records the head SHA of a completed review as the starting point of the next incremental one.
+     *
+     * @param baseInfo reviewed PR head
+     * @return Mono completing when the state is saved, never failing
+     */
+    public Mono<Void> markReviewed(WebhookBaseInfo baseInfo) {
+        if (!incrementalConfig.isEnabled()) {
+            return Mono.empty();
+        }
+        return stateRepository.save(PullRequestReviewState.builder()
+                        .id(keyOf(baseInfo))
+                        .lastReviewedSha(baseInfo.commitSha())
+                        .reviewedAt(Instant.now())
+                        .build())
+                .doOnSuccess(state -> log.info("PR #{} reviewed up to {}", baseInfo.prNumber(), baseInfo.commitSha()))
+                .onErrorResume(error -> {
+                    log.warn("Failed to save review state of PR #{}: {}", baseInfo.prNumber(), error.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private boolean isUsableDelta(GHCompareResponse comparison, WebhookBaseInfo baseInfo) {
+        String reason = null;
+        if (!"ahead".equalsIgnoreCase(comparison.getStatus())) {
+            reason = "history rewritten (" + comparison.getStatus() + ")";
+        } else if (comparison.getFiles() == null || comparison.getFiles().isEmpty()) {
+            reason = "no changed files";
+        } else if (comparison.getFiles().size() >= incrementalConfig.getMaxFiles()) {
+            reason = "too many files";
+        } else if (comparison.getCommits() == null || comparison.getTotalCommits() == null
+                || comparison.getCommits().size() < comparison.getTotalCommits()) {
+            reason = "commit list truncated";
+        } else if (comparison.getCommits().stream().anyMatch(commit -> commit.getParents() != null && commit.getParents().size() > 1)) {
+            reason = "merge commit in range";
+        } else if (comparison.getFiles().stream().anyMatch(file -> file.getPatch() == null && !"removed".equals(file.getStatus()))) {
+            reason = "file without patch";
+        }
+
+        if (reason != null) {
+            log.info("No incremental review for PR #{}: {}. Reviewing the full diff.", baseInfo.prNumber(), reason);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds a unified diff from the per-file patches of a comparison, in the same format as the PR diff.
+     * Removed files are left out: there is nothing left to review in them.
+     */
+    private static String toUnifiedDiff(List<GHCompareResponse.File> files) {
+        StringBuilder diff = new StringBuilder();
+        for (GHCompareResponse.File file : files) {
+            if ("removed".equals(file.getStatus()) || file.getPatch() == null) {
+                continue;
+            }
+            String oldPath = file.getPreviousFilename() != null ? file.getPreviousFilename() : file.getFilename();
+            diff.append("diff --git a/").append(oldPath).append(" b/").append(file.getFilename()).append('\n')
+                    .append("--- ").append("added".equals(file.getStatus()) ? "/dev/null" : "a/" + oldPath).append('\n')
+                    .append("+++ b/").append(file.getFilename()).append('\n')
+                    .append(file.getPatch());
+            if (!file.getPatch().endsWith("\n")) {
+                diff.append('\n');
+            }
+        }
+        return diff.toString();
+    }
+
+    private static String keyOf(WebhookBaseInfo baseInfo) {
+        return baseInfo.installationId() + ":" + baseInfo.repoFullName() + ":" + baseInfo.prNumber();
+    }
+}
@@ -0,0 +1,146 @@
+package it.np.n_agent.service;
+
+import it.np.n_agent.dto.UserSettingDto;
+import it.np.n_agent.github.enums.ActionType;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto;
+
+/**
+ * User settings of an installation compiled for the webhook hot path, once per loaded settings and cached with them
+ * (see {@link UserSettingService#getInstallationRoutes}).
+ * Repositories are looked up by GitHub id or by lower-cased name, both hash lookups; each route carries the PR actions
+ * that trigger an analysis as a bitmask of {@link ActionType}.
+ * The cost of routing a webhook does not depend on the number of repositories of the installation.
+ * Routes are immutable; the settings they were compiled from must not be changed.
+ */
+public final class InstallationRoutes {
+
+    private final UserSettingDto settings;
+    private final Map<Long, Route> routesById;
+    private final Map<String, Route> routesByName;
+    private final Map<String, Route> unidentifiedRoutesByName;
+
+    private InstallationRoutes(UserSettingDto settings, Map<Long, Route> routesById,
+                               Map<String, Route> routesByName, Map<String, Route> unidentifiedRoutesByName) {
+        this.settings = settings;
+        this.routesById = routesById;
+        this.routesByName = routesByName;
+        this.unidentifiedRoutesByName = unidentifiedRoutesByName;
+    }
+
+    /**
+     * Compiles the routes of the repositories configured in the settings.
+     * When a repository id or name is configured twice, the first configuration wins.
+     *
+     * @param settings user settings of the installation
+     * @return routes of the installation
+     */
+    public static InstallationRoutes compile(UserSettingDto settings) {
+        String aiModel = settings.getGlobalSettings() == null ? null : settings.getGlobalSettings().getAiModel();
+        List<RepositoryConfigDto> repositories = settings.getRepositories() == null ? List.of() : settings.getRepositories();
+
+        Map<Long, Route> byId = new HashMap<>();
+        Map<String, Route> byName = new HashMap<>();
+        Map<String, Route> unidentifiedByName = new HashMap<>();
+        for (RepositoryConfigDto repository : repositories) {
+            Route route = new Route(repository, triggersOf(repository), aiModel);
+            Long repoId = parseRepoId(repository.getRepoId());
+            if (repoId != null) {
+                byId.putIfAbsent(repoId, route);
+            }
+            if (repository.getRepoName() != null) {
+                String name = repository.getRepoName().toLowerCase(Locale.ROOT);
+                byName.putIfAbsent(name, route);
+                if (repoId == null) {
+                    unidentifiedByName.putIfAbsent(name, route);
+                }
+            }
+        }
+
+        return new InstallationRoutes(settings, Map.copyOf(byId), Map.copyOf(byName), Map.copyOf(unidentifiedByName));
+    }
+
+    /**
+     * Settings the routes were compiled from.
+     */
+    public UserSettingDto settings() {
+        return settings;
+    }
+
+    /**
+     * Route of a repository: by GitHub id, or by name when the webhook carries no id.
+     * A repository whose id is not configured only matches by name a repository configured without a valid id,
+     * never another repository with the same name, e.g. one deleted and recreated.
+     *
+     * @param repoId GitHub repository id, may be null
+     * @param repoName repository name, case-insensitive, may be null
+     * @return route of the repository, null if it is not configured
+     */
+    public Route route(Long repoId, String repoName) {
+        if (repoId != null) {
+            Route route = routesById.get(repoId);
+            if (route != null) {
+                return route;
+            }
+        }
+        if (repoName == null) {
+            return null;
+        }
+        return (repoId == null ? routesByName : unidentifiedRoutesByName).get(repoName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks whether a repository with the given GitHub id is configured.
+     */
+    public boolean containsRepository(long repoId) {
+        return routesById.containsKey(repoId);
+    }
+
+    /**
+     * Checks whether a pull request action on a repository triggers an analysis:
+     * the repository must be configured and active, and the trigger for the action enabled.
+     *
+     * @param repoId GitHub repository id, may be null
+     * @param repoName repository name
+     * @param action pull request action (opened, reopened, edited, ...)
+     * @return true if the analysis must run
+     */
+    public boolean isAnalysisTriggered(Long repoId, String repoName, String action) {
+        Route route = route(repoId, repoName);
+        return route != null && route.isTriggeredBy(action);
+    }
+
+    /**
+     * PR actions triggering an analysis of an active repository, one bit per {@link ActionType}.
+     */
+    private static int triggersOf(RepositoryConfigDto repository) {
+        return Boolean.TRUE.equals(repository.getIsActive()) ? ActionType.triggerMask(repository.getTriggers()) : 0;
+    }
+
+    private static Long parseRepoId(String repoId) {
+        try {
+            return repoId == null ? null : Long.valueOf(repoId.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compiled configuration of a repository.
+     *
+     * @param config repository configuration: rules and notification settings
+     * @param triggers PR actions triggering an analysis, one bit per {@link ActionType}; 0 if the repository is inactive
+     * @param aiModel AI model of the installation, null for the default one
+     */
+    public record Route(RepositoryConfigDto config, int triggers, String aiModel) {
+
+        public boolean isTriggeredBy(String action) {
+            return ActionType.isAnalyzableActionPR(action) && (triggers & ActionType.fromValue(action).bit()) != 0;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package it.np.n_agent.service;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import it.np.n_agent.ai.dto.CodeAnalysisResult;
+import it.np.n_agent.ai.dto.CodeIssue;
 import it.np.n_agent.dto.enums.NotificationClientEnum;
 import it.np.n_agent.exception.GitHubApiException;
 import it.np.n_agent.github.enums.HeaderGithubUtility;
@@ -11,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -19,8 +22,12 @@ import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
 
 import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.NotificationSettingsDto;
 import static it.np.n_agent.utilities.CommentsUtility.formatCommentBody;
@@ -33,11 +40,65 @@ public class NotificationService {
 
     private final GitHubAuthService authService;
     private final WebClient githubWebClient;
+    private final boolean inlineStreamingEnabled;
+    private final int inlineBatchSize;
+    private final Duration inlineBatchWindow;
 
     @Autowired
-    public NotificationService(GitHubAuthService authService, @Qualifier("githubWebClient") WebClient githubWebClient) {
+    public NotificationService(GitHubAuthService authService,
+                               @Qualifier("githubWebClient") WebClient githubWebClient,
+                               @Value("${notification.github.inline-streaming.enabled:true}") boolean inlineStreamingEnabled,
+                               @Value("${notification.github.inline-streaming.batch-size:3}") int inlineBatchSize,
+                               @Value("${notification.github.inline-streaming.batch-window:2s}") Duration inlineBatchWindow) {
         this.authService = authService;
         this.githubWebClient = githubWebClient;
+        this.inlineStreamingEnabled = inlineStreamingEnabled;
+        this.inlineBatchSize = inlineBatchSize;
+        this.inlineBatchWindow = inlineBatchWindow;
+    }
+
+    /**
+     * Whether inline comments are published while the analysis is still streaming,
+     * i.e. streaming is enabled and the user receives GitHub comments.
+     *
+     * @param notificationSettingsDto User notification preferences
+     * @return true if {@link #publishInlineComments} should be used
+     */
+    public boolean streamsInlineComments(NotificationSettingsDto notificationSettingsDto) {
+        return inlineStreamingEnabled
+                && NotificationClientEnum.getUserClients(notificationSettingsDto).contains(NotificationClientEnum.GITHUB);
+    }
+
+    /**
+     * Publishes inline PR comments as issues are streamed by the AI analysis.
+     * Issues are grouped in small batches (by size or time window, whichever comes first) and each batch is
+     * posted concurrently; a comment that GitHub refuses (e.g. line outside the diff) is logged and skipped,
+     * so it is left to the final review. A batch is only posted while the analyzed head is still the latest one
+     * of the PR; if no installation token can be obtained nothing is published.
+     *
+     * @param request Webhook base info with PR URL, head commit and installation ID
+     * @param issues issues in generation order
+     * @param headIsCurrent checked before each batch: once false, the remaining issues are not published
+     * @return Mono emitting the issues published as inline comments, to be left out of the final review
+     */
+    public Mono<List<CodeIssue>> publishInlineComments(WebhookBaseInfo request, Flux<CodeIssue> issues, BooleanSupplier headIsCurrent) {
+        Mono<String> token = authService.getInstallationToken(request.installationId())
+                .onErrorResume(error -> {
+                    log.warn("No installation token to publish inline comments for PR #{}, leaving them to the review: {}",
+                            request.prNumber(), error.toString());
+                    return Mono.empty();
+                })
+                .cache();
+
+        return issues
+                .bufferTimeout(inlineBatchSize, inlineBatchWindow)
+                .filter(batch -> headIsCurrent.getAsBoolean())
+                .concatMap(batch -> token.flatMapMany(bearer -> Flux.fromIterable(batch)
+                        .flatMap(issue -> sendInlineComment(request, issue, bearer)
+                                .filter(published -> published)
+                                .map(published -> issue))))
+                .collectList()
+                .doOnSuccess(published -> log.info("Published {} inline comments while streaming for PR #{}", published.size(), request.prNumber()));
     }
 
     /**
@@ -51,12 +112,29 @@ public class NotificationService {
      * @return Mono emitting true if all notifications succeed, false otherwise
      */
     public Mono<Boolean> sendNotification(WebhookBaseInfo request, CodeAnalysisResult analysisResult, NotificationSettingsDto notificationSettingsDto){
+        return sendNotification(request, analysisResult, notificationSettingsDto, List.of());
+    }
+
+    /**
+     * Sends notifications like {@link #sendNotification(WebhookBaseInfo, CodeAnalysisResult, NotificationSettingsDto)},
+     * leaving out of the GitHub review the inline comments already published while streaming.
+     *
+     * @param request Webhook base info containing PR details and URLs
+     * @param analysisResult AI analysis result with issues and recommendations
+     * @param notificationSettingsDto User notification preferences
+     * @param publishedIssues issues already published as inline comments
+     * @return Mono emitting true if all notifications succeed, false otherwise
+     */
+    public Mono<Boolean> sendNotification(WebhookBaseInfo request,
+                                          CodeAnalysisResult analysisResult,
+                                          NotificationSettingsDto notificationSettingsDto,
+                                          List<CodeIssue> publishedIssues){
         log.info("Sending notification for PR #{} to URL: {}", request.prNumber(), request.url());
         List<Mono<Boolean>> notifications = new ArrayList<>();
 
         for (NotificationClientEnum client : NotificationClientEnum.getUserClients(notificationSettingsDto)){
             switch (client){
-                case GITHUB -> notifications.add(sendGithub(request, analysisResult));
+                case GITHUB -> notifications.add(sendGithub(request, analysisResult, publishedIssues));
                 case EMAIL -> notifications.add(Mono.just(true)); //TODO implement email notification
                 case SLACK -> notifications.add(Mono.just(true)); //TODO implement slack notification
                 default -> log.warn("Unsupported notification client: {}", client);
@@ -74,10 +152,11 @@ public class NotificationService {
      *
      * @param request Webhook base info with PR URL and installation ID
      * @param analysisResult AI analysis result containing issues and recommendation
+     * @param publishedIssues issues already published as inline comments, not repeated in the review
      * @return Mono emitting true if review posted successfully
      * @throws GitHubApiException if GitHub API call fails
      */
-    private Mono<Boolean> sendGithub(WebhookBaseInfo request, CodeAnalysisResult analysisResult) {
+    private Mono<Boolean> sendGithub(WebhookBaseInfo request, CodeAnalysisResult analysisResult, List<CodeIssue> publishedIssues) {
         log.info("Preparing to send GitHub notification for PR #{}", request.prNumber());
         return authService.getInstallationToken(request.installationId())
                 .flatMap(token ->
@@ -86,7 +165,7 @@ public class NotificationService {
                                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                                 .header(HttpHeaders.ACCEPT, HeaderGithubUtility.APPLICATION_VND_JSON.getHeaderValue())
                                 .contentType(MediaType.APPLICATION_JSON)
-                                .bodyValue(buildNotificationRequestGithub(request, analysisResult))
+                                .bodyValue(buildNotificationRequestGithub(request, analysisResult, publishedIssues))
                                 .retrieve()
                                 .bodyToMono(Void.class)
                 )
@@ -102,11 +181,14 @@ public class NotificationService {
      *
      * @param request Webhook base info containing commit SHA
      * @param analysisResult AI analysis result with issues list
+     * @param publishedIssues issues already published as inline comments
      * @return NotificationRequest record ready for GitHub API submission
      */
-    private NotificationRequest buildNotificationRequestGithub(WebhookBaseInfo request, CodeAnalysisResult analysisResult){
+    private NotificationRequest buildNotificationRequestGithub(WebhookBaseInfo request, CodeAnalysisResult analysisResult, List<CodeIssue> publishedIssues){
         log.info("Building notification request for PR #{}", request.prNumber());
+        Set<CodeIssue> published = new HashSet<>(publishedIssues);
         List<InlineCommentRequest> inlineCommentRequests = analysisResult.getIssues().stream()
+                .filter(issue -> !published.contains(issue))
                 .map(issue -> InlineCommentRequest.builder()
                         .body(formatCommentBody(issue.getSeverity(),issue.getType(), issue.getMessage(), issue.getSuggestion()))
                         .path(issue.getFile())
@@ -128,6 +210,34 @@ public class NotificationService {
                 .build();
     }
 
+    /**
+     * Posts a single inline comment on the PR head commit.
+     * Failures are logged and swallowed: a missing inline comment must not fail the analysis.
+     *
+     * @return Mono emitting true if the comment was published, false if GitHub refused it
+     */
+    private Mono<Boolean> sendInlineComment(WebhookBaseInfo request, CodeIssue issue, String token) {
+        return githubWebClient.post()
+                .uri(request.url() + "/comments")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .header(HttpHeaders.ACCEPT, HeaderGithubUtility.APPLICATION_VND_JSON.getHeaderValue())
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(ReviewCommentRequest.builder()
+                        .commitId(request.commitSha())
+                        .path(issue.getFile())
+                        .line(issue.getLine())
+                        .side(SideLine.RIGHT.name())
+                        .body(formatCommentBody(issue.getSeverity(), issue.getType(), issue.getMessage(), issue.getSuggestion()))
+                        .build())
+                .retrieve()
+                .bodyToMono(Void.class)
+                .thenReturn(true)
+                .onErrorResume(error -> {
+                    log.warn("Failed to publish inline comment on {}:{} for PR #{}: {}", issue.getFile(), issue.getLine(), request.prNumber(), error.toString());
+                    return Mono.just(false);
+                });
+    }
+
     /**
      * GitHub PR review request payload.
      *
@@ -150,6 +260,18 @@ public class NotificationService {
     @Builder
     public record InlineCommentRequest(String path, Integer line,String side,String body){}
 
+    /**
+     * GitHub single PR review comment request, published outside of a review.
+     *
+     * @param commitId Git commit SHA the comment refers to
+     * @param path File path relative to repository root
+     * @param line Line number in the file
+     * @param side Side of diff (LEFT for old, RIGHT for new)
+     * @param body Comment body with issue details and suggestion
+     */
+    @Builder
+    public record ReviewCommentRequest(@JsonProperty("commit_id") String commitId, String path, Integer line, String side, String body){}
+
     /**
      * Enum representing diff side for inline comments.
      */
@@ -0,0 +1,182 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.np.n_agent.github.dto.GHWebhookPrPayload;
+import it.np.n_agent.github.enums.ActionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces pull request analyses so that only the latest head SHA of a PR is analyzed and reviewed.
+ * Heads are registered when their webhook is received, in arrival order: a newer head SHA for the same PR
+ * (installation + repository + PR number) supersedes the older one, which is dropped while it waits for its
+ * debounce window or in the queue, and cancelled if its analysis is already running.
+ * The debounce runs on a timer before the webhook is enqueued (see WebhookQueueService), so it never holds a worker.
+ * Cancellation propagates through the whole reactive chain, including the AI call.
+ */
+@Service
+public class PullRequestCoalescingService {
+
+    private static final Logger log = LoggerFactory.getLogger(PullRequestCoalescingService.class);
+
+    private final Duration debounce;
+    private final ConcurrentMap<String, Analysis> analyses = new ConcurrentHashMap<>();
+    private final Counter supersededCounter;
+    private final Counter alreadyRunningCounter;
+
+    @Autowired
+    public PullRequestCoalescingService(@Value("${webhook.coalescing.debounce:5s}") Duration debounce,
+                                        MeterRegistry meterRegistry) {
+        this.debounce = debounce;
+        this.supersededCounter = Counter.builder("webhook.pr.coalesced")
+                .tag("reason", "superseded")
+                .description("Pull request analyses cancelled by a newer head SHA")
+                .register(meterRegistry);
+        this.alreadyRunningCounter = Counter.builder("webhook.pr.coalesced")
+                .tag("reason", "same_sha")
+                .description("Pull request events skipped because the same head SHA is already being analyzed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registers a head as the latest one of its PR, superseding the previous one.
+     *
+     * @param head pull request head of a received webhook
+     * @return true if registered, false if the same head SHA is already pending or being analyzed
+     */
+    public boolean register(PullRequestHead head) {
+        Analysis current = new Analysis(head.sha());
+        Analysis[] replaced = new Analysis[1];
+        Analysis active = analyses.compute(head.key(), (k, existing) -> {
+            if (existing != null && existing.headSha.equals(head.sha())) {
+                return existing;
+            }
+            replaced[0] = existing;
+            return current;
+        });
+
+        if (active != current) {
+            alreadyRunningCounter.increment();
+            log.info("PR {} head {} is already pending or being analyzed. Skipping duplicate event.", head.key(), head.sha());
+            return false;
+        }
+        if (replaced[0] != null) {
+            supersededCounter.increment();
+            log.info("PR {} head {} superseded by {}. Cancelling stale analysis.", head.key(), replaced[0].headSha, head.sha());
+            replaced[0].supersede();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the debounce window of a registered head, on a timer.
+     *
+     * @param head registered pull request head
+     * @return Mono emitting true once the window elapsed, false as soon as the head is superseded
+     */
+    public Mono<Boolean> debounce(PullRequestHead head) {
+        return Mono.defer(() -> {
+            Analysis current = analyses.get(head.key());
+            if (current == null || !current.headSha.equals(head.sha())) {
+                return Mono.just(false);
+            }
+            return Mono.delay(debounce)
+                    .thenReturn(true)
+                    .takeUntilOther(current.superseded.asMono())
+                    .defaultIfEmpty(false);
+        });
+    }
+
+    /**
+     * Runs the analysis of a registered pull request head SHA, unless superseded by a newer one.
+     *
+     * @param head registered pull request head
+     * @param analysis supplier of the analysis pipeline, subscribed only if the head is still the latest one
+     * @return Mono emitting the analysis result, false if superseded by a newer head SHA
+     */
+    public Mono<Boolean> coalesce(PullRequestHead head, Supplier<Mono<Boolean>> analysis) {
+        return Mono.defer(() -> {
+            Analysis current = analyses.get(head.key());
+            // No entry: a newer head was registered and already completed
+            if (current == null || !current.headSha.equals(head.sha())) {
+                log.info("PR {} head {} superseded while queued. Skipping analysis.", head.key(), head.sha());
+                return Mono.just(false);
+            }
+            return Mono.defer(analysis)
+                    .takeUntilOther(current.superseded.asMono())
+                    .defaultIfEmpty(false);
+        });
+    }
+
+    /**
+     * Checks whether a head is still the latest registered one of its PR.
+     */
+    public boolean isCurrent(PullRequestHead head) {
+        Analysis current = analyses.get(head.key());
+        return current != null && current.headSha.equals(head.sha());
+    }
+
+    /**
+     * Forgets a head once its webhook is processed or dropped; a newer head of the same PR is left registered.
+     *
+     * @param head registered pull request head
+     */
+    public void complete(PullRequestHead head) {
+        analyses.computeIfPresent(head.key(), (k, existing) -> existing.headSha.equals(head.sha()) ? null : existing);
+    }
+
+    /**
+     * Head of a pull request, the unit of coalescing.
+     *
+     * @param installationId GitHub App installation ID
+     * @param repository repository full name
+     * @param prNumber pull request number
+     * @param sha head commit SHA
+     */
+    public record PullRequestHead(Long installationId, String repository, Long prNumber, String sha) {
+
+        /**
+         * Head of a pull request webhook whose action may trigger an analysis.
+         *
+         * @return the head, null if the payload is not such a webhook or lacks the identifying fields
+         */
+        public static PullRequestHead of(Object payload) {
+            if (!(payload instanceof GHWebhookPrPayload pr) || !ActionType.isAnalyzableActionPR(pr.getAction())
+                    || pr.getInstallation() == null || pr.getRepository() == null
+                    || pr.getPullRequest() == null || pr.getPullRequest().getHead() == null
+                    || pr.getPullRequest().getHead().getSha() == null) {
+                return null;
+            }
+            return new PullRequestHead(pr.getInstallation().getId(), pr.getRepository().getFullName(),
+                    pr.getPullRequest().getNumber(), pr.getPullRequest().getHead().getSha());
+        }
+
+        private String key() {
+            return installationId + ":" + repository + ":" + prNumber;
+        }
+    }
+
+    private static final class Analysis {
+        private final String headSha;
+        private final Sinks.One<Boolean> superseded = Sinks.one();
+
+        private Analysis(String headSha) {
+            this.headSha = headSha;
+        }
+
+        private void supersede() {
+            superseded.tryEmitValue(true);
+        }
+    }
+}
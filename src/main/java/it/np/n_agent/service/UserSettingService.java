@@ -1,7 +1,16 @@
 package it.np.n_agent.service;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.github.resilience4j.reactor.retry.RetryOperator;
 import io.github.resilience4j.retry.Retry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import it.np.n_agent.config.UserSettingCacheConfig;
 import it.np.n_agent.dto.UserSettingDto;
 import it.np.n_agent.entity.*;
 import it.np.n_agent.exception.MongoDbException;
@@ -13,38 +22,92 @@ import it.np.n_agent.repository.UserSettingRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.SynchronousSink;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.function.BiConsumer;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static it.np.n_agent.utilities.UserSettingUtility.buildAccountInfo;
 import static it.np.n_agent.utilities.UserSettingUtility.buildDefaultRepositories;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
 
+/**
+ * Reads and writes the user settings of the installations.
+ * Settings are served from an in-memory cache of their compiled routes (see {@link InstallationRoutes}):
+ * concurrent reads of an installation share a single MongoDB load, settings are reloaded in the background
+ * while the cached ones are still served, and installations without settings are remembered for a short time.
+ * Every write invalidates the installation once done, whatever its outcome.
+ */
 @Service
 public class UserSettingService {
 
     private static final Logger log = LoggerFactory.getLogger(UserSettingService.class);
 
+    private static final String ADD = "add";
+    private static final String REMOVE = "remove";
+    private static final String UPDATE = "update";
+    private static final int MAX_CONFLICT_RETRIES = 3;
+
     private final UserSettingRepository userSettingRepository;
     private final UserSettingMapper userSettingMapper;
     private final Retry mongoRetry;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final Map<String, Timer> writeTimers;
+    private final Map<String, Counter> conflicts;
+    private final Map<String, DistributionSummary> writtenRepositories;
+    private final AsyncLoadingCache<Long, Optional<InstallationRoutes>> settingsCache;
 
     @Autowired
     public UserSettingService(UserSettingRepository userSettingRepository,
                             UserSettingMapper userSettingMapper,
-                            Retry mongoRetry) {
+                            Retry mongoRetry,
+                            ReactiveMongoTemplate mongoTemplate,
+                            UserSettingCacheConfig cacheConfig,
+                            MeterRegistry meterRegistry) {
         this.userSettingRepository = userSettingRepository;
         this.userSettingMapper = userSettingMapper;
         this.mongoRetry = mongoRetry;
+        this.mongoTemplate = mongoTemplate;
+        this.settingsCache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(cacheConfig.getMaxInstallations())
+                .refreshAfterWrite(cacheConfig.getRefreshAfterWrite())
+                .expireAfter(Expiry.writing((Long installationId, Optional<InstallationRoutes> routes) ->
+                        routes.isPresent() ? cacheConfig.getExpireAfterWrite() : cacheConfig.getMissingTtl()))
+                .recordStats()
+                .buildAsync((installationId, executor) -> loadInstallationRoutes(installationId).toFuture()), "userSettings");
+        this.writeTimers = Stream.of(ADD, REMOVE, UPDATE).collect(Collectors.toUnmodifiableMap(Function.identity(),
+                operation -> Timer.builder("user_settings.write")
+                        .tag("operation", operation)
+                        .description("Duration of a user settings write, reads and conflict retries included")
+                        .register(meterRegistry)));
+        this.conflicts = Stream.of(ADD, REMOVE, UPDATE).collect(Collectors.toUnmodifiableMap(Function.identity(),
+                operation -> Counter.builder("user_settings.write.conflicts")
+                        .tag("operation", operation)
+                        .description("User settings writes rejected by a concurrent change of the settings")
+                        .register(meterRegistry)));
+        this.writtenRepositories = Stream.of(ADD, REMOVE, UPDATE).collect(Collectors.toUnmodifiableMap(Function.identity(),
+                operation -> DistributionSummary.builder("user_settings.write.repositories")
+                        .tag("operation", operation)
+                        .description("Repository configurations sent to MongoDB by a user settings write")
+                        .register(meterRegistry)));
     }
 
     /**
@@ -84,26 +147,39 @@ public class UserSettingService {
     /**
      * Removes repositories from user settings based on installation ID and list of repositories.
      * Called when receiving INSTALLATION_REPOSITORIES event with REMOVED action.
+     * A single {@code $pull} removes them atomically: nothing is read and concurrent changes are not lost.
      * Applies automatic retry (max 3 attempts) and 3-second timeout.
      *
      * @param installationId GitHub App installation ID
      * @param repositories List of repositories to remove
-     * @return Mono emitting true if removal succeeds
+     * @return Mono emitting true if repositories were removed, false if none was present
      * @throws MongoDbException if operation fails after all retries
      */
-    @CacheEvict(value = "userSettings", key = "#installationId")
     public Mono<Boolean> removedRepository(Long installationId, List<GHWebhookInstallationRepoPayload.Repository> repositories){
         log.info("Removing repository {} from user settings for installation ID: {}", repositories, installationId);
-        return userSettingRepository.findByGithubInstallationId(installationId)
-                .timeout(Duration.ofSeconds(3))
-                .transformDeferred(RetryOperator.of(mongoRetry))
-                .switchIfEmpty(Mono.error(new WebhookMainException(
-                        String.format("User settings not found for installationId: %s", installationId),
-                        HttpStatus.NOT_FOUND))
-                )
-                .handle(sinkRemovedTriggers(repositories))
-                .flatMap(this::saveUserSettings)
-                .defaultIfEmpty(false)
+        List<Long> repoIdsToRemove = repositories.stream()
+                .map(GHWebhookInstallationRepoPayload.Repository::getId)
+                .toList();
+        Update update = new Update()
+                .pull("repositories", Query.query(where("repo_id").in(repoIdsToRemove)))
+                .set("updatedAt", LocalDateTime.now())
+                .inc("version", 1);
+        return evicting(installationId, timed(REMOVE, mongoTemplate.updateFirst(byInstallation(installationId), update, UserSetting.class)
+                        .timeout(Duration.ofSeconds(3))
+                        .transformDeferred(RetryOperator.of(mongoRetry))))
+                .flatMap(result -> {
+                    if (result.getMatchedCount() == 0) {
+                        return Mono.error(new WebhookMainException(
+                                String.format("User settings not found for installationId: %s", installationId),
+                                HttpStatus.NOT_FOUND));
+                    }
+                    if (result.getModifiedCount() == 0) {
+                        log.info("No repositories removed - IDs {} not found for installation {}", repoIdsToRemove, installationId);
+                        return Mono.just(false);
+                    }
+                    writtenRepositories.get(REMOVE).record(repoIdsToRemove.size());
+                    return Mono.just(true);
+                })
                 .onErrorMap(error -> new MongoDbException(
                     String.format("Failed to remove repository from user settings for installation ID: %s", installationId),
                     HttpStatus.INTERNAL_SERVER_ERROR,
@@ -113,35 +189,53 @@ public class UserSettingService {
     /**
      * Adds repositories to user settings based on installation ID and list of repositories.
      * Called when receiving INSTALLATION_REPOSITORIES event with ADDED action.
+     * Only the ids of the configured repositories are read; the new ones are pushed by a {@code $push}
+     * conditioned on the version read, retried on a concurrent change.
      * Applies automatic retry (max 3 attempts) and 3-second timeout.
      *
      * @param installationId GitHub App installation ID
      * @param repositories List of repositories to add
-     * @return Mono emitting true if addition succeeds
+     * @return Mono emitting true if repositories were added, false if all were present
      * @throws MongoDbException if operation fails after all retries
      */
-    @CacheEvict(value = "userSettings", key = "#installationId")
     public Mono<Boolean> addedRepository(Long installationId, List<GHWebhookInstallationRepoPayload.Repository> repositories) {
         log.info("Adding repository {} to user settings for installation ID: {}", repositories, installationId);
-        return userSettingRepository.findByGithubInstallationId(installationId)
-                .timeout(Duration.ofSeconds(3))
-                .transformDeferred(RetryOperator.of(mongoRetry))
-                .switchIfEmpty(Mono.error(new WebhookMainException(
-                        String.format("User settings not found for installationId: %s", installationId),
-                        HttpStatus.NOT_FOUND))
-                )
-                .handle(sinkAddedTriggers(repositories))
-                .flatMap(this::saveUserSettings)
-                .defaultIfEmpty(false)
+        Query repositoryIds = byInstallation(installationId);
+        repositoryIds.fields().include("repositories.repo_id", "version");
+        return evicting(installationId, timed(ADD, Mono.defer(() -> mongoTemplate.findOne(repositoryIds, UserSetting.class)
+                        .timeout(Duration.ofSeconds(3))
+                        .transformDeferred(RetryOperator.of(mongoRetry))
+                        .switchIfEmpty(Mono.error(new WebhookMainException(
+                                String.format("User settings not found for installationId: %s", installationId),
+                                HttpStatus.NOT_FOUND))
+                        )
+                        .flatMap(existing -> {
+                            List<RepositoryConfig> newRepos = newRepositories(existing, repositories);
+                            if (newRepos.isEmpty()) {
+                                log.info("No new repositories to add - all IDs {} already exist for installation {}",
+                                        repositories.stream().map(GHWebhookInstallationRepoPayload.Repository::getId).toList(),
+                                        installationId);
+                                return Mono.just(false);
+                            }
+                            Update update = new Update()
+                                    .set("updatedAt", LocalDateTime.now())
+                                    .inc("version", 1);
+                            update.push("repositories").atPosition(0).each(newRepos.toArray());
+                            return updateVersioned(installationId, existing.getVersion(), update, ADD)
+                                    .doOnSuccess(updated -> writtenRepositories.get(ADD).record(newRepos.size()))
+                                    .thenReturn(true);
+                        }))
+                        .retryWhen(conflictRetry())))
                 .onErrorMap(error -> new MongoDbException(
                     String.format("Failed to add repository to user settings for installation ID: %s", installationId),
-                    HttpStatus.INTERNAL_SERVER_ERROR,
+                    conflictStatus(error),
                     error));
     }
 
     /**
      * Saves user settings to MongoDB with automatic retry and timeout.
      * Applies exponential retry configuration (max 3 attempts) and 5-second timeout.
+     * Invalidates the cached settings, e.g. the installation remembered as without settings before its creation.
      *
      * @param userSetting UserSetting entity to save
      * @return Mono emitting true if save succeeds
@@ -149,9 +243,9 @@ public class UserSettingService {
      */
     public Mono<Boolean> saveUserSettings(UserSetting userSetting){
         log.info("Saving user setting for installation ID: {}", userSetting.getGithubInstallationId());
-        return userSettingRepository.save(userSetting)
+        return evicting(userSetting.getGithubInstallationId(), userSettingRepository.save(userSetting)
                 .timeout(Duration.ofSeconds(5))
-                .transformDeferred(RetryOperator.of(mongoRetry))
+                .transformDeferred(RetryOperator.of(mongoRetry)))
                 .doOnSuccess(saved -> log.info("User setting saved successfully for installation ID: {}", userSetting.getGithubInstallationId()))
                 .onErrorMap(error -> new MongoDbException(
                     String.format("Failed to save user setting for installation ID: %s", userSetting.getGithubInstallationId()),
@@ -170,12 +264,11 @@ public class UserSettingService {
      * @return Mono emitting true if deletion succeeds (even if no document found)
      * @throws MongoDbException if deletion fails after all retries
      */
-    @CacheEvict(value = "userSettings", key = "#installationId")
     public Mono<Boolean> deleteUserSettings(Long installationId, Long userId) {
         log.info("Deleting user settings for installation ID: {} and userId: {}", installationId, userId);
-        return userSettingRepository.deleteByInstallationIdAndUserId(installationId,userId)
+        return evicting(installationId, userSettingRepository.deleteByInstallationIdAndUserId(installationId,userId)
                 .timeout(Duration.ofSeconds(5))
-                .transformDeferred(RetryOperator.of(mongoRetry))
+                .transformDeferred(RetryOperator.of(mongoRetry)))
                 .doOnSuccess(deleted -> {
                     if(deleted != null && deleted > 0)
                         log.info("User settings deleted successfully");
@@ -190,73 +283,69 @@ public class UserSettingService {
     }
 
     /**
-     * Updates user settings by merging with existing data.
-     * If user exists, overwrites globalSettings and repositories while keeping createdAt.
-     * If not exists, creates new document with current timestamp.
+     * Updates the global settings and repositories of an installation.
+     * Only what changed is written: each changed repository through a filtered positional {@code $set},
+     * the whole list only when repositories were added or removed. The update is conditioned on the version
+     * the changes were computed from: the version sent by the client if any, otherwise the one just read,
+     * in which case a concurrent change is retried on the new state.
+     * Without a client version the repositories to configure are not known to be the current ones, so additions
+     * and removals are ignored: only the repositories both stored and sent are updated.
      * Automatically invalidates cache to force reload on next access.
      *
      * @param settings DTO with new settings to save
      * @return Mono emitting true if update succeeds
-     * @throws MongoDbException if operation fails after all retries
+     * @throws MongoDbException with 409 status if the settings changed since the client version,
+     *                          404 if they do not exist, 500 if the operation fails after all retries
      */
-    @CacheEvict(value = "userSettings", key = "#settings.githubInstallationId")
     public Mono<Boolean> updateUserSettings(UserSettingDto settings) {
         log.info("Saving user settings for githubInstallationId: {}", settings.getGithubInstallationId());
-        return Mono.defer(() -> {
-            UserSetting settingEntity = userSettingMapper.settingToEntity(settings);
-            LocalDateTime now = LocalDateTime.now();
-            if (settingEntity.getId() == null) {
-                settingEntity.setCreatedAt(now);
-            }
-            settingEntity.setUpdatedAt(now);
-            return Mono.just(settingEntity);
-        })
-        .zipWhen(userSetting ->
-                userSettingRepository.findByGithubInstallationId(userSetting.getGithubInstallationId())
-                .timeout(Duration.ofSeconds(3))
-                .transformDeferred(RetryOperator.of(mongoRetry))
-        )
-        .flatMap(tuple -> mergeSettings(tuple.getT1(),tuple.getT2()))
-        .flatMap(userSetting ->
-                userSettingRepository.save(userSetting)
-                .timeout(Duration.ofSeconds(5))
-                .transformDeferred(RetryOperator.of(mongoRetry))
-        )
+        Long installationId = settings.getGithubInstallationId();
+        Mono<Void> update = Mono.defer(() -> {
+                    UserSetting incoming = userSettingMapper.settingToEntity(settings);
+                    return userSettingRepository.findByGithubInstallationId(installationId)
+                            .timeout(Duration.ofSeconds(3))
+                            .transformDeferred(RetryOperator.of(mongoRetry))
+                            .switchIfEmpty(Mono.error(new WebhookMainException("User settings not found for update", HttpStatus.NOT_FOUND)))
+                            .flatMap(existing -> {
+                                Long expectedVersion = settings.getVersion() != null ? settings.getVersion() : existing.getVersion();
+                                if (!Objects.equals(expectedVersion, existing.getVersion())) {
+                                    conflicts.get(UPDATE).increment();
+                                    return Mono.error(new OptimisticLockingFailureException(String.format(
+                                            "User settings changed since version %s", settings.getVersion())));
+                                }
+                                Update changes = settingsUpdate(existing, incoming, settings.getVersion() != null,
+                                        writtenRepositories.get(UPDATE)::record);
+                                return updateVersioned(installationId, expectedVersion, changes, UPDATE);
+                            });
+                });
+        // A client version is a precondition: its conflict goes back to the client, which has to reload
+        return evicting(installationId, timed(UPDATE, settings.getVersion() == null ? update.retryWhen(conflictRetry()) : update))
         .doOnSuccess(saved -> log.info("User settings saved successfully for githubInstallationId: {}", settings.getGithubInstallationId()))
         .onErrorMap(error -> new MongoDbException(
             String.format("Failed to save user settings for githubInstallationId: %s", settings.getGithubInstallationId()),
-            HttpStatus.INTERNAL_SERVER_ERROR,
+            conflictStatus(error),
             error))
-        .map(e -> true);
+        .thenReturn(true);
     }
 
     /**
-     * Retrieves user settings for userId with automatic caching.
-     * Result is cached for 50 minutes (configured in CacheConfig).
+     * Retrieves user settings for an installation, compiled into its repository routes.
+     * Served from the settings cache: concurrent reads of an installation not cached yet wait for the same load,
+     * settings older than {@code user-settings.cache.refresh-after-write} are reloaded in the background and
+     * an installation without settings is answered as not found for {@code missing-ttl} without reading MongoDB.
      * Called on every PR event to check if analysis is enabled for the repository.
-     * Applies automatic retry (max 3 attempts) and 3-second timeout.
      *
      * @param installationId GitHub installation ID
-     * @return Mono emitting UserSettingDto if found, empty if not exists
-     * @throws MongoDbException if retrieval fails after all retries
+     * @return Mono emitting the routes of the installation, with its UserSettingDto, if found
+     * @throws MongoDbException if retrieval fails after all retries or the settings do not exist
      */
-    @Cacheable(value = "userSettings", key = "#installationId")
-    public Mono<UserSettingDto> getUserSettings(Long installationId) {
-        log.info("Retrieving user settings for installationId: {}", installationId);
-        return userSettingRepository.findByGithubInstallationId(installationId)
-                .timeout(Duration.ofSeconds(3))
-                .transformDeferred(RetryOperator.of(mongoRetry))
-                .switchIfEmpty(Mono.error(new WebhookMainException(
+    public Mono<InstallationRoutes> getInstallationRoutes(Long installationId) {
+        // The load is shared by all the readers of the installation: one of them cancelling must not cancel it
+        return Mono.fromFuture(settingsCache.get(installationId), true)
+                .flatMap(routes -> routes.map(Mono::just).orElseGet(() -> Mono.error(new WebhookMainException(
                     String.format("User settings not found for installationId: %s", installationId),
                     HttpStatus.NOT_FOUND))
-                )
-                .map(userSettingMapper::settingToDto)
-                .doOnNext(settings -> log.info("User settings retrieved successfully for installationId: {}", installationId))
-                .doOnSuccess(settings -> {
-                    if (settings == null) {
-                        log.info("No user settings found for installationId: {}", installationId);
-                    }
-                })
+                ))
                 .onErrorMap(error -> new MongoDbException(
                     String.format("Failed to retrieve user settings for installationId: %s", installationId),
                     HttpStatus.INTERNAL_SERVER_ERROR,
@@ -264,67 +353,143 @@ public class UserSettingService {
                 );
     }
 
-    private static BiConsumer<UserSetting, SynchronousSink<UserSetting>> sinkRemovedTriggers(List<GHWebhookInstallationRepoPayload.Repository> repositories) {
-        List<Long> repoIdsToRemove = repositories.stream()
-                .map(GHWebhookInstallationRepoPayload.Repository::getId)
-                .toList();
-        return (userSetting,sink) -> {
-            List<RepositoryConfig> repos = new ArrayList<>(userSetting.getRepositories());
-            boolean removed = repos.removeIf(repo -> repoIdsToRemove.contains(repo.getRepoId()));
-            if (removed) {
-                userSetting.setRepositories(repos);
-                userSetting.setUpdatedAt(LocalDateTime.now());
-                sink.next(userSetting);
-                return;
-            }
-            log.info("No repositories removed - IDs {} not found for installation {}",
-                     repoIdsToRemove, userSetting.getGithubInstallationId());
-            sink.complete();
-        };
+    /**
+     * Loads and compiles the settings of an installation for the settings cache.
+     * Applies automatic retry (max 3 attempts) and 3-second timeout; a failed load is not cached.
+     *
+     * @return Mono emitting the routes of the installation, empty Optional if it has no settings
+     */
+    private Mono<Optional<InstallationRoutes>> loadInstallationRoutes(Long installationId) {
+        log.info("Retrieving user settings for installationId: {}", installationId);
+        return userSettingRepository.findByGithubInstallationId(installationId)
+                .timeout(Duration.ofSeconds(3))
+                .transformDeferred(RetryOperator.of(mongoRetry))
+                .map(userSettingMapper::settingToDto)
+                .doOnNext(settings -> log.info("User settings retrieved successfully for installationId: {}", installationId))
+                .map(settings -> Optional.of(InstallationRoutes.compile(settings)))
+                .switchIfEmpty(Mono.fromSupplier(() -> {
+                    log.info("No user settings found for installationId: {}", installationId);
+                    return Optional.empty();
+                }));
     }
 
-    private static BiConsumer<UserSetting, SynchronousSink<UserSetting>> sinkAddedTriggers(List<GHWebhookInstallationRepoPayload.Repository> repositories) {
-        return (userSetting,sink) -> {
-            List<Long> existingRepoIds = userSetting.getRepositories().stream()
-                    .map(RepositoryConfig::getRepoId)
-                    .toList();
+    /**
+     * Changes from the stored settings to the incoming ones. Repositories are matched by id: the changed ones
+     * are set in place, the whole list is replaced only if the repositories were added or removed on top of
+     * the current version. Otherwise the repositories not both stored and incoming are left untouched.
+     *
+     * @param versioned whether the incoming settings were edited from the stored version
+     * @param written receives the number of repositories written
+     */
+    static Update settingsUpdate(UserSetting existing, UserSetting incoming, boolean versioned, IntConsumer written) {
+        Update update = new Update()
+                .set("globalSettings", incoming.getGlobalSettings())
+                .set("updatedAt", LocalDateTime.now())
+                .inc("version", 1);
 
-            List<RepositoryConfig> newRepos = repositories.stream()
-                    .filter(repo -> !existingRepoIds.contains(repo.getId()))
-                    .map(repo -> RepositoryConfig.builder()
-                            .repoId(repo.getId())
-                            .repoName(repo.getName())
-                            .rules(AnalysisRules.defaults())
-                            .triggers(TriggerSettings.builder().build())
-                            .isActive(true)
-                            .metadata(RepositoryMetadata.builder().build())
-                            .notifications(NotificationSettings.builder().build())
-                            .build())
-                    .toList();
+        List<RepositoryConfig> repositories = incoming.getRepositories() == null ? List.of() : incoming.getRepositories();
+        Map<Long, RepositoryConfig> stored = existing.getRepositories().stream()
+                .collect(Collectors.toMap(RepositoryConfig::getRepoId, Function.identity(), (first, second) -> first));
+        Set<Long> incomingIds = repositories.stream().map(RepositoryConfig::getRepoId).collect(Collectors.toSet());
+        boolean sameRepositories = incomingIds.size() == repositories.size() && incomingIds.equals(stored.keySet())
+                && stored.size() == existing.getRepositories().size();
+        if (versioned && !sameRepositories) {
+            written.accept(repositories.size());
+            return update.set("repositories", repositories);
+        }
+        if (!sameRepositories) {
+            log.warn("Repositories of installation {} added or removed without a settings version: only updating the configured ones",
+                    existing.getGithubInstallationId());
+        }
 
-            if(!newRepos.isEmpty()){
-                List<RepositoryConfig> updatedRepos = new ArrayList<>(newRepos);
-                updatedRepos.addAll(userSetting.getRepositories());
-                userSetting.setRepositories(updatedRepos);
-                userSetting.setUpdatedAt(LocalDateTime.now());
-                sink.next(userSetting);
-                return;
+        int changed = 0;
+        Set<Long> updatedIds = new HashSet<>();
+        for (RepositoryConfig repository : repositories) {
+            RepositoryConfig current = stored.get(repository.getRepoId());
+            // Not configured, or sent twice: the first one wins
+            if (current == null || !updatedIds.add(repository.getRepoId())) {
+                continue;
+            }
+            if (!repository.equals(current)) {
+                String filter = "repo" + changed++;
+                update.set("repositories.$[" + filter + "]", repository)
+                        .filterArray(where(filter + ".repo_id").is(repository.getRepoId()));
             }
-            log.info("No new repositories to add - all IDs {} already exist for installation {}",
-                     repositories.stream().map(GHWebhookInstallationRepoPayload.Repository::getId).toList(),
-                     userSetting.getGithubInstallationId());
-            sink.complete();
-        };
+        }
+        written.accept(changed);
+        return update;
     }
 
-    private Mono<UserSetting> mergeSettings(UserSetting incoming, UserSetting existing) {
-        if(existing != null){
-            existing.setGlobalSettings(incoming.getGlobalSettings());
-            existing.setRepositories(incoming.getRepositories());
-            existing.setUpdatedAt(LocalDateTime.now());
+    /**
+     * Applies an update if the settings are still at the expected version.
+     *
+     * @return Mono completing when applied, failing with OptimisticLockingFailureException on a concurrent change
+     */
+    private Mono<Void> updateVersioned(Long installationId, Long expectedVersion, Update update, String operation) {
+        // A null version also matches the documents written before versioning
+        Query query = byInstallation(installationId).addCriteria(where("version").is(expectedVersion));
+        return mongoTemplate.updateFirst(query, update, UserSetting.class)
+                .timeout(Duration.ofSeconds(5))
+                .transformDeferred(RetryOperator.of(mongoRetry))
+                .flatMap(result -> {
+                    if (result.getMatchedCount() == 0) {
+                        conflicts.get(operation).increment();
+                        return Mono.error(new OptimisticLockingFailureException(String.format(
+                                "User settings of installation %s changed concurrently", installationId)));
+                    }
+                    return Mono.<Void>empty();
+                });
+    }
+
+    private static List<RepositoryConfig> newRepositories(UserSetting existing, List<GHWebhookInstallationRepoPayload.Repository> repositories) {
+        Set<Long> existingRepoIds = existing.getRepositories().stream()
+                .map(RepositoryConfig::getRepoId)
+                .collect(Collectors.toSet());
+        return repositories.stream()
+                .filter(repo -> !existingRepoIds.contains(repo.getId()))
+                .map(repo -> RepositoryConfig.builder()
+                        .repoId(repo.getId())
+                        .repoName(repo.getName())
+                        .rules(AnalysisRules.defaults())
+                        .triggers(TriggerSettings.builder().build())
+                        .isActive(true)
+                        .metadata(RepositoryMetadata.builder().build())
+                        .notifications(NotificationSettings.builder().build())
+                        .build())
+                .toList();
+    }
+
+    private static Query byInstallation(Long installationId) {
+        return Query.query(where("githubInstallationId").is(installationId));
+    }
 
-            return Mono.just(existing);
+    private static reactor.util.retry.Retry conflictRetry() {
+        return reactor.util.retry.Retry.max(MAX_CONFLICT_RETRIES).filter(OptimisticLockingFailureException.class::isInstance);
+    }
+
+    private static HttpStatus conflictStatus(Throwable error) {
+        Throwable cause = Exceptions.unwrap(error);
+        if (cause instanceof WebhookMainException webhookError) {
+            return webhookError.getStatus();
         }
-        return Mono.error(new WebhookMainException("User settings not found for update", HttpStatus.NOT_FOUND));
+        return cause instanceof OptimisticLockingFailureException || Exceptions.isRetryExhausted(error)
+                ? HttpStatus.CONFLICT
+                : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Invalidates the cached settings of an installation when a write terminates, before its result is
+     * propagated, so the next read reloads them; an in-flight load or refresh is discarded too.
+     */
+    private <T> Mono<T> evicting(Long installationId, Mono<T> write) {
+        return write.doOnTerminate(() -> settingsCache.synchronous().invalidate(installationId))
+                .doOnCancel(() -> settingsCache.synchronous().invalidate(installationId));
+    }
+
+    private <T> Mono<T> timed(String operation, Mono<T> write) {
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            return write.doFinally(signal -> writeTimers.get(operation).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+        });
     }
 }
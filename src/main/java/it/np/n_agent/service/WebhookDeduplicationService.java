@@ -0,0 +1,222 @@
+package it.np.n_agent.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.np.n_agent.config.WebhookDedupConfig;
+import it.np.n_agent.entity.WebhookDelivery;
+import it.np.n_agent.github.dto.GHWebhookPrPayload;
+import it.np.n_agent.github.enums.ActionType;
+import it.np.n_agent.github.enums.EventType;
+import it.np.n_agent.repository.WebhookDeliveryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Drops GitHub webhook redeliveries before they reach the processing queue.
+ * A webhook is identified by its X-GitHub-Delivery ID and, for pull request events that can trigger an analysis,
+ * also by installation + repository + PR number + head SHA + action, so a redelivery of the same event is never
+ * analyzed twice, while a different action on the same code (e.g. a PR reopened on the head it was opened with) is.
+ *
+ * Keys are first checked against a per-node Caffeine cache, then claimed in the {@code webhook_delivery}
+ * collection, whose unique _id makes the claim atomic across nodes. All keys are inserted even if one collides,
+ * then the ones this delivery inserted are released: a duplicate never leaves a partial claim behind.
+ * If MongoDB is unavailable the check fails open: a possible duplicate analysis is preferred to a lost one.
+ */
+@Service
+public class WebhookDeduplicationService {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookDeduplicationService.class);
+
+    private static final Set<ActionType> ANALYZABLE_PR_ACTIONS =
+            Set.of(ActionType.OPENED, ActionType.REOPENED, ActionType.SYNCHRONIZE, ActionType.EDITED);
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final WebhookDeliveryRepository deliveryRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final Cache<String, Boolean> seenKeys;
+    private final Counter duplicateLocalCounter;
+    private final Counter duplicateStoreCounter;
+
+    @Autowired
+    public WebhookDeduplicationService(WebhookDeliveryRepository deliveryRepository,
+                                       ReactiveMongoTemplate mongoTemplate,
+                                       WebhookDedupConfig dedupConfig,
+                                       MeterRegistry meterRegistry) {
+        this.deliveryRepository = deliveryRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.seenKeys = Caffeine.newBuilder()
+                .expireAfterWrite(dedupConfig.getTtl())
+                .maximumSize(dedupConfig.getLocalMaxSize())
+                .build();
+        this.duplicateLocalCounter = Counter.builder("webhook.dedup.duplicates")
+                .tag("tier", "local")
+                .register(meterRegistry);
+        this.duplicateStoreCounter = Counter.builder("webhook.dedup.duplicates")
+                .tag("tier", "mongodb")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Claims the deduplication keys of an incoming webhook.
+     *
+     * @param deliveryId X-GitHub-Delivery header, may be null
+     * @param eventType GitHub event type header (X-GitHub-Event)
+     * @param payload parsed webhook payload
+     * @return Mono emitting the claim if this is the first delivery, empty if it is a duplicate
+     */
+    public Mono<DeliveryClaim> claim(String deliveryId, String eventType, Object payload) {
+        DeliveryClaim claim = new DeliveryClaim(
+                deliveryId != null && !deliveryId.isBlank() ? "delivery:" + deliveryId : null,
+                contentKey(EventType.fromValue(eventType), payload));
+
+        List<String> keys = claim.keys();
+        if (keys.isEmpty()) {
+            return Mono.just(claim);
+        }
+
+        List<String> claimedLocally = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (seenKeys.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+                claimedLocally.forEach(seenKeys::invalidate);
+                duplicateLocalCounter.increment();
+                log.info("Duplicate webhook dropped (local): {}", key);
+                return Mono.empty();
+            }
+            claimedLocally.add(key);
+        }
+
+        Instant now = Instant.now();
+        return mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, WebhookDelivery.class)
+                .insert(keys.stream()
+                        .map(key -> WebhookDelivery.builder().id(key).createdAt(now).build())
+                        .toList())
+                .execute()
+                .then(Mono.just(claim))
+                .timeout(Duration.ofSeconds(2))
+                .onErrorResume(error -> duplicateIndexes(error) != null, error -> {
+                    List<Integer> duplicates = duplicateIndexes(error);
+                    // Keys that did not collide were claimed by this delivery: released, it is dropped
+                    forget(IntStream.range(0, keys.size()).filter(index -> !duplicates.contains(index)).mapToObj(keys::get).toList());
+                    duplicateStoreCounter.increment();
+                    log.info("Duplicate webhook dropped (mongodb): {}", keys);
+                    return Mono.empty();
+                })
+                .onErrorResume(error -> {
+                    log.warn("Webhook deduplication store unavailable, accepting delivery {}: {}", keys, error.toString());
+                    return Mono.just(claim);
+                });
+    }
+
+    /**
+     * Releases every key of a claim, so a redelivery of the same webhook is processed again.
+     * Used when processing failed.
+     *
+     * @param claim claim returned by {@link #claim}
+     */
+    public void release(DeliveryClaim claim) {
+        forget(claim.keys());
+    }
+
+    /**
+     * Releases only the content key of a claim, keeping the delivery ID.
+     * Used when the webhook was handled but no analysis ran (inactive repository, disabled trigger),
+     * so a later event for the same head SHA is not mistaken for a duplicate analysis.
+     *
+     * @param claim claim returned by {@link #claim}
+     */
+    public void releaseContent(DeliveryClaim claim) {
+        if (claim.contentKey() != null) {
+            forget(List.of(claim.contentKey()));
+        }
+    }
+
+    private void forget(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        seenKeys.invalidateAll(keys);
+        deliveryRepository.deleteAllById(keys)
+                .timeout(Duration.ofSeconds(2))
+                .subscribe(
+                        ignored -> {},
+                        error -> log.warn("Failed to release webhook keys {}: {}", keys, error.toString())
+                );
+    }
+
+    /**
+     * Indexes of the keys of a failed insert that collided with an existing claim.
+     *
+     * @return indexes of the duplicate keys, null if the insert failed for any other reason
+     */
+    private static List<Integer> duplicateIndexes(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            List<BulkWriteError> errors = switch (cause) {
+                case BulkOperationException bulk -> bulk.getErrors();
+                case MongoBulkWriteException bulk -> bulk.getWriteErrors();
+                default -> null;
+            };
+            if (errors != null) {
+                return !errors.isEmpty() && errors.stream().allMatch(writeError -> writeError.getCode() == DUPLICATE_KEY)
+                        ? errors.stream().map(BulkWriteError::getIndex).toList()
+                        : null;
+            }
+        }
+        return null;
+    }
+
+    private static String contentKey(EventType eventType, Object payload) {
+        if (eventType != EventType.PULL_REQUEST || !(payload instanceof GHWebhookPrPayload pr)) {
+            return null;
+        }
+        if (pr.getAction() == null || pr.getInstallation() == null || pr.getRepository() == null
+                || pr.getPullRequest() == null || pr.getPullRequest().getHead() == null) {
+            return null;
+        }
+        boolean analyzable = ANALYZABLE_PR_ACTIONS.stream()
+                .anyMatch(action -> action.name().equalsIgnoreCase(pr.getAction()));
+        if (!analyzable) {
+            return null;
+        }
+        return String.format("pr:%d:%s:%d:%s:%s",
+                pr.getInstallation().getId(),
+                pr.getRepository().getFullName(),
+                pr.getPullRequest().getNumber(),
+                pr.getPullRequest().getHead().getSha(),
+                pr.getAction().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Keys claimed for a single webhook delivery.
+     *
+     * @param deliveryKey key derived from the X-GitHub-Delivery header, null if the header is missing
+     * @param contentKey key derived from installation, repository, PR number, head SHA and action, null for other events
+     */
+    public record DeliveryClaim(String deliveryKey, String contentKey) {
+
+        List<String> keys() {
+            List<String> keys = new ArrayList<>(2);
+            if (deliveryKey != null) keys.add(deliveryKey);
+            if (contentKey != null) keys.add(contentKey);
+            return keys;
+        }
+    }
+}
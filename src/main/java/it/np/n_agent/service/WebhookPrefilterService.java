@@ -0,0 +1,83 @@
+package it.np.n_agent.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.np.n_agent.github.dto.GHWebhookPrPreview;
+import it.np.n_agent.github.enums.ActionType;
+import it.np.n_agent.github.enums.EventType;
+import it.np.n_agent.utilities.RequestUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * Discards pull_request webhooks that cannot trigger an analysis before their payload is bound.
+ * Only a handful of fields are read from the raw payload (see {@link RequestUtility#previewPullRequest}):
+ * the action is checked first, then the repository triggers from the cached user settings.
+ * Any doubt (missing fields, settings unavailable) lets the webhook through, so the full check in
+ * {@link WebhookService} still decides.
+ */
+@Service
+public class WebhookPrefilterService {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookPrefilterService.class);
+
+    private final RequestUtility requestUtility;
+    private final UserSettingService userSettingService;
+    private final Counter ignoredActionCounter;
+    private final Counter ignoredTriggerCounter;
+
+    @Autowired
+    public WebhookPrefilterService(RequestUtility requestUtility,
+                                   UserSettingService userSettingService,
+                                   MeterRegistry meterRegistry) {
+        this.requestUtility = requestUtility;
+        this.userSettingService = userSettingService;
+        this.ignoredActionCounter = Counter.builder("webhook.prefilter.ignored")
+                .tag("reason", "action")
+                .description("Pull request webhooks ignored because the action never triggers an analysis")
+                .register(meterRegistry);
+        this.ignoredTriggerCounter = Counter.builder("webhook.prefilter.ignored")
+                .tag("reason", "trigger")
+                .description("Pull request webhooks ignored because the repository is inactive or the trigger disabled")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Checks whether a webhook may need processing, without binding its payload.
+     *
+     * @param rawPayload raw webhook payload, already HMAC-validated; its read position is left untouched
+     * @param eventType GitHub event type header (X-GitHub-Event)
+     * @return Mono emitting false if the webhook can be safely ignored, true otherwise
+     */
+    public Mono<Boolean> isRelevant(DataBuffer rawPayload, String eventType) {
+        if (EventType.fromValue(eventType) != EventType.PULL_REQUEST) {
+            return Mono.just(true);
+        }
+        GHWebhookPrPreview preview = requestUtility.previewPullRequest(rawPayload);
+
+        if (!ActionType.isAnalyzableActionPR(preview.action())) {
+            ignoredActionCounter.increment();
+            log.info("Pull request action {} never triggers an analysis. Ignoring webhook.", preview.action());
+            return Mono.just(false);
+        }
+        if (preview.installationId() == null || preview.repositoryName() == null) {
+            return Mono.just(true);
+        }
+
+        return userSettingService.getInstallationRoutes(preview.installationId())
+                .map(routes -> routes.isAnalysisTriggered(preview.repositoryId(), preview.repositoryName(), preview.action()))
+                .defaultIfEmpty(true)
+                .onErrorReturn(true)
+                .doOnNext(relevant -> {
+                    if (!relevant) {
+                        ignoredTriggerCounter.increment();
+                        log.info("Repository {} is inactive for action {} on PR #{} (draft={}). Ignoring webhook.",
+                                preview.repositoryName(), preview.action(), preview.pullRequestNumber(), preview.draft());
+                    }
+                });
+    }
+}
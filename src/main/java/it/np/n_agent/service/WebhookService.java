@@ -1,13 +1,17 @@
 package it.np.n_agent.service;
 
+import it.np.n_agent.ai.dto.AnalysisEvent;
 import it.np.n_agent.ai.dto.CodeAnalysisResult;
-import it.np.n_agent.dto.UserSettingDto;
+import it.np.n_agent.ai.dto.CodeIssue;
 import it.np.n_agent.exception.WebhookMainException;
 import it.np.n_agent.github.dto.GHWebhookInstallationPaylaod;
 import it.np.n_agent.github.dto.GHWebhookInstallationRepoPayload;
 import it.np.n_agent.github.dto.GHWebhookPrPayload;
 import it.np.n_agent.github.enums.ActionType;
 import it.np.n_agent.github.enums.EventType;
+import it.np.n_agent.service.HistoricalContextService.HistoricalContext;
+import it.np.n_agent.service.IncrementalReviewService.ReviewDiff;
+import it.np.n_agent.service.PullRequestCoalescingService.PullRequestHead;
 import lombok.Builder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,13 +21,12 @@ import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.SynchronousSink;
 
-import java.util.Optional;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto;
 import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.AnalysisRulesDto;
 import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.NotificationSettingsDto;
-import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.TriggerSettingsDto;
 
 @Service
 public class WebhookService {
@@ -31,16 +34,31 @@ public class WebhookService {
     private static final Logger log = LoggerFactory.getLogger(WebhookService.class);
 
     private final AiService aiService;
-    private final GithubService githubService;
     private final NotificationService notificationService;
     private final UserSettingService userSettingService;
+    private final PullRequestCoalescingService coalescingService;
+    private final AnalysisLoadTracker loadTracker;
+    private final DiffFilterService diffFilterService;
+    private final IncrementalReviewService incrementalReviewService;
+    private final HistoricalContextService historicalContextService;
 
     @Autowired
-    public WebhookService(AiService aiService, GithubService githubService, NotificationService notificationService, UserSettingService userSettingService) {
+    public WebhookService(AiService aiService,
+                          NotificationService notificationService,
+                          UserSettingService userSettingService,
+                          PullRequestCoalescingService coalescingService,
+                          AnalysisLoadTracker loadTracker,
+                          DiffFilterService diffFilterService,
+                          IncrementalReviewService incrementalReviewService,
+                          HistoricalContextService historicalContextService) {
         this.aiService = aiService;
-        this.githubService = githubService;
         this.notificationService = notificationService;
         this.userSettingService = userSettingService;
+        this.coalescingService = coalescingService;
+        this.loadTracker = loadTracker;
+        this.diffFilterService = diffFilterService;
+        this.incrementalReviewService = incrementalReviewService;
+        this.historicalContextService = historicalContextService;
     }
 
     /**
@@ -110,8 +128,11 @@ public class WebhookService {
      * 4. Handles AI response (stores results, posts comments)
      * 5. Sends notifications based on user preferences
      *
+     * Steps 2-5 run through {@link PullRequestCoalescingService}, only if no newer head SHA arrived for the same PR
+     * since the webhook was received (and debounced, before being enqueued). A newer head SHA cancels this analysis wherever it is.
+     *
      * Uses reactive chain with bounded elastic scheduler for potentially blocking operations.
-     * Returns empty (false) if repository is inactive or triggers don't match.
+     * Returns empty (false) if repository is inactive, triggers don't match or the analysis was superseded.
      *
      * @param payload GitHub PR webhook payload containing PR details and metadata
      * @return Mono emitting true if analysis completes successfully, false if skipped
@@ -134,23 +155,112 @@ public class WebhookService {
                 .prNumber(prNumber)
                 .owner(owner)
                 .repo(repo)
+                .repoFullName(payload.getRepository().getFullName())
+                .repoUrl(payload.getRepository().getUrl())
+                .action(payload.getAction())
                 .build();
 
-        return userSettingService.getUserSettings(installationId)
+        // No head without a head SHA: nothing to coalesce with, the analysis runs on its own
+        PullRequestHead head = PullRequestHead.of(payload);
+        return userSettingService.getInstallationRoutes(installationId)
                             .handle(sinkActionTriggers(payload))
+                            .flatMap(route -> head == null
+                                    ? analyzePullRequest(route, baseInfo)
+                                    : coalescingService.coalesce(head, () -> analyzePullRequest(route, baseInfo)))
+                            .defaultIfEmpty(false);
+    }
+
+    /**
+     * Runs the analysis pipeline of a pull request head: diff retrieval and filtering, AI analysis,
+     * historical issues persistence and notification.
+     * On a synchronize event only the changes since the last reviewed head are retrieved, when possible
+     * (see {@link IncrementalReviewService}); the head is recorded as reviewed once the notification is sent.
+     * Files excluded by the repository ignore patterns or languages are removed from the diff first;
+     * if nothing is left the PR is not analyzed.
+     * The historical issues of the installation are prefetched while the diff is retrieved (see {@link HistoricalContextService}).
+     * When the user receives GitHub comments, the analysis is streamed and inline comments are published
+     * as soon as each issue is generated; the final review then carries only the summary and the remaining comments.
+     *
+     * @param route compiled settings of the repository, already checked against the PR triggers
+     * @param baseInfo base webhook information of the PR head to analyze
+     * @return Mono emitting true if the notification was sent successfully
+     */
+    private Mono<Boolean> analyzePullRequest(InstallationRoutes.Route route, WebhookBaseInfo baseInfo) {
+        AnalysisRulesDto rules = route.config().getRules();
+        Mono<ReviewDiff> reviewDiff = incrementalReviewService.retrieveDiff(baseInfo)
+                .map(review -> new ReviewDiff(diffFilterService.filter(review.diff(), rules), review.sinceSha()))
+                .filter(filtered -> {
+                    if (filtered.diff().isBlank()) {
+                        log.info("No files left to analyze in PR #{} after filtering", baseInfo.prNumber());
+                        return false;
+                    }
+                    return true;
+                });
+
+        return reviewDiff.zipWith(historicalContextService.prefetch(baseInfo.installationId()))
+                .flatMap(prefetched -> loadTracker.holdingDiff(
+                Mono.just(prefetched.getT1().diff()),
+                filteredDiff -> {
+                    ReviewDiff review = prefetched.getT1();
+                    HistoricalContext history = prefetched.getT2();
+                    WebhookZipInput zipInput = buildWebhookZipInput(filteredDiff, route, baseInfo);
+                    return notificationService.streamsInlineComments(zipInput.notificationSettingsDto())
+                            ? streamPullRequestAnalysis(zipInput, review, history)
+                            : Mono.just(zipInput)
                             .zipWhen(
-                                    setting -> githubService.retrieveDiff(apiPath,installationId),
-                                    (setting, diff) -> buildWebhookZipInput(diff, setting, repo,baseInfo)
-                            )
-                            .zipWhen(
-                                    input -> aiService.analyzeDiff(input.diff(),input.rules()),
+                                    input -> aiService.analyzeDiff(input.diff(),input.rules(),input.aiModel(),history)
+                                            .map(result -> describeScope(result, review)),
                                     WebhookZipInput::withAnalysisResult
                             )
-                            .delayUntil((input) -> aiService.handleAiResponse(input.analysisResult, prNumber, installationId))
-                            .flatMap(input -> notificationService.sendNotification(input.webhookBaseInfo,input.analysisResult,input.notificationSettingsDto))
-                            .defaultIfEmpty(false);
+                            .delayUntil((input) -> aiService.handleAiResponse(input.analysisResult, baseInfo.prNumber(), baseInfo.installationId()))
+                            .flatMap(input -> notificationService.sendNotification(input.webhookBaseInfo,input.analysisResult,input.notificationSettingsDto));
+                }))
+                .delayUntil(sent -> sent ? incrementalReviewService.markReviewed(baseInfo) : Mono.empty());
+    }
+
+    /**
+     * Streaming variant of the analysis: the AI response is shared between the inline comment publisher,
+     * fed with every issue as soon as it is parsed, and the final result used for persistence and the summary review.
+     * Inline comments are only published while the head is still the latest one of the PR; issues that were not
+     * published, for any reason, go in the final review.
+     *
+     * @param input diff, rules and notification settings of the PR head
+     * @param review scope of the analyzed diff
+     * @param history prefetched historical issues
+     * @return Mono emitting true if the notification was sent successfully
+     */
+    private Mono<Boolean> streamPullRequestAnalysis(WebhookZipInput input, ReviewDiff review, HistoricalContext history) {
+        WebhookBaseInfo baseInfo = input.webhookBaseInfo();
+        // Null when the analysis was not coalesced, see handlePullRequestEvent
+        PullRequestHead head = baseInfo.commitSha() == null ? null
+                : new PullRequestHead(baseInfo.installationId(), baseInfo.repoFullName(), baseInfo.prNumber(), baseInfo.commitSha());
+        return aiService.streamAnalysis(input.diff(), input.rules(), input.aiModel(), history)
+                .publish(events -> Mono.zip(
+                        events.ofType(AnalysisEvent.Completed.class).map(AnalysisEvent.Completed::result).last(),
+                        notificationService.publishInlineComments(baseInfo,
+                                events.ofType(AnalysisEvent.IssueFound.class).map(AnalysisEvent.IssueFound::issue),
+                                () -> head == null || coalescingService.isCurrent(head))
+                ).flux())
+                .single()
+                .delayUntil(streamed -> aiService.handleAiResponse(streamed.getT1(), baseInfo.prNumber(), baseInfo.installationId()))
+                .flatMap(streamed -> {
+                    CodeAnalysisResult result = describeScope(streamed.getT1(), review);
+                    List<CodeIssue> published = streamed.getT2();
+                    return notificationService.sendNotification(baseInfo, result, input.notificationSettingsDto(), published);
+                });
     }
 
+    /**
+     * Tells in the summary that an incremental review only covers the commits added since the last review.
+     */
+    private static CodeAnalysisResult describeScope(CodeAnalysisResult result, ReviewDiff review) {
+        if (review.isIncremental()) {
+            String since = review.sinceSha().length() > 7 ? review.sinceSha().substring(0, 7) : review.sinceSha();
+            result.setSummary("Incremental review of the changes since " + since + "."
+                    + (result.getSummary() == null ? "" : System.lineSeparator() + result.getSummary()));
+        }
+        return result;
+    }
 
     /**
      * Handles GitHub PUSH events.
@@ -165,32 +275,26 @@ public class WebhookService {
     }
 
     /**
-     * Creates a BiConsumer for filtering user settings based on repository triggers.
-     * Used in reactive .handle() operator to conditionally emit settings.
+     * Creates a BiConsumer for filtering the routes of an installation based on repository triggers.
+     * Used in reactive .handle() operator to conditionally emit the route of the PR repository.
      *
-     * Emits the setting downstream only if:
-     * - Repository is found in user settings
+     * Emits the route downstream only if:
+     * - Repository is found in user settings, by id or name
      * - Repository is active (isActive = true)
      * - Action trigger matches the PR action (onPROpen, onPRUpdate, etc.)
      *
      * If conditions are not met, completes the sink without emitting to prevent reactive chain hang.
      *
-     * @param payload GitHub PR webhook payload to extract repository name and action
-     * @return BiConsumer that emits setting if triggers match, completes otherwise
+     * @param payload GitHub PR webhook payload to extract repository and action
+     * @return BiConsumer that emits the repository route if triggers match, completes otherwise
      */
-    private static BiConsumer<UserSettingDto, SynchronousSink<UserSettingDto>> sinkActionTriggers(GHWebhookPrPayload payload) {
-        return (setting, sink) -> {
+    private static BiConsumer<InstallationRoutes, SynchronousSink<InstallationRoutes.Route>> sinkActionTriggers(GHWebhookPrPayload payload) {
+        return (routes, sink) -> {
             String repo = payload.getRepository().getName();
-            Optional<UserSettingDto.RepositoryConfigDto> repoConfigOpt =
-                    setting.getRepositories().stream()
-                            .filter(r -> r.getRepoName().equalsIgnoreCase(repo))
-                            .findFirst();
-            if (repoConfigOpt.isPresent() && repoConfigOpt.get().getIsActive()) {
-                TriggerSettingsDto conf = repoConfigOpt.get().getTriggers();
-                if (ActionType.isValidActionPR(conf, payload.getAction())) {
-                    sink.next(setting);
-                    return;
-                }
+            InstallationRoutes.Route route = routes.route(payload.getRepository().getId(), repo);
+            if (route != null && route.isTriggeredBy(payload.getAction())) {
+                sink.next(route);
+                return;
             }
             log.info("Repository {} is inactive for action {}. Skipping analysis.", repo, payload.getAction());
             sink.complete();
@@ -199,20 +303,15 @@ public class WebhookService {
 
     /**
      * Builds a WebhookZipInput record combining all data needed for analysis workflow.
-     * Extracts repository-specific configuration (rules, notifications) from user settings.
-     * If repository is not found in settings, creates a default empty configuration.
+     * Takes repository-specific configuration (rules, notifications) and the installation AI model from the compiled route.
      *
      * @param diff Git diff content retrieved from GitHub API
-     * @param setting User settings containing repository configurations
-     * @param repoName Repository name to extract configuration for
+     * @param route Compiled settings of the repository
      * @param baseInfo Base webhook information (installationId, PR number, etc.)
      * @return WebhookZipInput record with all data for downstream processing
      */
-    public static WebhookZipInput buildWebhookZipInput(String diff, UserSettingDto setting, String repoName, WebhookBaseInfo baseInfo){
-        RepositoryConfigDto repoConfig =
-                setting.getRepositories().stream()
-                        .filter(r -> r.getRepoName().equalsIgnoreCase(repoName))
-                        .findFirst().orElse(RepositoryConfigDto.builder().build());
+    public static WebhookZipInput buildWebhookZipInput(String diff, InstallationRoutes.Route route, WebhookBaseInfo baseInfo){
+        RepositoryConfigDto repoConfig = route.config();
 
         AnalysisRulesDto rules = repoConfig.getRules();
 
@@ -222,6 +321,7 @@ public class WebhookService {
                 .rules(rules)
                 .webhookBaseInfo(baseInfo)
                 .notificationSettingsDto(repoConfig.getNotifications())
+                .aiModel(route.aiModel())
                 .build();
     }
 
@@ -231,7 +331,8 @@ public class WebhookService {
                                   AnalysisRulesDto rules,
                                   NotificationSettingsDto notificationSettingsDto,
                                   WebhookBaseInfo webhookBaseInfo,
-                                  CodeAnalysisResult analysisResult
+                                  CodeAnalysisResult analysisResult,
+                                  String aiModel
     ){
         WebhookZipInput withProcessResult(WebhookBaseInfo result){
             return WebhookZipInput.builder()
@@ -241,6 +342,7 @@ public class WebhookService {
                     .notificationSettingsDto(this.notificationSettingsDto)
                     .analysisResult(this.analysisResult)
                     .webhookBaseInfo(result)
+                    .aiModel(this.aiModel)
                     .build();
         }
 
@@ -252,6 +354,7 @@ public class WebhookService {
                     .notificationSettingsDto(this.notificationSettingsDto)
                     .webhookBaseInfo(this.webhookBaseInfo)
                     .analysisResult(analysisResult)
+                    .aiModel(this.aiModel)
                     .build();
         }
     }
@@ -266,6 +369,9 @@ public class WebhookService {
      * @param prNumber Pull request number
      * @param owner Repository owner (user or organization login)
      * @param repo Repository name
+     * @param repoFullName Repository full name (owner/name)
+     * @param repoUrl GitHub API URL of the repository
+     * @param action Pull request action that triggered the analysis
      */
     @Builder
     public record WebhookBaseInfo(Long installationId,
@@ -273,7 +379,10 @@ public class WebhookService {
                                   String url,
                                   Long prNumber,
                                   String owner,
-                                  String repo
+                                  String repo,
+                                  String repoFullName,
+                                  String repoUrl,
+                                  String action
 
     ) {}
 }
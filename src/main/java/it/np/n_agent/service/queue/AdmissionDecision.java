@@ -0,0 +1,13 @@
+package it.np.n_agent.service.queue;
+
+/**
+ * Outcome of the admission control on an incoming webhook.
+ */
+public enum AdmissionDecision {
+    /** Enqueued for processing. */
+    ADMIT,
+    /** Accepted, but held back and admitted again after a delay. */
+    DEFER,
+    /** Refused with 503 and Retry-After. */
+    REJECT
+}
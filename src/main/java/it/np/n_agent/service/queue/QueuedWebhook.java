@@ -0,0 +1,18 @@
+package it.np.n_agent.service.queue;
+
+import it.np.n_agent.github.enums.EventType;
+import it.np.n_agent.service.WebhookDeduplicationService.DeliveryClaim;
+
+/**
+ * Webhook waiting in a {@link WebhookLane}.
+ *
+ * @param eventType GitHub event type of the payload
+ * @param installationId GitHub App installation the webhook belongs to, {@link #UNKNOWN_INSTALLATION} if missing
+ * @param payload parsed webhook payload
+ * @param claim deduplication keys claimed for the delivery, released if processing does not complete
+ * @param enqueuedAtNanos {@link System#nanoTime()} at enqueue time, used for the wait-time metric
+ */
+record QueuedWebhook(EventType eventType, long installationId, Object payload, DeliveryClaim claim, long enqueuedAtNanos) {
+
+    static final long UNKNOWN_INSTALLATION = 0L;
+}
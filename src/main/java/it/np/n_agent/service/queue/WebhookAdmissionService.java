@@ -0,0 +1,107 @@
+package it.np.n_agent.service.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.np.n_agent.config.WebhookAdmissionConfig;
+import it.np.n_agent.github.dto.GHWebhookPrPayload;
+import it.np.n_agent.github.enums.EventType;
+import it.np.n_agent.service.AnalysisLoadTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Admission control for pull request webhooks, the only ones that start an analysis.
+ * The load is measured on three signals: pull request webhooks pending in the queue, bytes of diff
+ * held by analyses in progress and concurrent AI calls.
+ * Above any {@code defer} threshold low-priority actions are deferred; above any {@code reject} threshold
+ * every pull request webhook is rejected. Other event types are cheap and always admitted.
+ */
+@Service
+class WebhookAdmissionService {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookAdmissionService.class);
+
+    private final WebhookAdmissionConfig admissionConfig;
+    private final AnalysisLoadTracker loadTracker;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    WebhookAdmissionService(WebhookAdmissionConfig admissionConfig,
+                            AnalysisLoadTracker loadTracker,
+                            MeterRegistry meterRegistry) {
+        this.admissionConfig = admissionConfig;
+        this.loadTracker = loadTracker;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Decides whether a webhook can be enqueued now.
+     *
+     * @param eventType event type of the webhook
+     * @param payload parsed webhook payload
+     * @param pendingAnalyses pull request webhooks debouncing, queued or being processed
+     * @param deferred webhooks currently deferred
+     * @return admission decision, recorded in the {@code webhook.admission.decisions} counter
+     */
+    AdmissionDecision decide(EventType eventType, Object payload, int pendingAnalyses, int deferred) {
+        if (!admissionConfig.isEnabled() || eventType != EventType.PULL_REQUEST) {
+            return AdmissionDecision.ADMIT;
+        }
+
+        String overloaded = exceeded(pendingAnalyses, true);
+        if (overloaded != null) {
+            return record(AdmissionDecision.REJECT, overloaded);
+        }
+        String underPressure = exceeded(pendingAnalyses, false);
+        if (underPressure == null || !isLowPriority(payload)) {
+            return record(AdmissionDecision.ADMIT, underPressure == null ? "none" : underPressure);
+        }
+        if (deferred >= admissionConfig.getMaxDeferred()) {
+            return record(AdmissionDecision.REJECT, "deferred");
+        }
+        return record(AdmissionDecision.DEFER, underPressure);
+    }
+
+    /**
+     * @return name of the first signal above its reject (or defer) threshold, null if none
+     */
+    private String exceeded(int pendingAnalyses, boolean reject) {
+        if (pendingAnalyses >= limit(admissionConfig.getPendingAnalyses(), reject)) {
+            return "pending_analyses";
+        }
+        WebhookAdmissionConfig.SizeThresholds diffBytes = admissionConfig.getDiffBytes();
+        if (loadTracker.diffBytes() >= (reject ? diffBytes.getReject() : diffBytes.getDefer()).toBytes()) {
+            return "diff_bytes";
+        }
+        if (loadTracker.aiCalls() >= limit(admissionConfig.getAiCalls(), reject)) {
+            return "ai_calls";
+        }
+        return null;
+    }
+
+    private static long limit(WebhookAdmissionConfig.Thresholds thresholds, boolean reject) {
+        return reject ? thresholds.getReject() : thresholds.getDefer();
+    }
+
+    private boolean isLowPriority(Object payload) {
+        return payload instanceof GHWebhookPrPayload pr
+                && admissionConfig.getLowPriorityActions().stream()
+                        .anyMatch(action -> action.name().equalsIgnoreCase(pr.getAction()));
+    }
+
+    private AdmissionDecision record(AdmissionDecision decision, String reason) {
+        if (decision != AdmissionDecision.ADMIT) {
+            log.warn("Pull request webhook {} by admission control (signal: {}, pending diff bytes: {}, AI calls: {})",
+                    decision, reason, loadTracker.diffBytes(), loadTracker.aiCalls());
+        }
+        Counter.builder("webhook.admission.decisions")
+                .tag("decision", decision.name().toLowerCase())
+                .tag("signal", reason)
+                .description("Admission control decisions on pull request webhooks")
+                .register(meterRegistry)
+                .increment();
+        return decision;
+    }
+}
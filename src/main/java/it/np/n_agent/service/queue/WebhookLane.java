@@ -0,0 +1,384 @@
+package it.np.n_agent.service.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import it.np.n_agent.github.enums.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Bounded lane serving a single webhook event type.
+ * At most {@code workers} tasks run concurrently; further tasks wait in a queue of at most {@code capacity} entries.
+ * Tasks are started by a non-reentrant drain loop, so a task completing synchronously never recurses into the next one.
+ *
+ * A slot can be reserved ahead of the webhook, for pull request webhooks held for their debounce window:
+ * reserved slots count against the capacity, so the webhook is accepted once it is offered.
+ *
+ * Waiting webhooks are kept in one FIFO sub-queue per installation, served by deficit round-robin:
+ * on its turn an installation may start up to its weight in webhooks, never exceeding its in-flight cap,
+ * so a burst from one installation cannot delay the webhooks of the others by more than one round.
+ * The wait of each installation with queued webhooks is exported by {@link #publishInstallationWaits}: one series per
+ * waiting installation, so at most {@code capacity} of them, removed once the installation has nothing queued.
+ */
+class WebhookLane {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookLane.class);
+
+    private final EventType eventType;
+    private final int capacity;
+    private final int workers;
+    private final int maxInFlightPerInstallation;
+    private final int maxQueuedPerInstallation;
+    private final LongToIntFunction weightOf;
+    private final Function<QueuedWebhook, Mono<Boolean>> processor;
+
+    private final Map<Long, Installation> installations = new HashMap<>();
+    // Installations with queued webhooks, in round-robin order
+    private final ArrayDeque<Installation> rotation = new ArrayDeque<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Disposable.Composite running = Disposables.composite();
+    private int queued;
+    private int reserved;
+    private int inFlight;
+    private boolean accepting = true;
+
+    private final Timer waitTimer;
+    private final Timer successTimer;
+    private final Timer failureTimer;
+    private final Counter rejectedCounter;
+    private final MultiGauge installationWaitGauge;
+
+    WebhookLane(EventType eventType, int capacity, int workers,
+                int maxInFlightPerInstallation, int maxQueuedPerInstallation,
+                LongToIntFunction weightOf,
+                Function<QueuedWebhook, Mono<Boolean>> processor,
+                MeterRegistry meterRegistry) {
+        this.eventType = eventType;
+        this.capacity = capacity;
+        this.workers = workers;
+        this.maxInFlightPerInstallation = maxInFlightPerInstallation > 0 ? maxInFlightPerInstallation : workers;
+        this.maxQueuedPerInstallation = maxQueuedPerInstallation > 0 ? maxQueuedPerInstallation : capacity;
+        this.weightOf = weightOf;
+        this.processor = processor;
+
+        String event = eventType.getEventValue();
+        Gauge.builder("webhook.queue.depth", this, WebhookLane::queued)
+                .tag("event", event)
+                .description("Webhooks waiting for a free worker")
+                .register(meterRegistry);
+        Gauge.builder("webhook.queue.in_flight", this, WebhookLane::inFlight)
+                .tag("event", event)
+                .description("Webhooks currently being processed")
+                .register(meterRegistry);
+        Gauge.builder("webhook.queue.installations", this, WebhookLane::waitingInstallations)
+                .tag("event", event)
+                .description("Installations with webhooks waiting for a free worker")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("webhook.queue.wait")
+                .tag("event", event)
+                .description("Time spent by a webhook in the queue before processing started")
+                .register(meterRegistry);
+        this.successTimer = Timer.builder("webhook.queue.processing")
+                .tag("event", event)
+                .tag("outcome", "success")
+                .register(meterRegistry);
+        this.failureTimer = Timer.builder("webhook.queue.processing")
+                .tag("event", event)
+                .tag("outcome", "failure")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("webhook.queue.rejected")
+                .tag("event", event)
+                .description("Webhooks rejected because the lane was full or shutting down")
+                .register(meterRegistry);
+        this.installationWaitGauge = MultiGauge.builder("webhook.queue.installation.oldest_wait")
+                .tag("event", event)
+                .baseUnit("seconds")
+                .description("Time waited so far by the oldest queued webhook of each installation with queued webhooks")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Adds a webhook to the lane if there is room and the lane is still accepting work.
+     *
+     * @param webhook webhook to enqueue
+     * @return true if accepted, false if the lane or the installation sub-queue is full, or the lane is draining
+     */
+    boolean offer(QueuedWebhook webhook) {
+        synchronized (this) {
+            if (!hasRoom(webhook.installationId())) {
+                rejectedCounter.increment();
+                return false;
+            }
+            enqueue(webhook);
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Reserves a slot for a webhook of an installation offered later with {@link #offerReserved}.
+     *
+     * @param installationId installation of the webhook
+     * @return true if reserved, false if the lane or the installation sub-queue is full, or the lane is draining
+     */
+    synchronized boolean reserve(long installationId) {
+        if (!hasRoom(installationId)) {
+            rejectedCounter.increment();
+            return false;
+        }
+        installation(installationId).reserved++;
+        reserved++;
+        return true;
+    }
+
+    /**
+     * Adds a webhook to the slot reserved for it, even if the lane started draining in the meantime.
+     */
+    void offerReserved(QueuedWebhook webhook) {
+        synchronized (this) {
+            unreserve(webhook.installationId());
+            enqueue(webhook);
+        }
+        drain();
+    }
+
+    /**
+     * Adds a webhook regardless of the capacity of the lane and of the installation sub-queue.
+     * Used for webhooks already accepted with 202 that have been held back long enough: the lane may
+     * briefly exceed its capacity rather than lose them.
+     */
+    void forceOffer(QueuedWebhook webhook) {
+        synchronized (this) {
+            enqueue(webhook);
+        }
+        drain();
+    }
+
+    /**
+     * Releases a reserved slot whose webhook will not be offered.
+     */
+    synchronized void cancelReservation(long installationId) {
+        unreserve(installationId);
+        Installation installation = installations.get(installationId);
+        if (installation != null && installation.isIdle()) {
+            installations.remove(installationId);
+        }
+    }
+
+    private boolean hasRoom(long installationId) {
+        Installation installation = installations.get(installationId);
+        return accepting && queued + reserved < capacity
+                && (installation == null || installation.queue.size() + installation.reserved < maxQueuedPerInstallation);
+    }
+
+    private void enqueue(QueuedWebhook webhook) {
+        Installation installation = installation(webhook.installationId());
+        if (installation.queue.isEmpty()) {
+            rotation.addLast(installation);
+        }
+        installation.queue.addLast(webhook);
+        queued++;
+    }
+
+    private void unreserve(long installationId) {
+        Installation installation = installations.get(installationId);
+        if (installation != null && installation.reserved > 0) {
+            installation.reserved--;
+            reserved--;
+        }
+    }
+
+    private Installation installation(long installationId) {
+        return installations.computeIfAbsent(installationId, Installation::new);
+    }
+
+    /**
+     * Stops accepting new webhooks. Already queued ones are still processed.
+     */
+    synchronized void close() {
+        accepting = false;
+    }
+
+    synchronized boolean isIdle() {
+        return queued == 0 && inFlight == 0;
+    }
+
+    /**
+     * Drops queued webhooks and cancels the in-flight ones. Used when the drain timeout expires.
+     *
+     * @return number of webhooks dropped or cancelled
+     */
+    int abort() {
+        int dropped;
+        synchronized (this) {
+            dropped = queued + inFlight;
+            rotation.clear();
+            installations.values().removeIf(installation -> {
+                installation.queue.clear();
+                installation.deficit = 0;
+                return installation.inFlight == 0 && installation.reserved == 0;
+            });
+            queued = 0;
+        }
+        running.dispose();
+        return dropped;
+    }
+
+    synchronized int queued() {
+        return queued;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    synchronized int waitingInstallations() {
+        return rotation.size();
+    }
+
+    /**
+     * Refreshes the wait of the oldest queued webhook of each waiting installation; installations without
+     * queued webhooks are removed from the gauge.
+     */
+    void publishInstallationWaits() {
+        List<MultiGauge.Row<?>> rows = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Installation installation : rotation) {
+                QueuedWebhook oldest = installation.queue.peekFirst();
+                if (oldest != null) {
+                    rows.add(MultiGauge.Row.of(Tags.of("installation", String.valueOf(installation.id)),
+                            (now - oldest.enqueuedAtNanos()) / 1e9));
+                }
+            }
+        }
+        installationWaitGauge.register(rows, true);
+    }
+
+    EventType eventType() {
+        return eventType;
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            QueuedWebhook next;
+            while ((next = pollIfWorkerAvailable()) != null) {
+                start(next);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Picks the next webhook in deficit round-robin order. An installation at its in-flight cap is skipped
+     * for this round; if every waiting installation is at its cap, nothing is started until a task completes.
+     */
+    private synchronized QueuedWebhook pollIfWorkerAvailable() {
+        if (inFlight >= workers || queued == 0) {
+            return null;
+        }
+        for (int visited = 0, waiting = rotation.size(); visited < waiting; visited++) {
+            Installation installation = rotation.pollFirst();
+            if (installation.inFlight >= maxInFlightPerInstallation) {
+                installation.deficit = 0;
+                rotation.addLast(installation);
+                continue;
+            }
+            if (installation.deficit == 0) {
+                installation.deficit = Math.max(1, weightOf.applyAsInt(installation.id));
+            }
+
+            QueuedWebhook webhook = installation.queue.pollFirst();
+            installation.deficit--;
+            installation.inFlight++;
+            inFlight++;
+            queued--;
+
+            if (installation.queue.isEmpty()) {
+                installation.deficit = 0;
+            } else if (installation.deficit > 0) {
+                rotation.addFirst(installation);
+            } else {
+                rotation.addLast(installation);
+            }
+            return webhook;
+        }
+        return null;
+    }
+
+    private synchronized void complete(QueuedWebhook webhook) {
+        inFlight--;
+        Installation installation = installations.get(webhook.installationId());
+        if (installation != null) {
+            installation.inFlight--;
+            if (installation.isIdle()) {
+                installations.remove(installation.id);
+            }
+        }
+    }
+
+    private void start(QueuedWebhook webhook) {
+        long startNanos = System.nanoTime();
+        Duration waited = Duration.ofNanos(startNanos - webhook.enqueuedAtNanos());
+        waitTimer.record(waited);
+
+        Disposable.Swap slot = Disposables.swap();
+        running.add(slot);
+        slot.update(Mono.defer(() -> processor.apply(webhook))
+                .doFinally(signal -> {
+                    running.remove(slot);
+                    complete(webhook);
+                    drain();
+                })
+                .subscribe(
+                        result -> {
+                            successTimer.record(Duration.ofNanos(System.nanoTime() - startNanos));
+                            log.info("Webhook {} of installation {} processed successfully", eventType, webhook.installationId());
+                        },
+                        error -> {
+                            failureTimer.record(Duration.ofNanos(System.nanoTime() - startNanos));
+                            log.error("Webhook {} of installation {} processing failed", eventType, webhook.installationId(), error);
+                        }
+                ));
+    }
+
+    /**
+     * Per-installation scheduling state. Guarded by the lane monitor.
+     */
+    private static final class Installation {
+        private final long id;
+        private final ArrayDeque<QueuedWebhook> queue = new ArrayDeque<>();
+        private int reserved;
+        private int inFlight;
+        private int deficit;
+
+        private Installation(long id) {
+            this.id = id;
+        }
+
+        private boolean isIdle() {
+            return inFlight == 0 && reserved == 0 && queue.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package it.np.n_agent.service.queue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Gauge;
+import it.np.n_agent.config.WebhookAdmissionConfig;
+import it.np.n_agent.config.WebhookQueueConfig;
+import it.np.n_agent.exception.ServiceOverloadedException;
+import it.np.n_agent.exception.WebhookMainException;
+import it.np.n_agent.github.dto.GHWebhookInstallationPaylaod;
+import it.np.n_agent.github.dto.GHWebhookInstallationRepoPayload;
+import it.np.n_agent.github.dto.GHWebhookPrPayload;
+import it.np.n_agent.github.enums.EventType;
+import it.np.n_agent.service.PullRequestCoalescingService;
+import it.np.n_agent.service.PullRequestCoalescingService.PullRequestHead;
+import it.np.n_agent.service.WebhookDeduplicationService;
+import it.np.n_agent.service.WebhookDeduplicationService.DeliveryClaim;
+import it.np.n_agent.service.WebhookService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process work queue for GitHub webhooks.
+ * Each supported event type is served by its own bounded {@link WebhookLane}, so a burst of pull request
+ * analyses cannot starve installation events; within a lane, installations are served in weighted round-robin,
+ * so one installation's burst cannot starve the others. Pull request webhooks pass through
+ * {@link WebhookAdmissionService} first, which may defer or reject them when the service is overloaded;
+ * admitted ones wait for their debounce window on a timer before entering the lane, and are dropped there if a
+ * newer head SHA of the same PR arrives (see {@link PullRequestCoalescingService}). On shutdown the queue stops
+ * accepting work and waits up to the configured drain timeout for queued and in-flight webhooks to complete.
+ */
+@Service
+public class WebhookQueueService implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookQueueService.class);
+
+    /**
+     * Stops after the web server, so no new webhook reaches a queue that is already draining.
+     */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+
+    /**
+     * Period of the refresh of the per-installation wait gauges of the lanes.
+     */
+    private static final Duration INSTALLATION_WAIT_REFRESH = Duration.ofSeconds(10);
+
+    private final WebhookQueueConfig queueConfig;
+    private final WebhookAdmissionConfig admissionConfig;
+    private final WebhookService webhookService;
+    private final WebhookDeduplicationService deduplicationService;
+    private final WebhookAdmissionService admissionService;
+    private final PullRequestCoalescingService coalescingService;
+    private final Map<EventType, WebhookLane> lanes = new EnumMap<>(EventType.class);
+    // Deferred webhooks and the timer that will admit them again
+    private final Map<QueuedWebhook, Disposable> deferred = new ConcurrentHashMap<>();
+    // Pull request webhooks waiting for their debounce window and the timer that will enqueue them
+    private final Map<QueuedWebhook, Disposable> debouncing = new ConcurrentHashMap<>();
+    private volatile boolean running;
+    private volatile Disposable installationWaits = Disposables.disposed();
+
+    @Autowired
+    public WebhookQueueService(WebhookQueueConfig queueConfig,
+                               WebhookAdmissionConfig admissionConfig,
+                               WebhookService webhookService,
+                               WebhookDeduplicationService deduplicationService,
+                               WebhookAdmissionService admissionService,
+                               PullRequestCoalescingService coalescingService,
+                               MeterRegistry meterRegistry) {
+        this.queueConfig = queueConfig;
+        this.admissionConfig = admissionConfig;
+        this.webhookService = webhookService;
+        this.deduplicationService = deduplicationService;
+        this.admissionService = admissionService;
+        this.coalescingService = coalescingService;
+        Gauge.builder("webhook.admission.deferred", deferred, Map::size)
+                .description("Webhooks deferred by admission control, waiting to be admitted again")
+                .register(meterRegistry);
+        Gauge.builder("webhook.pr.debouncing", debouncing, Map::size)
+                .description("Pull request webhooks waiting for their debounce window before being enqueued")
+                .register(meterRegistry);
+        for (EventType eventType : EventType.values()) {
+            if (eventType == EventType.OTHER) {
+                continue;
+            }
+            WebhookQueueConfig.Lane lane = queueConfig.laneFor(eventType);
+            lanes.put(eventType, new WebhookLane(
+                    eventType,
+                    lane.getCapacity(),
+                    lane.getWorkers(),
+                    lane.getMaxInFlightPerInstallation(),
+                    lane.getMaxQueuedPerInstallation(),
+                    queueConfig::weightOf,
+                    this::process,
+                    meterRegistry));
+            log.info("Webhook lane {} configured with capacity {} and {} workers", eventType, lane.getCapacity(), lane.getWorkers());
+        }
+        WebhookQueueConfig.Lane prLane = queueConfig.laneFor(EventType.PULL_REQUEST);
+        if (admissionConfig.isEnabled() && admissionConfig.getPendingAnalyses().getReject() >= prLane.getCapacity() + prLane.getWorkers()) {
+            log.warn("webhook.admission.pending-analyses.reject ({}) is not below the pull request lane maximum ({}): "
+                            + "the lane fills up before admission control rejects",
+                    admissionConfig.getPendingAnalyses().getReject(), prLane.getCapacity() + prLane.getWorkers());
+        }
+    }
+
+    /**
+     * Enqueues a parsed webhook payload for asynchronous processing, subject to admission control.
+     *
+     * @param eventType GitHub event type header (X-GitHub-Event)
+     * @param payload parsed webhook payload
+     * @param claim deduplication keys of the delivery, released if the webhook is rejected or its processing fails
+     * @return {@link AdmissionDecision#ADMIT} if enqueued, or if it is a pull request webhook enqueued after its debounce
+     *         window or skipped because the same head SHA is already pending, {@link AdmissionDecision#DEFER} if it will
+     *         be enqueued later
+     * @throws ServiceOverloadedException with 503 status if the service is overloaded or the lane,
+     *                                    or the installation's share of it, is full
+     * @throws WebhookMainException with 503 status if the application is shutting down,
+     *                              400 if the event type is not supported
+     */
+    public AdmissionDecision enqueue(String eventType, Object payload, DeliveryClaim claim) {
+        EventType type = EventType.fromValue(eventType);
+        WebhookLane lane = lanes.get(type);
+        if (lane == null) {
+            deduplicationService.release(claim);
+            throw new WebhookMainException(String.format("Unsupported event type: %s", eventType), HttpStatus.BAD_REQUEST);
+        }
+        if (!running) {
+            deduplicationService.release(claim);
+            throw new WebhookMainException("Webhook queue is shutting down", HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        long installationId = installationId(payload);
+        QueuedWebhook webhook = new QueuedWebhook(type, installationId, payload, claim, System.nanoTime());
+        AdmissionDecision decision = admissionService.decide(type, payload, pendingAnalyses(), deferred.size());
+        if (decision == AdmissionDecision.REJECT) {
+            deduplicationService.release(claim);
+            throw new ServiceOverloadedException("Service overloaded, retry later", admissionConfig.getRetryAfter());
+        }
+        PullRequestHead head = PullRequestHead.of(payload);
+        if (head != null && !coalescingService.register(head)) {
+            // Handled by the pending analysis: keeps its deduplication content key claimed
+            return decision;
+        }
+        switch (decision) {
+            case DEFER -> defer(webhook, 1);
+            case ADMIT -> {
+                if (head != null) {
+                    debounce(lane, webhook, head);
+                    return decision;
+                }
+                if (!lane.offer(webhook)) {
+                    deduplicationService.release(claim);
+                    log.warn("Webhook lane {} is full or draining, rejecting event of installation {}", type, installationId);
+                    throw new ServiceOverloadedException(String.format("Webhook queue for %s is full", eventType), admissionConfig.getRetryAfter());
+                }
+                log.info("Webhook {} of installation {} enqueued (queued={}, inFlight={})", type, installationId, lane.queued(), lane.inFlight());
+            }
+            default -> throw new IllegalStateException("Unexpected admission decision: " + decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Holds an admitted pull request webhook for the debounce window on a timer, then enqueues it,
+     * unless a newer head SHA of the same PR arrived in the meantime.
+     * A lane slot is reserved beforehand, so a full lane is still reported to GitHub as 503 and a webhook
+     * accepted with 202 always finds its slot when the timer fires.
+     */
+    private void debounce(WebhookLane lane, QueuedWebhook webhook, PullRequestHead head) {
+        if (!lane.reserve(webhook.installationId())) {
+            coalescingService.complete(head);
+            deduplicationService.release(webhook.claim());
+            log.warn("Webhook lane {} is full or draining, rejecting event of installation {}", webhook.eventType(), webhook.installationId());
+            throw new ServiceOverloadedException(String.format("Webhook queue for %s is full", webhook.eventType().getEventValue()),
+                    admissionConfig.getRetryAfter());
+        }
+        Disposable.Swap timer = Disposables.swap();
+        debouncing.put(webhook, timer);
+        timer.update(coalescingService.debounce(head)
+                .subscribe(latest -> {
+                    if (debouncing.remove(webhook) == null) {
+                        return;
+                    }
+                    if (latest) {
+                        lane.offerReserved(admitted(webhook));
+                    } else {
+                        // Superseded: no analysis runs for this head
+                        lane.cancelReservation(webhook.installationId());
+                        deduplicationService.releaseContent(webhook.claim());
+                        log.info("Webhook {} of installation {} dropped: superseded by a newer head", webhook.eventType(), webhook.installationId());
+                    }
+                }));
+    }
+
+    /**
+     * Holds a webhook back for the configured delay, then submits it again to admission control;
+     * a webhook admitted while its lane is full is deferred again. After the maximum number of deferrals
+     * it is enqueued regardless of load, over the lane capacity if needed: GitHub already received 202
+     * and does not redeliver it.
+     */
+    private void defer(QueuedWebhook webhook, int attempt) {
+        log.info("Webhook {} of installation {} deferred (attempt {})", webhook.eventType(), webhook.installationId(), attempt);
+        deferred.put(webhook, Mono.delay(admissionConfig.getDeferDelay())
+                .subscribe(tick -> {
+                    if (deferred.remove(webhook) == null) {
+                        return;
+                    }
+                    WebhookLane lane = lanes.get(webhook.eventType());
+                    if (attempt >= admissionConfig.getMaxDeferrals()) {
+                        log.info("Webhook {} of installation {} enqueued after {} deferrals (queued={})",
+                                webhook.eventType(), webhook.installationId(), attempt, lane.queued());
+                        lane.forceOffer(admitted(webhook));
+                        return;
+                    }
+                    AdmissionDecision decision = admissionService.decide(webhook.eventType(), webhook.payload(), pendingAnalyses(), deferred.size());
+                    if (decision != AdmissionDecision.ADMIT || !lane.offer(admitted(webhook))) {
+                        defer(webhook, attempt + 1);
+                    }
+                }));
+    }
+
+    /**
+     * Held webhook as it enters its lane, whose queue wait starts now.
+     */
+    private static QueuedWebhook admitted(QueuedWebhook webhook) {
+        return new QueuedWebhook(webhook.eventType(), webhook.installationId(),
+                webhook.payload(), webhook.claim(), System.nanoTime());
+    }
+
+    private void completeHead(QueuedWebhook webhook) {
+        PullRequestHead head = PullRequestHead.of(webhook.payload());
+        if (head != null) {
+            coalescingService.complete(head);
+        }
+    }
+
+    private static long installationId(Object payload) {
+        Long id = switch (payload) {
+            case GHWebhookPrPayload pr when pr.getInstallation() != null -> pr.getInstallation().getId();
+            case GHWebhookInstallationPaylaod installation when installation.getInstallation() != null ->
+                    installation.getInstallation().getId();
+            case GHWebhookInstallationRepoPayload repositories when repositories.getInstallation() != null ->
+                    repositories.getInstallation().getId();
+            default -> null;
+        };
+        return id != null ? id : QueuedWebhook.UNKNOWN_INSTALLATION;
+    }
+
+    /**
+     * Processes a dequeued webhook. Deduplication keys are released when the webhook did not complete,
+     * so a redelivery can retry it; when it completed without running an analysis only the content key is released.
+     */
+    private Mono<Boolean> process(QueuedWebhook webhook) {
+        return webhookService.processGithubWebhook(webhook.payload(), webhook.eventType().getEventValue())
+                .doOnNext(processed -> {
+                    if (!processed) {
+                        deduplicationService.releaseContent(webhook.claim());
+                    }
+                })
+                .doOnError(error -> deduplicationService.release(webhook.claim()))
+                .doOnCancel(() -> deduplicationService.release(webhook.claim()))
+                .doFinally(signal -> completeHead(webhook));
+    }
+
+    private int pendingAnalyses() {
+        WebhookLane lane = lanes.get(EventType.PULL_REQUEST);
+        return lane.queued() + lane.inFlight() + debouncing.size();
+    }
+
+    /**
+     * Number of webhooks either waiting in a lane or being processed, across all event types.
+     */
+    public int pendingCount() {
+        return lanes.values().stream()
+                .mapToInt(lane -> lane.queued() + lane.inFlight())
+                .sum();
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        installationWaits = Flux.interval(INSTALLATION_WAIT_REFRESH)
+                .subscribe(tick -> lanes.values().forEach(WebhookLane::publishInstallationWaits));
+    }
+
+    @Override
+    public void stop() {
+        log.info("Draining webhook queue (pending={}, deferred={}, debouncing={}, timeout={})",
+                pendingCount(), deferred.size(), debouncing.size(), queueConfig.getDrainTimeout());
+        running = false;
+        installationWaits.dispose();
+        deferred.keySet().forEach(webhook -> {
+            Disposable timer = deferred.remove(webhook);
+            if (timer != null) {
+                timer.dispose();
+                lanes.get(webhook.eventType()).forceOffer(admitted(webhook));
+            }
+        });
+        debouncing.keySet().forEach(webhook -> {
+            Disposable timer = debouncing.remove(webhook);
+            if (timer != null) {
+                timer.dispose();
+                lanes.get(webhook.eventType()).offerReserved(admitted(webhook));
+            }
+        });
+        lanes.values().forEach(WebhookLane::close);
+
+        long deadline = System.nanoTime() + queueConfig.getDrainTimeout().toNanos();
+        try {
+            while (!lanes.values().stream().allMatch(WebhookLane::isIdle) && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lanes.values().forEach(lane -> {
+            if (!lane.isIdle()) {
+                log.warn("Webhook lane {} did not drain in time, {} webhooks dropped", lane.eventType(), lane.abort());
+            }
+        });
+        lanes.values().forEach(WebhookLane::publishInstallationWaits);
+        log.info("Webhook queue stopped");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+}
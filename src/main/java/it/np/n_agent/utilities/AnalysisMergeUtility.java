@@ -0,0 +1,101 @@
+package it.np.n_agent.utilities;
+
+import it.np.n_agent.ai.dto.CodeAnalysisResult;
+import it.np.n_agent.ai.enums.RecommendationEnum;
+import it.np.n_agent.utilities.DiffUtility.DiffChunk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Merges the results of the chunks of a diff analyzed separately into a single review.
+ */
+public class AnalysisMergeUtility {
+
+    /**
+     * Merges per-chunk results:
+     * - issues are concatenated in file order
+     * - the recommendation is the most severe one (REQUEST_CHANGES over COMMENT over APPROVE);
+     *   a review with failed chunks is never an APPROVE
+     * - the regret probability is the probability that at least one chunk is regretted, 1 - Π(1 - p)
+     * - fix time estimates are summed
+     * - summaries are listed per chunk, followed by the files that could not be analyzed
+     *
+     * @param results successful results by chunk
+     * @param failed chunks whose analysis failed
+     * @return merged result, with null recommendation / regret / fix time if no chunk provided one
+     */
+    public static CodeAnalysisResult merge(Map<DiffChunk, CodeAnalysisResult> results, Collection<DiffChunk> failed) {
+        List<Map.Entry<DiffChunk, CodeAnalysisResult>> ordered = results.entrySet().stream()
+                .sorted(Comparator.comparingInt(entry -> entry.getKey().index()))
+                .toList();
+
+        CodeAnalysisResult merged = new CodeAnalysisResult();
+        List<String> summaries = new ArrayList<>();
+        double noRegret = 1.0;
+        boolean anyRegret = false;
+        double fixTime = 0.0;
+        boolean anyFixTime = false;
+        RecommendationEnum recommendation = null;
+
+        for (Map.Entry<DiffChunk, CodeAnalysisResult> entry : ordered) {
+            CodeAnalysisResult result = entry.getValue();
+            if (result.getIssues() != null) {
+                merged.getIssues().addAll(result.getIssues());
+            }
+            if (result.getSummary() != null && !result.getSummary().isBlank()) {
+                summaries.add(ordered.size() == 1
+                        ? result.getSummary()
+                        : "**" + String.join(", ", entry.getKey().files()) + "**: " + result.getSummary());
+            }
+            if (result.getRegretProbability() != null) {
+                noRegret *= 1.0 - Math.clamp(result.getRegretProbability(), 0.0, 1.0);
+                anyRegret = true;
+            }
+            if (result.getEstimatedFixTime() != null) {
+                fixTime += result.getEstimatedFixTime();
+                anyFixTime = true;
+            }
+            recommendation = mostSevere(recommendation, result.getRecommendation());
+        }
+
+        if (!failed.isEmpty()) {
+            String files = failed.stream()
+                    .sorted(Comparator.comparingInt(DiffChunk::index))
+                    .flatMap(chunk -> chunk.files().stream())
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.joining(", "));
+            summaries.add("⚠️ Analysis failed for: " + (files.isEmpty() ? "part of the diff" : files));
+            recommendation = mostSevere(recommendation, RecommendationEnum.COMMENT);
+        }
+
+        merged.setSummary(String.join(System.lineSeparator(), summaries));
+        merged.setRegretProbability(anyRegret ? 1.0 - noRegret : null);
+        merged.setEstimatedFixTime(anyFixTime ? fixTime : null);
+        merged.setRecommendation(recommendation);
+        return merged;
+    }
+
+    private static RecommendationEnum mostSevere(RecommendationEnum current, RecommendationEnum candidate) {
+        if (current == null) {
+            return candidate;
+        }
+        if (candidate == null) {
+            return current;
+        }
+        return severity(candidate) > severity(current) ? candidate : current;
+    }
+
+    private static int severity(RecommendationEnum recommendation) {
+        return switch (recommendation) {
+            case APPROVE -> 0;
+            case COMMENT -> 1;
+            case REQUEST_CHANGES -> 2;
+        };
+    }
+}
@@ -0,0 +1,225 @@
+package it.np.n_agent.utilities;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers to split a unified PR diff into per-file sections and pack them into analysis chunks.
+ */
+public class DiffUtility {
+
+    private static final String FILE_HEADER = "diff --git ";
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -\\d+(?:,\\d+)? \\+(\\d+)(?:,(\\d+))? @@");
+
+    /**
+     * Group of consecutive file sections of a diff, analyzed by a single AI call.
+     *
+     * @param index position of the chunk in the diff, used to merge results in file order
+     * @param files paths of the files in the chunk
+     * @param content diff text of the chunk
+     * @param tokens estimated tokens of the content
+     */
+    public record DiffChunk(int index, List<String> files, String content, int tokens) {}
+
+    /**
+     * Diff section of a single file split into its hunks.
+     *
+     * @param path new path of the file, null if the section has no file header
+     * @param header file header lines up to the first hunk (diff --git, index, ---/+++ lines)
+     * @param hunks hunks of the file, empty for binary files and pure renames
+     */
+    public record FileDiff(String path, String header, List<Hunk> hunks) {}
+
+    /**
+     * Single hunk of a file diff.
+     *
+     * @param newStart first line of the hunk in the new file
+     * @param newCount number of lines of the hunk in the new file
+     * @param text hunk text, starting with its {@code @@} header line
+     */
+    public record Hunk(int newStart, int newCount, String text) {
+
+        /**
+         * Hunk lines without the {@code @@} header, so the same change at a different position has the same body.
+         */
+        public String body() {
+            int lineEnd = text.indexOf('\n');
+            return lineEnd < 0 ? "" : text.substring(lineEnd + 1);
+        }
+    }
+
+    /**
+     * Splits the diff section of a single file into its header and hunks.
+     *
+     * @param section diff section of a single file, as returned by {@link #splitByFile}
+     * @return parsed file diff
+     */
+    public static FileDiff parseFile(String section) {
+        List<Hunk> hunks = new ArrayList<>();
+        int first = section.startsWith("@@") ? 0 : nextHunk(section, 0);
+        String header = first < 0 ? section : section.substring(0, first);
+        int start = first;
+        while (start >= 0) {
+            int next = nextHunk(section, start + 1);
+            String text = next < 0 ? section.substring(start) : section.substring(start, next);
+            Matcher matcher = HUNK_HEADER.matcher(text);
+            if (matcher.find()) {
+                int newStart = Integer.parseInt(matcher.group(1));
+                int newCount = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+                hunks.add(new Hunk(newStart, newCount, text));
+            } else {
+                hunks.add(new Hunk(0, 0, text));
+            }
+            start = next;
+        }
+        return new FileDiff(filePath(section), header, hunks);
+    }
+
+    /**
+     * Splits a unified diff on its {@code diff --git} headers. Text before the first header, if any,
+     * is kept with the first section.
+     *
+     * @param diff unified diff as returned by the GitHub API
+     * @return one diff section per file, the whole diff if it has no file header
+     */
+    public static List<String> splitByFile(String diff) {
+        List<String> sections = new ArrayList<>();
+        int start = 0;
+        int next = nextHeader(diff, 1);
+        while (next >= 0) {
+            sections.add(diff.substring(start, next));
+            start = next;
+            next = nextHeader(diff, next + 1);
+        }
+        sections.add(diff.substring(start));
+        return sections;
+    }
+
+    /**
+     * Packs the file sections of a diff into chunks of at most {@code budget} tokens, first-fit decreasing:
+     * larger files are placed first, each in the first chunk with room left, so the diff is covered by few chunks.
+     * A file larger than the budget is split on its hunks, each part repeating the file header; a single hunk
+     * larger than the budget still gets a chunk of its own. Within a chunk, files keep their order in the diff.
+     *
+     * @param diff unified diff as returned by the GitHub API
+     * @param tokens token counter
+     * @param budget maximum chunk size in tokens
+     * @return chunks ordered by their first file in the diff, a single chunk if the whole diff fits
+     */
+    public static List<DiffChunk> chunk(String diff, ToIntFunction<String> tokens, int budget) {
+        List<String> sections = splitByFile(diff);
+        List<Unit> units = new ArrayList<>();
+        int total = 0;
+        for (String section : sections) {
+            int sectionTokens = tokens.applyAsInt(section);
+            if (sectionTokens <= budget) {
+                units.add(new Unit(units.size(), section, sectionTokens));
+            } else {
+                splitByHunks(section, tokens, budget).forEach(part -> units.add(new Unit(units.size(), part, tokens.applyAsInt(part))));
+            }
+            total += sectionTokens;
+        }
+        if (total <= budget) {
+            return List.of(new DiffChunk(0, filesOf(sections), diff, total));
+        }
+
+        List<List<Unit>> bins = new ArrayList<>();
+        List<Integer> used = new ArrayList<>();
+        units.stream()
+                .sorted(Comparator.comparingInt(Unit::tokens).reversed())
+                .forEach(unit -> {
+                    for (int i = 0; i < bins.size(); i++) {
+                        if (used.get(i) + unit.tokens() <= budget) {
+                            bins.get(i).add(unit);
+                            used.set(i, used.get(i) + unit.tokens());
+                            return;
+                        }
+                    }
+                    bins.add(new ArrayList<>(List.of(unit)));
+                    used.add(unit.tokens());
+                });
+
+        List<List<Unit>> ordered = bins.stream()
+                .map(bin -> bin.stream().sorted(Comparator.comparingInt(Unit::order)).toList())
+                .sorted(Comparator.comparingInt(bin -> bin.getFirst().order()))
+                .toList();
+        List<DiffChunk> chunks = new ArrayList<>();
+        for (List<Unit> bin : ordered) {
+            List<String> texts = bin.stream().map(Unit::text).toList();
+            chunks.add(new DiffChunk(chunks.size(), filesOf(texts), String.join("", texts), bin.stream().mapToInt(Unit::tokens).sum()));
+        }
+        return chunks;
+    }
+
+    /**
+     * Splits the section of a file larger than the budget into consecutive groups of hunks within the budget,
+     * each preceded by the file header.
+     */
+    private static List<String> splitByHunks(String section, ToIntFunction<String> tokens, int budget) {
+        FileDiff file = parseFile(section);
+        if (file.hunks().size() < 2) {
+            return List.of(section);
+        }
+        int headerTokens = tokens.applyAsInt(file.header());
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder(file.header());
+        int partTokens = headerTokens;
+        for (Hunk hunk : file.hunks()) {
+            int hunkTokens = tokens.applyAsInt(hunk.text());
+            if (partTokens > headerTokens && partTokens + hunkTokens > budget) {
+                parts.add(part.toString());
+                part = new StringBuilder(file.header());
+                partTokens = headerTokens;
+            }
+            part.append(hunk.text());
+            partTokens += hunkTokens;
+        }
+        parts.add(part.toString());
+        return parts;
+    }
+
+    private record Unit(int order, String text, int tokens) {}
+
+    /**
+     * Extracts the new path of a file section from its {@code diff --git a/<old> b/<new>} header.
+     *
+     * @param section diff section of a single file
+     * @return file path, null if the section has no header
+     */
+    public static String filePath(String section) {
+        if (!section.startsWith(FILE_HEADER)) {
+            return null;
+        }
+        int lineEnd = section.indexOf('\n');
+        String header = lineEnd < 0 ? section : section.substring(0, lineEnd);
+        int newPath = header.lastIndexOf(" b/");
+        return newPath < 0 ? header.substring(FILE_HEADER.length()).trim() : header.substring(newPath + 3).trim();
+    }
+
+    private static List<String> filesOf(List<String> sections) {
+        List<String> files = new ArrayList<>();
+        for (String section : sections) {
+            for (String part : splitByFile(section)) {
+                String path = filePath(part);
+                if (path != null && !files.contains(path)) {
+                    files.add(path);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static int nextHunk(String section, int from) {
+        int index = section.indexOf("\n@@", from - 1);
+        return index < 0 ? -1 : index + 1;
+    }
+
+    private static int nextHeader(String diff, int from) {
+        int index = diff.indexOf("\n" + FILE_HEADER, from - 1);
+        return index < 0 ? -1 : index + 1;
+    }
+}
@@ -0,0 +1,122 @@
+package it.np.n_agent.utilities;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Translation of the gitignore-style globs of the repository ignore patterns into regular expressions.
+ */
+public class GlobUtility {
+
+    /**
+     * Translates a gitignore-style glob into a regular expression on the repository-relative path.
+     * A pattern starting with '/' is anchored to the root, any other pattern matches at any depth;
+     * '**' crosses directories, '*', '?' and '[...]' (negated by '!' or '^') do not, '{a,b}' is an alternation.
+     * A pattern also matches everything below the directories it matches; a trailing '/' is ignored.
+     * Every other character, regular expression metacharacters included, matches itself.
+     *
+     * @param glob ignore pattern
+     * @return regular expression matching the whole path
+     */
+    public static String toRegex(String glob) {
+        boolean anchored = glob.startsWith("/");
+        int end = glob.length();
+        while (end > (anchored ? 1 : 0) && glob.charAt(end - 1) == '/') {
+            end--;
+        }
+        String pattern = glob.substring(anchored ? 1 : 0, end);
+        StringBuilder regex = new StringBuilder(anchored ? "(?:" : "(?:(?:.*/)?");
+        int braces = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '/') {
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> {
+                    int close = classEnd(pattern, i);
+                    if (close < 0) {
+                        regex.append("\\[");
+                    } else {
+                        appendClass(regex, pattern.substring(i + 1, close));
+                        i = close;
+                    }
+                }
+                case '{' -> {
+                    braces++;
+                    regex.append("(?:");
+                }
+                case '}' -> {
+                    if (braces > 0) {
+                        braces--;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                }
+                case ',' -> regex.append(braces > 0 ? "|" : ",");
+                default -> {
+                    if ("\\.[]()+^$|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+        }
+        regex.append(")".repeat(braces));
+        // A directory pattern also excludes everything below it
+        return regex.append("(?:/.*)?)").toString();
+    }
+
+    /**
+     * Index of the ']' closing the class opened at {@code open}, -1 if it is not closed.
+     * A ']' right after the opening bracket, or after its negation, is a member of the class.
+     */
+    private static int classEnd(String pattern, int open) {
+        int i = open + 1;
+        if (i < pattern.length() && (pattern.charAt(i) == '!' || pattern.charAt(i) == '^')) {
+            i++;
+        }
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            i++;
+        }
+        int close = pattern.indexOf(']', i);
+        // A class never spans directories
+        int slash = pattern.indexOf('/', open);
+        return slash >= 0 && slash < close ? -1 : close;
+    }
+
+    /**
+     * Appends a character class; an invalid one, e.g. a reversed range, matches its text literally.
+     */
+    private static void appendClass(StringBuilder regex, String members) {
+        boolean negated = !members.isEmpty() && (members.charAt(0) == '!' || members.charAt(0) == '^');
+        StringBuilder characterClass = new StringBuilder(negated ? "[^/" : "[");
+        for (int i = negated ? 1 : 0; i < members.length(); i++) {
+            char c = members.charAt(i);
+            // Ranges keep their '-'; anything else special inside a regex class is escaped
+            if ("\\[]^&".indexOf(c) >= 0) {
+                characterClass.append('\\');
+            }
+            characterClass.append(c);
+        }
+        characterClass.append(']');
+        try {
+            Pattern.compile(characterClass.toString());
+            regex.append(characterClass);
+        } catch (PatternSyntaxException e) {
+            regex.append(Pattern.quote("[" + members + "]"));
+        }
+    }
+}
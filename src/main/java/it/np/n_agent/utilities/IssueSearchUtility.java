@@ -0,0 +1,114 @@
+package it.np.n_agent.utilities;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Normalization of the search keys of historical issues, shared by writes and searches so that both sides
+ * produce the same keys. Keys only contain lowercase letters, digits and path separators: user or model
+ * supplied text never reaches a query as a pattern.
+ */
+public class IssueSearchUtility {
+
+    private static final Pattern TOKEN = Pattern.compile("[a-z0-9]+");
+    private static final Pattern CAMEL_CASE = Pattern.compile("(?<=[a-z0-9])(?=[A-Z])");
+    private static final int MAX_TOKENS = 8;
+
+    /**
+     * Keyword tokens of an issue type: its words, split on separators and camel case, and the words joined,
+     * e.g. NULL_POINTER gives null, pointer and nullpointer.
+     *
+     * @param type issue type, may be null
+     * @return distinct tokens, empty if the type has none
+     */
+    public static List<String> keywordsOf(String type) {
+        List<String> words = tokensOf(type);
+        if (words.size() < 2) {
+            return words;
+        }
+        List<String> keywords = new ArrayList<>(words);
+        keywords.add(String.join("", words));
+        return keywords;
+    }
+
+    /**
+     * Search tokens of a model or user supplied keyword, at most {@value #MAX_TOKENS}.
+     *
+     * @param text free text, may be null
+     * @return distinct lowercase tokens, in order of appearance
+     */
+    public static List<String> tokensOf(String text) {
+        return wordsOf(text).stream().distinct().limit(MAX_TOKENS).toList();
+    }
+
+    /**
+     * Every lowercase alphanumeric word of a text, split on separators and camel case, repetitions included.
+     *
+     * @param text free text, may be null
+     * @return words in order of appearance
+     */
+    public static List<String> wordsOf(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        List<String> words = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(CAMEL_CASE.matcher(text).replaceAll(" ").toLowerCase(Locale.ROOT));
+        while (matcher.find()) {
+            words.add(matcher.group());
+        }
+        return words;
+    }
+
+    /**
+     * Path keys of a file: every directory prefix, the full path and the file name, so a search by
+     * directory, path or bare file name is an equality match, e.g. src/main/A.java gives
+     * src, src/main, src/main/a.java and a.java.
+     *
+     * @param path file path, may be null
+     * @return distinct path keys, empty if there is no path
+     */
+    public static List<String> pathPrefixesOf(String path) {
+        String normalized = normalizePath(path);
+        if (normalized.isEmpty()) {
+            return List.of();
+        }
+        Set<String> prefixes = new LinkedHashSet<>();
+        int slash = normalized.indexOf('/');
+        while (slash > 0) {
+            prefixes.add(normalized.substring(0, slash));
+            slash = normalized.indexOf('/', slash + 1);
+        }
+        prefixes.add(normalized);
+        prefixes.add(normalized.substring(normalized.lastIndexOf('/') + 1));
+        return List.copyOf(prefixes);
+    }
+
+    /**
+     * Normalizes a path as found in a diff or supplied by the model: lowercase, forward slashes,
+     * without the a/ or b/ diff prefixes, leading ./ or / and trailing /.
+     *
+     * @param path file path, may be null
+     * @return normalized path, empty if there is no path
+     */
+    public static String normalizePath(String path) {
+        if (path == null) {
+            return "";
+        }
+        String normalized = path.trim().replace('\\', '/').toLowerCase(Locale.ROOT);
+        if (normalized.startsWith("a/") || normalized.startsWith("b/")) {
+            normalized = normalized.substring(2);
+        }
+        while (normalized.startsWith("./") || normalized.startsWith("/")) {
+            normalized = normalized.substring(normalized.startsWith("./") ? 2 : 1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized.replaceAll("/{2,}", "/");
+    }
+}
@@ -1,5 +1,6 @@
 package it.np.n_agent.utilities;
 
+import it.np.n_agent.ai.prompt.PromptTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,11 +10,19 @@ public class PromptUtility {
 
     private static final Logger log = LoggerFactory.getLogger(PromptUtility.class);
 
-    public static String generatePullRequestPrompt(String promptPath, AnalysisRulesDto rules, String diff){
-        log.info("Generating pull request prompt using rules: {}", rules);
-        String basePrompt = ResourceUtility.loadPromptAsString(promptPath);
-
-        return String.format(basePrompt,
+    /**
+     * Renders the pull request prompt from a preloaded template: the analysis rules, the diff, then the trailing text.
+     * The prompt is assembled in a single allocation, so the diff is copied once.
+     *
+     * @param template parsed template with the language, seven rule flags and diff placeholders
+     * @param rules analysis rules
+     * @param diff diff to analyze
+     * @param trailing text appended after the template, e.g. output format instructions
+     * @return user prompt
+     */
+    public static String generatePullRequestPrompt(PromptTemplate template, AnalysisRulesDto rules, String diff, String... trailing){
+        log.debug("Generating pull request prompt using rules: {}", rules);
+        return template.render(new Object[]{
                 rules.getLanguages() == null || rules.getLanguages().isEmpty() ? "all programming languages" : String.join(", ", rules.getLanguages()),
                 rules.getNullPointerPrediction(),
                 rules.getDebtEstimation(),
@@ -23,6 +32,6 @@ public class PromptUtility {
                 rules.getDetectDuplication(),
                 rules.getCheckTestCoverage(),
                 diff
-        );
+        }, trailing);
     }
 }
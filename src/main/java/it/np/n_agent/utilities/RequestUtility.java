@@ -1,78 +1,219 @@
 package it.np.n_agent.utilities;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import it.np.n_agent.exception.WebhookMainException;
+import it.np.n_agent.github.dto.GHWebhookPrPreview;
+import it.np.n_agent.github.enums.ActionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 @Component
 public class RequestUtility {
 
     private final static Logger log = LoggerFactory.getLogger(RequestUtility.class);
 
-    private final String webhookSecret;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    private static final int SIGNATURE_HEX_LENGTH = 64;
+
+    private final SecretKeySpec secretKey;
+    private final int maxPayloadSize;
     private final ObjectMapper objectMapper;
 
-    protected RequestUtility(@Value("${webhook.github.secret}")String webhookSecret, ObjectMapper objectMapper) {
-        this.webhookSecret = webhookSecret;
+    // Mac instances are not thread-safe: one per thread, initialized once with the webhook secret
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    protected RequestUtility(@Value("${webhook.github.secret}") String webhookSecret,
+                             @Value("${webhook.github.max-payload-size:25MB}") DataSize maxPayloadSize,
+                             ObjectMapper objectMapper) {
+        this.secretKey = new SecretKeySpec(webhookSecret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.maxPayloadSize = (int) maxPayloadSize.toBytes();
         this.objectMapper = objectMapper;
     }
 
-    public <T> T parsePayload(String rawPayload, Class<T> clazz) {
+    /**
+     * Joins the request body into a single DataBuffer without copying when the chunks are Netty buffers.
+     * The caller owns the returned buffer and must release it.
+     *
+     * @param body raw request body chunks
+     * @return Mono emitting the joined buffer
+     * @throws WebhookMainException 413 if the body exceeds the configured max payload size, 400 if empty
+     */
+    public Mono<DataBuffer> readPayload(Flux<DataBuffer> body) {
+        return DataBufferUtils.join(body, maxPayloadSize)
+                .switchIfEmpty(Mono.error(new WebhookMainException("Empty webhook payload", HttpStatus.BAD_REQUEST)))
+                .onErrorMap(DataBufferLimitException.class, error ->
+                        new WebhookMainException("Webhook payload too large", HttpStatus.PAYLOAD_TOO_LARGE, error));
+    }
+
+    public <T> T parsePayload(DataBuffer rawPayload, Class<T> clazz) {
         try {
-            return objectMapper.readValue(rawPayload, clazz);
+            return objectMapper.readValue(rawPayload.asInputStream(), clazz);
         } catch (Exception e) {
             log.error("Error parsing payload: {}", e.getMessage());
             throw new WebhookMainException("Invalid JSON payload", HttpStatus.BAD_REQUEST);
         }
     }
 
-    public void validateHmac(String payload, String signature) {
-        try {
-            String algorithm = "HmacSHA256";
-            Mac mac = Mac.getInstance(algorithm);
-            SecretKeySpec secretKey = new SecretKeySpec(
-                    webhookSecret.getBytes(StandardCharsets.UTF_8),
-                    algorithm
-            );
-            mac.init(secretKey);
-            byte[] hash = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
-
-            String expectedSignature = "sha256=" + bytesToHex(hash);
+    /**
+     * Reads the fields of a pull_request payload that decide whether it can trigger an analysis,
+     * with a streaming parser that skips every other subtree without materializing it.
+     * Stops right after {@code action} when the action can never trigger an analysis
+     * (GitHub sends it as the first field), otherwise as soon as all fields are known.
+     *
+     * @param rawPayload raw pull_request webhook payload, read position is left untouched
+     * @return preview of the pull request event
+     * @throws WebhookMainException 400 if the payload is not valid JSON
+     */
+    public GHWebhookPrPreview previewPullRequest(DataBuffer rawPayload) {
+        int readPosition = rawPayload.readPosition();
+        GHWebhookPrPreview.GHWebhookPrPreviewBuilder preview = GHWebhookPrPreview.builder();
+        boolean[] found = new boolean[4]; // installation, repository, pull_request, head
 
-            if (MessageDigest.isEqual(
-                    expectedSignature.getBytes(StandardCharsets.UTF_8),
-                    signature.getBytes(StandardCharsets.UTF_8)
-            )) {
-                return;
+        try (JsonParser parser = objectMapper.getFactory().createParser(rawPayload.asInputStream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Payload is not a JSON object");
             }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "action" -> {
+                        String action = parser.getValueAsString();
+                        preview.action(action);
+                        if (!ActionType.isAnalyzableActionPR(action)) {
+                            return preview.build();
+                        }
+                    }
+                    case "installation" -> found[0] = readFields(parser, (name, p) -> {
+                        if ("id".equals(name)) preview.installationId(p.getValueAsLong());
+                        else p.skipChildren();
+                    });
+                    case "repository" -> found[1] = readFields(parser, (name, p) -> {
+                        switch (name) {
+                            case "id" -> preview.repositoryId(p.getValueAsLong());
+                            case "name" -> preview.repositoryName(p.getValueAsString());
+                            default -> p.skipChildren();
+                        }
+                    });
+                    case "pull_request" -> found[2] = readFields(parser, (name, p) -> {
+                        switch (name) {
+                            case "url" -> preview.pullRequestUrl(p.getValueAsString());
+                            case "number" -> preview.pullRequestNumber(p.getValueAsLong());
+                            case "draft" -> preview.draft(p.getValueAsBoolean());
+                            case "head" -> found[3] = readFields(p, (headField, head) -> {
+                                if ("sha".equals(headField)) preview.headSha(head.getValueAsString());
+                                else head.skipChildren();
+                            });
+                            default -> p.skipChildren();
+                        }
+                    });
+                    default -> parser.skipChildren();
+                }
+                if (found[0] && found[1] && found[2] && found[3]) {
+                    break;
+                }
+            }
+            return preview.build();
+        } catch (IOException e) {
+            log.error("Error pre-parsing pull request payload: {}", e.getMessage());
+            throw new WebhookMainException("Invalid JSON payload", HttpStatus.BAD_REQUEST);
+        } finally {
+            rawPayload.readPosition(readPosition);
+        }
+    }
 
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            log.error("Error validating HMAC: {}", e.getMessage());
+    /**
+     * Visits the fields of the object the parser is positioned on, with the parser on each field's value.
+     * The visitor must consume the value, skipping it if not needed.
+     *
+     * @return true if the value was an object, false if it was skipped
+     */
+    private static boolean readFields(JsonParser parser, FieldVisitor visitor) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return false;
         }
-        throw new WebhookMainException("Invalid HMAC signature", HttpStatus.UNAUTHORIZED);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            visitor.visit(field, parser);
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface FieldVisitor {
+        void visit(String field, JsonParser parser) throws IOException;
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : bytes) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) {
-                hexString.append('0');
+    /**
+     * Validates the X-Hub-Signature-256 header against the payload.
+     * The HMAC is updated directly from the buffer's backing ByteBuffers and compared in constant time
+     * against the decoded header, so neither the payload nor the digest is ever turned into a String.
+     *
+     * @param payload raw webhook payload, read position is left untouched
+     * @param signature header value in the form {@code sha256=<hex digest>}
+     * @throws WebhookMainException 401 if the signature is missing, malformed or does not match
+     */
+    public void validateHmac(DataBuffer payload, String signature) {
+        byte[] expected = decodeSignature(signature);
+
+        Mac mac = macs.get();
+        mac.reset();
+        try (DataBuffer.ByteBufferIterator buffers = payload.readableByteBuffers()) {
+            while (buffers.hasNext()) {
+                mac.update(buffers.next());
             }
-            hexString.append(hex);
         }
-        return hexString.toString();
+        byte[] actual = mac.doFinal();
+
+        if (expected == null || !MessageDigest.isEqual(expected, actual)) {
+            throw new WebhookMainException("Invalid HMAC signature", HttpStatus.UNAUTHORIZED);
+        }
+    }
+
+    private byte[] decodeSignature(String signature) {
+        if (signature == null
+                || signature.length() != SIGNATURE_PREFIX.length() + SIGNATURE_HEX_LENGTH
+                || !signature.startsWith(SIGNATURE_PREFIX)) {
+            return null;
+        }
+        try {
+            return HexFormat.of().parseHex(signature, SIGNATURE_PREFIX.length(), signature.length());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            log.error("Error initializing HMAC: {}", e.getMessage());
+            throw new WebhookMainException("Unable to initialize HMAC validation", HttpStatus.INTERNAL_SERVER_ERROR, e);
+        }
     }
 
 }
@@ -0,0 +1,54 @@
+package it.np.n_agent.ai.prompt;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PromptTemplateTest {
+
+    @Test
+    void render_matchesStringFormat() {
+        String source = "Review %s: null checks %b, debt %b, coverage 100%% of %s.";
+        Object[] args = {"the diff", true, null, 42};
+
+        PromptTemplate template = PromptTemplate.parse("rules", source);
+
+        assertThat(template.slots()).isEqualTo(4);
+        assertThat(template.render(args)).isEqualTo(String.format(source, args));
+    }
+
+    @Test
+    void render_convertsNonBooleanArgumentsOfBooleanSlotsToTrue() {
+        PromptTemplate template = PromptTemplate.parse("flags", "%b %b %b");
+
+        assertThat(template.render(new Object[]{Boolean.FALSE, "no", null})).isEqualTo("false true false");
+    }
+
+    @Test
+    void render_appendsTrailingText() {
+        PromptTemplate template = PromptTemplate.parse("diff", "Diff:\n%s\n");
+
+        assertThat(template.render(new Object[]{"+a"}, "Format:", " JSON")).isEqualTo("Diff:\n+a\nFormat: JSON");
+    }
+
+    @Test
+    void parse_keepsUnsupportedConversionsAndTheSource() {
+        String source = "Tokens %d, trailing %";
+
+        PromptTemplate template = PromptTemplate.parse("system", source);
+
+        assertThat(template.slots()).isZero();
+        assertThat(template.source()).isEqualTo(source);
+        assertThat(template.render(new Object[0])).isEqualTo(source);
+    }
+
+    @Test
+    void render_rejectsAWrongNumberOfArguments() {
+        PromptTemplate template = PromptTemplate.parse("rules", "%s and %s");
+
+        assertThatThrownBy(() -> template.render(new Object[]{"one"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("rules");
+    }
+}
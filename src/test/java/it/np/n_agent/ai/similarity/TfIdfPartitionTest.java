@@ -0,0 +1,95 @@
+package it.np.n_agent.ai.similarity;
+
+import it.np.n_agent.entity.HistoricalIssueEntity;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TfIdfPartitionTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2025, 1, 1, 12, 0);
+
+    @Test
+    void similar_ranksIssuesByTheTermsTheyShareWithTheQuery() {
+        TfIdfPartition partition = new TfIdfPartition(100);
+        partition.addAll(List.of(
+                issue("1", "NULL_POINTER", "src/service/UserService.java", "Check the user before use", 0),
+                issue("2", "NULL_POINTER", "src/web/OrderController.java", "Guard the order", 1),
+                issue("3", "SQL_INJECTION", "src/repository/UserRepository.java", "Bind the parameters", 2)));
+
+        assertThat(ids(partition.similar("null pointer in service", 10))).containsExactly("1", "2");
+        assertThat(ids(partition.similar("bind parameters", 10))).containsExactly("3");
+        assertThat(partition.similar("deadlock", 10)).isEmpty();
+    }
+
+    @Test
+    void similar_returnsTheMostRecentFirstAmongEqualScores() {
+        TfIdfPartition partition = new TfIdfPartition(100);
+        partition.addAll(List.of(
+                issue("old", "MEMORY_LEAK", "A.java", null, 0),
+                issue("new", "MEMORY_LEAK", "A.java", null, 5)));
+
+        assertThat(ids(partition.similar("memory leak", 1))).containsExactly("new");
+    }
+
+    @Test
+    void similar_ignoresTermsOfMostIssues() {
+        TfIdfPartition partition = new TfIdfPartition(100);
+        List<HistoricalIssueEntity> issues = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            issues.add(issue(String.valueOf(i), "STYLE", "src/main/File" + i + ".java", null, i));
+        }
+        partition.addAll(issues);
+
+        assertThat(partition.similar("src main", 10)).isEmpty();
+        assertThat(ids(partition.similar("src file7", 10))).containsExactly("7");
+    }
+
+    @Test
+    void addAll_skipsIndexedIssuesAndEvictsTheOldestOnceFull() {
+        TfIdfPartition partition = new TfIdfPartition(2);
+        partition.addAll(List.of(issue("1", "DEADLOCK", "A.java", null, 0), issue("2", "RACE_CONDITION", "B.java", null, 1)));
+        int weight = partition.weight();
+
+        partition.addAll(List.of(issue("2", "RACE_CONDITION", "B.java", null, 1)));
+        assertThat(partition.size()).isEqualTo(2);
+        assertThat(partition.weight()).isEqualTo(weight);
+
+        partition.addAll(List.of(issue("3", "TIMEOUT", "C.java", null, 2)));
+        assertThat(partition.size()).isEqualTo(2);
+        assertThat(partition.similar("deadlock", 10)).isEmpty();
+        assertThat(ids(partition.similar("timeout", 10))).containsExactly("3");
+    }
+
+    @Test
+    void weight_countsIssuesAndTheirDistinctTerms() {
+        TfIdfPartition partition = new TfIdfPartition(1);
+        assertThat(partition.weight()).isZero();
+
+        // deadlock, a, java: "a" is too short to be a term
+        partition.addAll(List.of(issue("1", "DEADLOCK", "A.java", null, 0)));
+        assertThat(partition.weight()).isEqualTo(1 + 2);
+
+        // null, pointer, nullpointer, order, java
+        partition.addAll(List.of(issue("2", "NULL_POINTER", "Order.java", null, 1)));
+        assertThat(partition.weight()).isEqualTo(1 + 5);
+    }
+
+    private static HistoricalIssueEntity issue(String id, String type, String file, String resolution, int minutes) {
+        return HistoricalIssueEntity.builder()
+                .id(id)
+                .type(type)
+                .repository(file)
+                .resolution(resolution)
+                .foundAt(NOW.plusMinutes(minutes))
+                .build();
+    }
+
+    private static List<String> ids(List<HistoricalIssueEntity> issues) {
+        return issues.stream().map(HistoricalIssueEntity::getId).toList();
+    }
+}
@@ -0,0 +1,117 @@
+package it.np.n_agent.ai.stream;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import it.np.n_agent.ai.dto.CodeIssue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class CodeIssueStreamParserTest {
+
+    // Unknown properties are ignored, as by the ObjectMapper of Spring Boot
+    private static final ObjectMapper MAPPER = JsonMapper.builder()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .build();
+
+    private static final String COMPLETION = """
+            ```json
+            {"summary": "Two issues", "issues": [
+              {"type": "SECURITY", "severity": "HIGH", "file": "src/A.java", "line": 12, "message": "Unchecked input"},
+              {"type": "DEBT", "severity": "LOW", "file": "src/B.java", "line": 3, "message": "Duplicated code"}
+            ], "recommendation": "COMMENT"}
+            ```""";
+
+    @Test
+    void feed_emitsEachIssueAsSoonAsItsObjectIsClosed() {
+        CodeIssueStreamParser parser = new CodeIssueStreamParser(MAPPER);
+        int firstEnd = COMPLETION.indexOf('}') + 1;
+
+        assertThat(parser.feed(COMPLETION.substring(0, firstEnd - 1))).isEmpty();
+        assertThat(parser.feed(COMPLETION.substring(firstEnd - 1, firstEnd)))
+                .singleElement()
+                .satisfies(issue -> assertThat(issue.getFile()).isEqualTo("src/A.java"));
+        assertThat(parser.feed(COMPLETION.substring(firstEnd)))
+                .singleElement()
+                .satisfies(issue -> assertThat(issue.getFile()).isEqualTo("src/B.java"));
+    }
+
+    @Test
+    void feed_joinsIssuesSplitAcrossChunkBoundaries() {
+        for (int size : new int[]{1, 2, 7, 16}) {
+            List<CodeIssue> issues = feedInChunks(new CodeIssueStreamParser(MAPPER), COMPLETION, size);
+
+            assertThat(issues).as("chunks of %d characters", size)
+                    .extracting(CodeIssue::getType, CodeIssue::getLine)
+                    .containsExactly(tuple("SECURITY", 12), tuple("DEBT", 3));
+        }
+    }
+
+    @Test
+    void feed_decodesEscapedStrings() {
+        String completion = """
+                {"issues": [{"type": "TODO", "file": "src/{A}.java", "line": 1,
+                 "message": "Quote \\" backslash \\\\ brace } bracket ] caf\\u00e9",
+                 "codeSnippet": "if (a) {\\n  return \\"x\\";\\n}"}]}""";
+
+        List<CodeIssue> issues = feedInChunks(new CodeIssueStreamParser(MAPPER), completion, 3);
+
+        assertThat(issues).singleElement().satisfies(issue -> {
+            assertThat(issue.getFile()).isEqualTo("src/{A}.java");
+            assertThat(issue.getMessage()).isEqualTo("Quote \" backslash \\ brace } bracket ] café");
+            assertThat(issue.getCodeSnippet()).isEqualTo("if (a) {\n  return \"x\";\n}");
+        });
+    }
+
+    @Test
+    void feed_bindsIssuesContainingNestedObjectsAndArrays() {
+        String completion = """
+                {"issues": [{"type": "PERFORMANCE", "extra": {"issues": [{"type": "NESTED"}], "deep": {"a": [1, {"b": 2}]}},
+                 "line": 7, "tags": ["a", "b"]}, {"type": "DEBT", "line": 8}]}""";
+
+        List<CodeIssue> issues = feedInChunks(new CodeIssueStreamParser(MAPPER), completion, 5);
+
+        assertThat(issues).extracting(CodeIssue::getType).containsExactly("PERFORMANCE", "DEBT");
+        assertThat(issues.getFirst().getLine()).isEqualTo(7);
+    }
+
+    @Test
+    void feed_ignoresArraysNamedIssuesOutsideTheRootField() {
+        String completion = """
+                {"meta": {"issues": [{"type": "NOT_AN_ISSUE"}]}, "issues": [{"type": "TODO"}], "other": [{"type": "IGNORED"}]}""";
+
+        List<CodeIssue> issues = feedInChunks(new CodeIssueStreamParser(MAPPER), completion, 4);
+
+        assertThat(issues).extracting(CodeIssue::getType).containsExactly("TODO");
+    }
+
+    @Test
+    void feed_keepsTheIssuesCompletedBeforeATruncatedStream() {
+        CodeIssueStreamParser parser = new CodeIssueStreamParser(MAPPER);
+        String truncated = COMPLETION.substring(0, COMPLETION.indexOf("Duplicated"));
+
+        assertThat(feedInChunks(parser, truncated, 10)).extracting(CodeIssue::getType).containsExactly("SECURITY");
+        assertThat(parser.feed("")).isEmpty();
+    }
+
+    @Test
+    void feed_stopsOnMalformedJson() {
+        CodeIssueStreamParser parser = new CodeIssueStreamParser(MAPPER);
+
+        assertThat(parser.feed("{\"issues\": [{\"type\": \"TODO\"}, {\"type\": }")).extracting(CodeIssue::getType).containsExactly("TODO");
+        assertThat(parser.feed("{\"type\": \"DEBT\"}]}")).isEmpty();
+    }
+
+    private static List<CodeIssue> feedInChunks(CodeIssueStreamParser parser, String completion, int size) {
+        List<CodeIssue> issues = new ArrayList<>();
+        for (int start = 0; start < completion.length(); start += size) {
+            issues.addAll(parser.feed(completion.substring(start, Math.min(completion.length(), start + size))));
+        }
+        return issues;
+    }
+}
@@ -0,0 +1,34 @@
+package it.np.n_agent.github.enums;
+
+import org.junit.jupiter.api.Test;
+
+import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.TriggerSettingsDto;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ActionTypeTest {
+
+    @Test
+    void triggerMask_enablesTheActionsOfEachTrigger() {
+        assertThat(ActionType.triggerMask(TriggerSettingsDto.builder().onPROpen(true).build()))
+                .isEqualTo(ActionType.OPENED.bit());
+        assertThat(ActionType.triggerMask(TriggerSettingsDto.builder().onPRReopen(true).build()))
+                .isEqualTo(ActionType.REOPENED.bit());
+        assertThat(ActionType.triggerMask(TriggerSettingsDto.builder().onPRUpdate(true).build()))
+                .isEqualTo(ActionType.EDITED.bit() | ActionType.SYNCHRONIZE.bit());
+    }
+
+    @Test
+    void triggerMask_isEmptyWithoutEnabledTriggers() {
+        assertThat(ActionType.triggerMask(null)).isZero();
+        assertThat(ActionType.triggerMask(TriggerSettingsDto.builder().onPROpen(false).onPush(true).build())).isZero();
+    }
+
+    @Test
+    void bit_isDistinctPerAction() {
+        int all = 0;
+        for (ActionType action : ActionType.values()) {
+            assertThat(all & action.bit()).isZero();
+            all |= action.bit();
+        }
+    }
+}
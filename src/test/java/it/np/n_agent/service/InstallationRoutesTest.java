@@ -0,0 +1,87 @@
+package it.np.n_agent.service;
+
+import it.np.n_agent.dto.UserSettingDto;
+import it.np.n_agent.dto.UserSettingDto.GlobalSettingsDto;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto;
+import static it.np.n_agent.dto.UserSettingDto.RepositoryConfigDto.TriggerSettingsDto;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InstallationRoutesTest {
+
+    private static final TriggerSettingsDto ALL_TRIGGERS = TriggerSettingsDto.builder()
+            .onPROpen(true).onPRReopen(true).onPRUpdate(true).build();
+
+    @Test
+    void route_findsRepositoriesByIdWhateverTheirName() {
+        RepositoryConfigDto api = repository("30", "api", true, ALL_TRIGGERS);
+        RepositoryConfigDto web = repository("10", "web", true, ALL_TRIGGERS);
+        InstallationRoutes routes = InstallationRoutes.compile(settings("gpt-4o", api, web, repository("20", "docs", true, ALL_TRIGGERS)));
+
+        assertThat(routes.route(30L, "renamed").config()).isSameAs(api);
+        assertThat(routes.route(10L, null).config()).isSameAs(web);
+        assertThat(routes.route(10L, null).aiModel()).isEqualTo("gpt-4o");
+        assertThat(routes.containsRepository(20L)).isTrue();
+        assertThat(routes.containsRepository(40L)).isFalse();
+    }
+
+    @Test
+    void route_fallsBackToTheNameOnlyWithoutAnIdToMatch() {
+        RepositoryConfigDto api = repository("30", "Api", true, ALL_TRIGGERS);
+        RepositoryConfigDto legacy = repository("not-an-id", "Legacy", true, ALL_TRIGGERS);
+        InstallationRoutes routes = InstallationRoutes.compile(settings(null, api, legacy));
+
+        assertThat(routes.route(null, "api").config()).isSameAs(api);
+        assertThat(routes.route(99L, "LEGACY").config()).isSameAs(legacy);
+        // Another repository with the name of a configured one, e.g. recreated
+        assertThat(routes.route(99L, "api")).isNull();
+        assertThat(routes.route(null, null)).isNull();
+    }
+
+    @Test
+    void compile_keepsTheFirstConfigurationOfARepository() {
+        RepositoryConfigDto first = repository("10", "web", true, ALL_TRIGGERS);
+        InstallationRoutes routes = InstallationRoutes.compile(settings(null, first, repository(" 10 ", "web", false, null)));
+
+        assertThat(routes.route(10L, "web").config()).isSameAs(first);
+        assertThat(routes.route(null, "WEB").config()).isSameAs(first);
+    }
+
+    @Test
+    void isAnalysisTriggered_requiresAnActiveRepositoryAndAnEnabledTrigger() {
+        InstallationRoutes routes = InstallationRoutes.compile(settings(null,
+                repository("1", "open-only", true, TriggerSettingsDto.builder().onPROpen(true).build()),
+                repository("2", "inactive", false, ALL_TRIGGERS)));
+
+        assertThat(routes.isAnalysisTriggered(1L, "open-only", "opened")).isTrue();
+        assertThat(routes.isAnalysisTriggered(1L, "open-only", "synchronize")).isFalse();
+        assertThat(routes.isAnalysisTriggered(1L, "open-only", "closed")).isFalse();
+        assertThat(routes.isAnalysisTriggered(2L, "inactive", "opened")).isFalse();
+        assertThat(routes.isAnalysisTriggered(3L, "unknown", "opened")).isFalse();
+    }
+
+    @Test
+    void compile_acceptsSettingsWithoutRepositories() {
+        UserSettingDto settings = UserSettingDto.builder().githubInstallationId(1L).build();
+
+        InstallationRoutes routes = InstallationRoutes.compile(settings);
+
+        assertThat(routes.settings()).isSameAs(settings);
+        assertThat(routes.route(1L, "any")).isNull();
+    }
+
+    private static UserSettingDto settings(String aiModel, RepositoryConfigDto... repositories) {
+        return UserSettingDto.builder()
+                .githubInstallationId(1L)
+                .globalSettings(GlobalSettingsDto.builder().aiModel(aiModel).build())
+                .repositories(List.of(repositories))
+                .build();
+    }
+
+    private static RepositoryConfigDto repository(String id, String name, boolean active, TriggerSettingsDto triggers) {
+        return RepositoryConfigDto.builder().repoId(id).repoName(name).isActive(active).triggers(triggers).build();
+    }
+}
@@ -0,0 +1,86 @@
+package it.np.n_agent.service;
+
+import it.np.n_agent.entity.RepositoryConfig;
+import it.np.n_agent.entity.UserSetting;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserSettingServiceTest {
+
+    @Test
+    void settingsUpdate_setsOnlyTheChangedRepositoriesInPlace() {
+        UserSetting existing = settings(repository(1L, "api", true), repository(2L, "web", true));
+        UserSetting incoming = settings(repository(1L, "api", true), repository(2L, "web", false));
+        List<Integer> written = new ArrayList<>();
+
+        Update update = UserSettingService.settingsUpdate(existing, incoming, false, written::add);
+
+        Document set = set(update);
+        assertThat(set).containsKeys("globalSettings", "updatedAt").doesNotContainKey("repositories");
+        assertThat(set.get("repositories.$[repo0]")).isEqualTo(repository(2L, "web", false));
+        assertThat(set).hasSize(3);
+        assertThat(update.getArrayFilters()).singleElement()
+                .satisfies(filter -> assertThat(filter.asDocument()).isEqualTo(new Document("repo0.repo_id", 2L)));
+        assertThat(update.getUpdateObject().get("$inc", Document.class)).isEqualTo(new Document("version", 1));
+        assertThat(written).containsExactly(1);
+    }
+
+    @Test
+    void settingsUpdate_writesNoRepositoryWhenNoneChanged() {
+        UserSetting existing = settings(repository(1L, "api", true));
+
+        Update update = UserSettingService.settingsUpdate(existing, settings(repository(1L, "api", true)), false, count -> {});
+
+        assertThat(set(update)).containsOnlyKeys("globalSettings", "updatedAt");
+        assertThat(update.getArrayFilters()).isEmpty();
+    }
+
+    @Test
+    void settingsUpdate_replacesTheRepositoriesAddedOrRemovedOnTheClientVersion() {
+        UserSetting existing = settings(repository(1L, "api", true), repository(2L, "web", true));
+        UserSetting incoming = settings(repository(1L, "api", true), repository(3L, "docs", true));
+        List<Integer> written = new ArrayList<>();
+
+        Update update = UserSettingService.settingsUpdate(existing, incoming, true, written::add);
+
+        assertThat(set(update).get("repositories")).isEqualTo(incoming.getRepositories());
+        assertThat(written).containsExactly(2);
+    }
+
+    @Test
+    void settingsUpdate_withoutVersionOnlyUpdatesTheRepositoriesOnBothSides() {
+        UserSetting existing = settings(repository(1L, "api", true), repository(2L, "web", true));
+        UserSetting incoming = settings(repository(2L, "web", false), repository(3L, "docs", true), repository(2L, "web", true));
+        List<Integer> written = new ArrayList<>();
+
+        Update update = UserSettingService.settingsUpdate(existing, incoming, false, written::add);
+
+        Document set = set(update);
+        assertThat(set).doesNotContainKey("repositories");
+        assertThat(set.get("repositories.$[repo0]")).isEqualTo(repository(2L, "web", false));
+        assertThat(update.getArrayFilters()).hasSize(1);
+        assertThat(written).containsExactly(1);
+    }
+
+    private static Document set(Update update) {
+        return update.getUpdateObject().get("$set", Document.class);
+    }
+
+    private static UserSetting settings(RepositoryConfig... repositories) {
+        return UserSetting.builder()
+                .githubInstallationId(1L)
+                .repositories(new ArrayList<>(List.of(repositories)))
+                .version(3L)
+                .build();
+    }
+
+    private static RepositoryConfig repository(Long id, String name, boolean active) {
+        return RepositoryConfig.builder().repoId(id).repoName(name).isActive(active).build();
+    }
+}
@@ -0,0 +1,82 @@
+package it.np.n_agent.utilities;
+
+import it.np.n_agent.utilities.DiffUtility.DiffChunk;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DiffUtilityTest {
+
+    // One token per character keeps the budgets readable
+    private static final ToIntFunction<String> LENGTH = String::length;
+
+    @Test
+    void chunk_keepsTheWholeDiffWhenItFits() {
+        String diff = file("A.java", hunk(1, "+a")) + file("B.java", hunk(1, "+b"));
+
+        List<DiffChunk> chunks = DiffUtility.chunk(diff, LENGTH, diff.length());
+
+        assertThat(chunks).singleElement().satisfies(chunk -> {
+            assertThat(chunk.index()).isZero();
+            assertThat(chunk.content()).isEqualTo(diff);
+            assertThat(chunk.files()).containsExactly("A.java", "B.java");
+            assertThat(chunk.tokens()).isEqualTo(diff.length());
+        });
+    }
+
+    @Test
+    void chunk_packsFilesWithinTheBudgetKeepingTheirOrder() {
+        String a = file("A.java", hunk(1, "+" + "a".repeat(60)));
+        String b = file("B.java", hunk(1, "+" + "b".repeat(10)));
+        String c = file("C.java", hunk(1, "+" + "c".repeat(60)));
+        int budget = a.length() + b.length();
+
+        List<DiffChunk> chunks = DiffUtility.chunk(a + b + c, LENGTH, budget);
+
+        assertThat(chunks).hasSize(2);
+        assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.tokens()).isLessThanOrEqualTo(budget));
+        assertThat(chunks.get(0).files()).containsExactly("A.java", "B.java");
+        assertThat(chunks.get(0).content()).isEqualTo(a + b);
+        assertThat(chunks.get(1).files()).containsExactly("C.java");
+        assertThat(chunks).extracting(DiffChunk::index).containsExactly(0, 1);
+    }
+
+    @Test
+    void chunk_splitsALargeFileOnItsHunksRepeatingTheHeader() {
+        String first = hunk(1, "+" + "x".repeat(80));
+        String second = hunk(50, "+" + "y".repeat(80));
+        String header = header("Big.java");
+        String diff = header + first + second;
+
+        List<DiffChunk> chunks = DiffUtility.chunk(diff, LENGTH, header.length() + first.length());
+
+        assertThat(chunks).extracting(DiffChunk::content).containsExactly(header + first, header + second);
+        assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.files()).containsExactly("Big.java"));
+    }
+
+    @Test
+    void chunk_givesAHunkLargerThanTheBudgetAChunkOfItsOwn() {
+        String large = file("Large.java", hunk(1, "+" + "l".repeat(200)));
+        String small = file("Small.java", hunk(1, "+s"));
+
+        List<DiffChunk> chunks = DiffUtility.chunk(large + small, LENGTH, 100);
+
+        assertThat(chunks).extracting(DiffChunk::content).containsExactly(large, small);
+        assertThat(chunks.get(0).tokens()).isGreaterThan(100);
+    }
+
+    private static String file(String path, String... hunks) {
+        return header(path) + String.join("", hunks);
+    }
+
+    private static String header(String path) {
+        return "diff --git a/" + path + " b/" + path + "\n--- a/" + path + "\n+++ b/" + path + "\n";
+    }
+
+    private static String hunk(int start, String line) {
+        return "@@ -" + start + ",1 +" + start + ",2 @@\n context\n" + line + "\n";
+    }
+}
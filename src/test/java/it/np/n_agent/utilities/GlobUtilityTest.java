@@ -0,0 +1,80 @@
+package it.np.n_agent.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GlobUtilityTest {
+
+    @Test
+    void toRegex_starMatchesWithinADirectoryAtAnyDepth() {
+        assertThat(matches("*.lock", "yarn.lock")).isTrue();
+        assertThat(matches("*.lock", "web/package.lock")).isTrue();
+        assertThat(matches("*.min.js", "static/app.min.js")).isTrue();
+        assertThat(matches("*.min.js", "static/app.js")).isFalse();
+        assertThat(matches("src/*.java", "src/a/B.java")).isFalse();
+    }
+
+    @Test
+    void toRegex_doubleStarCrossesDirectories() {
+        assertThat(matches("**/generated/**", "src/main/generated/Api.java")).isTrue();
+        assertThat(matches("**/generated/**", "generated/Api.java")).isTrue();
+        assertThat(matches("/docs/**/*.md", "docs/README.md")).isTrue();
+        assertThat(matches("/docs/**/*.md", "docs/api/v1/index.md")).isTrue();
+        assertThat(matches("/docs/**/*.md", "src/docs/index.md")).isFalse();
+    }
+
+    @Test
+    void toRegex_questionMarkMatchesOneCharacterButNotASlash() {
+        assertThat(matches("file?.txt", "file1.txt")).isTrue();
+        assertThat(matches("file?.txt", "file12.txt")).isFalse();
+        assertThat(matches("a?b", "a/b")).isFalse();
+    }
+
+    @Test
+    void toRegex_characterClassesMatchOneCharacterOfTheSet() {
+        assertThat(matches("v[0-9].sql", "db/v3.sql")).isTrue();
+        assertThat(matches("v[0-9].sql", "db/vx.sql")).isFalse();
+        assertThat(matches("[!a]*.txt", "b.txt")).isTrue();
+        assertThat(matches("[!a]*.txt", "a.txt")).isFalse();
+        assertThat(matches("x[!a]y", "x/y")).isFalse();
+        assertThat(matches("[]]", "]")).isTrue();
+        // Not a valid class: matched literally
+        assertThat(matches("[z-a]", "[z-a]")).isTrue();
+        assertThat(matches("[abc", "[abc")).isTrue();
+    }
+
+    @Test
+    void toRegex_bracesAreAnAlternation() {
+        assertThat(matches("*.{png,jpg}", "img/logo.png")).isTrue();
+        assertThat(matches("*.{png,jpg}", "img/logo.jpg")).isTrue();
+        assertThat(matches("*.{png,jpg}", "img/logo.gif")).isFalse();
+        assertThat(matches("a,b}", "a,b}")).isTrue();
+    }
+
+    @Test
+    void toRegex_matchesRegexMetacharactersLiterally() {
+        assertThat(matches("lib(1).+$^|\\x.js", "lib(1).+$^|\\x.js")).isTrue();
+        assertThat(matches("a.js", "abjs")).isFalse();
+    }
+
+    @Test
+    void toRegex_anchorsLeadingSlashToTheRoot() {
+        assertThat(matches("/build", "build/out.js")).isTrue();
+        assertThat(matches("/build", "web/build/out.js")).isFalse();
+        assertThat(matches("build", "web/build/out.js")).isTrue();
+    }
+
+    @Test
+    void toRegex_matchesEverythingBelowADirectory() {
+        assertThat(matches("vendor", "vendor/lib/a.go")).isTrue();
+        assertThat(matches("vendor/", "vendor/lib/a.go")).isTrue();
+        assertThat(matches("vendor", "vendored/a.go")).isFalse();
+    }
+
+    private static boolean matches(String glob, String path) {
+        return Pattern.compile(GlobUtility.toRegex(glob)).matcher(path).matches();
+    }
+}
@@ -0,0 +1,49 @@
+package it.np.n_agent.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IssueSearchUtilityTest {
+
+    @Test
+    void keywordsOf_splitsOnSeparatorsAndCamelCaseAndAddsTheJoinedWords() {
+        assertThat(IssueSearchUtility.keywordsOf("NULL_POINTER")).containsExactly("null", "pointer", "nullpointer");
+        assertThat(IssueSearchUtility.keywordsOf("sqlInjection")).containsExactly("sql", "injection", "sqlinjection");
+        assertThat(IssueSearchUtility.keywordsOf("SECURITY")).containsExactly("security");
+        assertThat(IssueSearchUtility.keywordsOf(null)).isEmpty();
+    }
+
+    @Test
+    void tokensOf_keepsDistinctTokensUpToTheLimit() {
+        assertThat(IssueSearchUtility.tokensOf("null null pointer")).containsExactly("null", "pointer");
+        assertThat(IssueSearchUtility.tokensOf("a b c d e f g h i j")).hasSize(8).startsWith("a").endsWith("h");
+    }
+
+    @Test
+    void tokensOf_dropsQueryOperators() {
+        assertThat(IssueSearchUtility.tokensOf(".*{\"$where\": \"1\"}|(a+)+")).containsExactly("where", "1", "a");
+    }
+
+    @Test
+    void wordsOf_keepsRepetitions() {
+        assertThat(IssueSearchUtility.wordsOf("Check null, then null again")).containsExactly("check", "null", "then", "null", "again");
+        assertThat(IssueSearchUtility.wordsOf("  ")).isEmpty();
+    }
+
+    @Test
+    void pathPrefixesOf_listsDirectoriesPathAndFileName() {
+        assertThat(IssueSearchUtility.pathPrefixesOf("src/main/A.java"))
+                .containsExactly("src", "src/main", "src/main/a.java", "a.java");
+        assertThat(IssueSearchUtility.pathPrefixesOf("README.md")).containsExactly("readme.md");
+        assertThat(IssueSearchUtility.pathPrefixesOf(" ")).isEmpty();
+    }
+
+    @Test
+    void normalizePath_removesDiffPrefixesAndRedundantSlashes() {
+        assertThat(IssueSearchUtility.normalizePath("b/src//Main/")).isEqualTo("src/main");
+        assertThat(IssueSearchUtility.normalizePath("./src\\util\\A.java")).isEqualTo("src/util/a.java");
+        assertThat(IssueSearchUtility.normalizePath("/a/b.java")).isEqualTo("a/b.java");
+        assertThat(IssueSearchUtility.normalizePath(null)).isEmpty();
+    }
+}